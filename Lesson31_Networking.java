@@ -50,9 +50,17 @@
  * - IoT communication
  */
 
+import com.sun.net.httpserver.HttpServer;
 import java.net.*;
+import java.net.http.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
 
 public class Lesson31_Networking {
     public static void main(String[] args) {
@@ -251,34 +259,37 @@ public class Lesson31_Networking {
         System.out.println("--- TCP Server Demo ---");
 
         /*
-         * The following demonstrates a simple TCP server.
-         * To test it, uncomment and run in a separate thread:
+         * A blocking ServerSocket serves one client per thread: accept()
+         * waits for a connection, readLine() waits for its data. NioServer
+         * (end of this file) serves every client from a few event-loop
+         * threads. Here it echoes lines back to three clients at once.
          */
-
-        System.out.println("Server example (commented out - see code):");
-        System.out.println("""
-                // Start server in background thread
-                Thread serverThread = new Thread(() -> {
-                    try (ServerSocket serverSocket = new ServerSocket(9999)) {
-                        System.out.println("Server listening on port 9999");
-                        Socket clientSocket = serverSocket.accept();
-                        System.out.println("Client connected: " + clientSocket.getInetAddress());
-
-                        BufferedReader in = new BufferedReader(
-                            new InputStreamReader(clientSocket.getInputStream()));
-                        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-
-                        String message = in.readLine();
-                        System.out.println("Received: " + message);
-                        out.println("Echo: " + message);
-
-                        clientSocket.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
-                serverThread.start();
-                """);
+        ByteBuffer echoPrefix = ByteBuffer.wrap("Echo: ".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        try (NioServer server = new NioServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                NioServer.Framing.LINE, (connection, message) -> connection.send(echoPrefix, message))) {
+            System.out.println("NIO server listening on port " + server.port() + " with "
+                    + server.eventLoops() + " event loop(s)");
+            List<Socket> clients = new ArrayList<>();
+            try {
+                for (int i = 1; i <= 3; i++) {
+                    clients.add(new Socket(InetAddress.getLoopbackAddress(), server.port()));
+                }
+                for (int i = 0; i < clients.size(); i++) {
+                    PrintWriter out = new PrintWriter(clients.get(i).getOutputStream(), true);
+                    out.println("Hello from client " + (i + 1));
+                }
+                for (Socket client : clients) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                    System.out.println("Server response: " + in.readLine());
+                }
+            } finally {
+                for (Socket client : clients) {
+                    client.close();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Server demo failed: " + e.getMessage());
+        }
 
         System.out.println();
 
@@ -461,6 +472,204 @@ public class Lesson31_Networking {
 
         System.out.println();
 
+        // ============================================================
+        // 13. POOLED KEEP-ALIVE HTTP CLIENT
+        // ============================================================
+
+        System.out.println("--- Pooled Keep-Alive HTTP Client ---");
+
+        /*
+         * Against a local in-process server (com.sun.net.httpserver), so
+         * the numbers measure connection handling, not the internet.
+         */
+        try {
+            HttpServer server = startLocalServer();
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            try (PooledHttpClient pooled = new PooledHttpClient(8, 30_000, 5000)) {
+                PooledHttpClient.Response hello = pooled.get(base + "/hello");
+                System.out.println("GET /hello -> " + hello.status() + " " + hello.bodyAsString());
+                PooledHttpClient.Response echo = pooled.post(base + "/echo", "application/json",
+                        "{\"name\": \"John\"}".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                System.out.println("POST /echo -> " + echo.status() + " " + echo.bodyAsString());
+
+                try (PooledHttpClient.StreamingResponse stream = pooled.open("GET", base + "/lines", null, null)) {
+                    BufferedReader lines = new BufferedReader(new InputStreamReader(stream.body()));
+                    System.out.println("Streamed (chunked) first line: " + lines.readLine());
+                }
+                System.out.println("Idle pooled connections: " + pooled.idleConnections());
+                demoStaleConnections();
+
+                benchmarkHttpClients(base, pooled);
+            } finally {
+                server.stop(0);
+                ((ExecutorService) server.getExecutor()).shutdown();
+            }
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            System.out.println("Local HTTP demo failed: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
+        // ============================================================
+        // 14. ASYNC HTTP (CompletableFuture)
+        // ============================================================
+
+        System.out.println("--- Async HTTP Requests ---");
+
+        /*
+         * get/post block the caller for up to 5 s each. getAsync/postAsync
+         * return immediately with a CompletableFuture, so requests can be
+         * fanned out and combined (see Lesson39_CompletableFuture).
+         *
+         * On loopback the load test is still several times slower per
+         * request than PooledHttpClient above: every response hops from
+         * java.net.http's selector thread to an executor thread and
+         * through a chain of futures, which costs more than a blocking
+         * read on an open socket when the server answers in microseconds.
+         * Async pays off when latency dominates (real networks): one
+         * thread keeps thousands of requests waiting, not one per thread.
+         */
+        try {
+            HttpServer server = startLocalServer();
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            try {
+                SimpleHttpClient async = new SimpleHttpClient(256);
+                CompletableFuture<SimpleHttpClient.Response> hello = async.getAsync(base + "/hello");
+                CompletableFuture<SimpleHttpClient.Response> echo =
+                        async.postAsync(base + "/echo", "{\"name\": \"John\", \"age\": 30}");
+                String combined = hello.thenCombine(echo, (h, e) -> h.body() + " | " + e.body()).join();
+                System.out.println("Fan-out result: " + combined);
+
+                loadTestAsync(async, base + "/hello", 10_000);
+            } finally {
+                server.stop(0);
+                ((ExecutorService) server.getExecutor()).shutdown();
+            }
+        } catch (IOException e) {
+            System.out.println("Async demo failed: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
+
+        // ============================================================
+        // 15. NIO SERVER UNDER LOAD
+        // ============================================================
+
+        System.out.println("--- NIO Echo Server Under Load ---");
+
+        /*
+         * One client thread opens thousands of non-blocking connections
+         * and keeps a message in flight on each. Every process needs two
+         * file descriptors per loopback connection (client + server end),
+         * so the count is capped by the descriptor limit (ulimit -n).
+         */
+        try (NioServer server = new NioServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                NioServer.Framing.LINE, (connection, message) -> connection.send(message))) {
+            System.out.println("Event loops: " + server.eventLoops()
+                    + (server.usesReusePort() ? " (SO_REUSEPORT listeners)" : " (single acceptor)"));
+            loadTestEcho(server, 20_000, 20);
+        } catch (IOException e) {
+            System.out.println("NIO load test failed: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
+        // ============================================================
+        // 16. THREAD PER CONNECTION (VIRTUAL THREADS)
+        // ============================================================
+
+        System.out.println("--- Thread-per-Connection Server ---");
+
+        /*
+         * The blocking ServerSocket style from section 6, with one task per
+         * connection. On Java 21+ each task gets its own virtual thread;
+         * older JDKs fall back to one platform thread per connection.
+         */
+        ExecutorService perConnection = ThreadPerConnectionServer.newVirtualThreadExecutor();
+        System.out.println(perConnection != null
+                ? "Virtual threads available: one virtual thread per connection"
+                : "No virtual threads on Java " + Runtime.version().feature()
+                        + " (needs 21+): using one platform thread per connection");
+        if (perConnection == null) {
+            perConnection = Executors.newCachedThreadPool();
+        }
+        try {
+            ThreadPerConnectionServer server = new ThreadPerConnectionServer(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), perConnection,
+                    10_000, 500, request -> "Echo: " + request);
+            try (Socket active = new Socket(InetAddress.getLoopbackAddress(), server.port());
+                 Socket idle = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+                PrintWriter out = new PrintWriter(active.getOutputStream(), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(active.getInputStream()));
+                out.println("Hello virtual world");
+                System.out.println("Server response: " + in.readLine());
+
+                // Sends nothing: closed by the server after the 500 ms idle timeout
+                long start = System.nanoTime();
+                int eof = idle.getInputStream().read();
+                System.out.printf("Idle connection closed by server after %d ms (read returned %d)%n",
+                        (System.nanoTime() - start) / 1_000_000, eof);
+
+                boolean clean = server.shutdown(1000);
+                System.out.println("Graceful shutdown: " + (clean ? "all connections finished" : "forced")
+                        + ", accepted " + server.accepted() + ", idle timeouts " + server.idleTimeouts());
+            }
+            benchmarkConnectionModels(new int[]{1_000, 10_000, 100_000}, 10, 200);
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Thread-per-connection demo failed: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
+        // ============================================================
+        // 17. LOAD GENERATOR & LATENCY HISTOGRAM
+        // ============================================================
+
+        System.out.println("--- Load Generator ---");
+
+        /*
+         * Closed loop finds the maximum throughput. Open loop then offers a
+         * fixed rate, timing each request from its scheduled start. At 1.5x
+         * the maximum the backlog grows every second and so does the
+         * corrected latency, while the uncorrected numbers (timed from the
+         * actual send) stay flat. Generator and server share the CPUs, so on
+         * a small machine time spent waiting for a core counts too.
+         */
+        try (NioServer echoServer = new NioServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                NioServer.Framing.LINE, (connection, message) -> connection.send(message))) {
+            LoadGenerator tcp = new LoadGenerator(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), echoServer.port()),
+                    LoadGenerator.lines("ping"), 32);
+            tcp.runClosedLoop(Duration.ofSeconds(1)); // warm-up
+            LoadGenerator.Result closed = tcp.runClosedLoop(Duration.ofSeconds(2));
+            System.out.println("TCP echo (NioServer):");
+            closed.print();
+            tcp.runOpenLoop(closed.throughput() * 0.5, Duration.ofSeconds(2)).print();
+            tcp.runOpenLoop(closed.throughput() * 1.5, Duration.ofSeconds(2)).print();
+
+            HttpServer httpServer = startLocalServer();
+            try {
+                int port = httpServer.getAddress().getPort();
+                LoadGenerator http = new LoadGenerator(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                        LoadGenerator.httpGet("127.0.0.1", port, "/hello"), 16);
+                http.runClosedLoop(Duration.ofSeconds(1)); // warm-up
+                System.out.println("HTTP GET /hello (com.sun.net.httpserver):");
+                http.runClosedLoop(Duration.ofSeconds(2)).print();
+            } finally {
+                httpServer.stop(0);
+                ((ExecutorService) httpServer.getExecutor()).shutdown();
+            }
+        } catch (IOException e) {
+            System.out.println("Load generator demo failed: " + e.getMessage());
+        }
+
+        System.out.println();
+
 
         // ============================================================
         // KEY TAKEAWAYS
@@ -559,6 +768,392 @@ public class Lesson31_Networking {
          * - GraphQL
          */
     }
+
+    // In-process HTTP server on an ephemeral loopback port
+    static HttpServer startLocalServer() throws IOException {
+        // Headers and body go out in separate writes; without TCP_NODELAY
+        // Nagle + delayed ACK add ~40 ms to every keep-alive response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        // It keeps only 200 idle keep-alive connections by default; the
+        // async load test holds 256 open, and every one over the limit
+        // would be closed and reconnected
+        System.setProperty("sun.net.httpserver.maxIdleConnections", "1024");
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        byte[] hello = "Hello from local server".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        server.createContext("/hello", exchange -> {
+            exchange.sendResponseHeaders(200, hello.length);
+            exchange.getResponseBody().write(hello);
+            exchange.close();
+        });
+        server.createContext("/echo", exchange -> {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.createContext("/lines", exchange -> {
+            exchange.sendResponseHeaders(200, 0); // length unknown: chunked
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 1; i <= 100; i++) {
+                    out.write(("line " + i + "\n").getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                }
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+        return server;
+    }
+
+    // Requests/sec: a new HttpURLConnection per call vs pooled sockets
+    /*
+     * A server that closes every connection after one response, without
+     * "Connection: close", like one whose idle timeout fired while the
+     * connection sat in the pool. The GET is retried on a fresh
+     * connection; the POST is not, since it is not safe to send twice.
+     */
+    private static void demoStaleConnections() throws IOException, InterruptedException {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             PooledHttpClient pooled = new PooledHttpClient(1, 30_000, 2000)) {
+            AtomicInteger received = new AtomicInteger();
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try (Socket socket = server.accept()) {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(
+                                socket.getInputStream(), java.nio.charset.StandardCharsets.ISO_8859_1));
+                        String line;
+                        long length = 0;
+                        while ((line = in.readLine()) != null && !line.isEmpty()) {
+                            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                                length = Long.parseLong(line.substring(15).trim());
+                            }
+                        }
+                        if (line == null) {
+                            continue;
+                        }
+                        in.skip(length);
+                        received.incrementAndGet();
+                        socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"
+                                .getBytes(java.nio.charset.StandardCharsets.ISO_8859_1));
+                    } catch (IOException e) {
+                        // server closed, or the client went away
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            String url = "http://127.0.0.1:" + server.getLocalPort() + "/";
+            pooled.get(url);
+            Thread.sleep(50);   // let the server close the pooled connection
+            System.out.println("GET on a closed idle connection: " + pooled.get(url).status() + " (retried)");
+            Thread.sleep(50);
+            try {
+                pooled.post(url, "text/plain", new byte[] {'x'});
+                System.out.println("POST on a closed idle connection: sent");
+            } catch (IOException e) {
+                System.out.println("POST on a closed idle connection: not retried ("
+                        + e.getClass().getSimpleName() + ")");
+            }
+            System.out.println("Requests the server received: " + received.get());
+        }
+    }
+
+    private static void benchmarkHttpClients(String base, PooledHttpClient pooled)
+            throws InterruptedException, ExecutionException {
+        SimpleHttpClient simple = new SimpleHttpClient();
+        int threads = 8;
+        int perThread = 500;
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 2; round++) {
+                long simpleTime = runConcurrently(callers, threads, () -> {
+                    for (int i = 0; i < perThread; i++) {
+                        simple.get(base + "/hello");
+                    }
+                    return null;
+                });
+                long pooledTime = runConcurrently(callers, threads, () -> {
+                    for (int i = 0; i < perThread; i++) {
+                        pooled.get(base + "/hello");
+                    }
+                    return null;
+                });
+                if (round == 1) {
+                    int total = threads * perThread;
+                    System.out.printf("%,d GETs from %d threads:%n", total, threads);
+                    System.out.printf("  SimpleHttpClient: %,8.0f req/s%n", total * 1e9 / simpleTime);
+                    System.out.printf("  PooledHttpClient: %,8.0f req/s%n", total * 1e9 / pooledTime);
+                }
+            }
+        } finally {
+            callers.shutdown();
+        }
+    }
+
+    // One thread fires all requests; the in-flight limit paces them.
+    // Round 0 warms up (JIT, connections), as in benchmarkHttpClients
+    private static void loadTestAsync(SimpleHttpClient client, String url, int requests) {
+        for (int round = 0; round < 2; round++) {
+            AtomicInteger failures = new AtomicInteger();
+            int peakInFlight = 0;
+            List<CompletableFuture<SimpleHttpClient.Response>> futures = new ArrayList<>(requests);
+            long start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                futures.add(client.getAsync(url).whenComplete((response, error) -> {
+                    if (error != null || response.status() != 200) {
+                        failures.incrementAndGet();
+                    }
+                }));
+                peakInFlight = Math.max(peakInFlight, client.inFlight());
+            }
+            long submitted = System.nanoTime() - start;
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                    .exceptionally(error -> null)
+                    .join();
+            long elapsed = System.nanoTime() - start;
+            if (round == 1) {
+                System.out.printf("%,d concurrent GETs issued from one thread in %d ms%n",
+                        requests, submitted / 1_000_000);
+                System.out.printf("  completed in %,d ms (%,.0f req/s), failures: %d, peak in flight: %d%n",
+                        elapsed / 1_000_000, requests * 1e9 / elapsed, failures.get(), peakInFlight);
+            }
+        }
+    }
+
+    // Echo load against the NIO server, capped by the descriptor limit
+    private static void loadTestEcho(NioServer server, int wanted, int rounds) throws IOException {
+        int connections = connectionsWithinFdLimit(wanted);
+        int[] serverPeak = {0};
+        EchoRun run = runEchoClients(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port()),
+                connections, rounds, false, 120_000, () -> serverPeak[0] = Math.max(serverPeak[0], server.connections()));
+        System.out.printf("%,d concurrent connections open after %,d ms (server saw %,d)%n",
+                connections, run.connectMillis(), serverPeak[0]);
+        System.out.printf("%,d echoes in %,d ms (%,.0f msg/s), mismatches: %d%n",
+                run.messages(), run.elapsedNanos() / 1_000_000, run.throughput(), run.mismatches());
+        System.out.printf("Direct buffers allocated by the server: %,d (%,d KB) for %,d connections%n",
+                server.buffersAllocated(), server.buffersAllocated() * NioServer.BUFFER_SIZE / 1024,
+                connections);
+    }
+
+    // Two descriptors per loopback connection (client + server end)
+    private static int connectionsWithinFdLimit(int wanted) {
+        int connections = wanted;
+        java.lang.management.OperatingSystemMXBean os = java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean unix) {
+            long spare = unix.getMaxFileDescriptorCount() - unix.getOpenFileDescriptorCount() - 256;
+            connections = (int) Math.max(1, Math.min(wanted, spare / 2));
+        }
+        if (connections < wanted) {
+            System.out.printf("Capped at %,d connections by the file-descriptor limit (raise ulimit -n for %,d)%n",
+                    connections, wanted);
+        }
+        return connections;
+    }
+
+    private record EchoRun(int connections, long messages, long mismatches, long elapsedNanos,
+                           long connectMillis, long[] latencyNanos) {
+        double throughput() {
+            return messages * 1e9 / elapsedNanos;
+        }
+
+        // Exact percentile of the recorded round trips, in microseconds
+        double percentileMicros(double percentile) {
+            long[] sorted = latencyNanos.clone();
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1000.0;
+        }
+    }
+
+    /*
+     * Open `connections` sockets from one selector thread; each sends
+     * `rounds` lines, one at a time, and checks every reply. Unless
+     * closeWhenDone is set, all stay open until the last one is done, so
+     * they really are concurrent.
+     * `whileRunning` (may be null) is called about every 50 ms and once
+     * more before the sockets are closed. Fails with an IOException if
+     * the run takes longer than timeoutMillis (e.g. the server stopped
+     * accepting).
+     */
+    private static EchoRun runEchoClients(InetSocketAddress address, int connections, int rounds,
+                                          boolean closeWhenDone, long timeoutMillis,
+                                          Runnable whileRunning) throws IOException {
+        int maxConnecting = 512;
+        int opened = 0;
+        int connecting = 0;
+        int finished = 0;
+        int messages = 0;
+        long mismatches = 0;
+        long[] latencies = new long[connections * rounds];
+        ByteBuffer reply = ByteBuffer.allocate(64);
+        try (Selector selector = Selector.open()) {
+            long start = System.nanoTime();
+            long connectedAt = start;
+            long lastTick = start;
+            long deadline = start + timeoutMillis * 1_000_000;
+            try {
+                while (finished < connections) {
+                    if (System.nanoTime() - deadline > 0) {
+                        throw new IOException(String.format("echo run timed out after %,d ms: %,d of %,d connections"
+                                + " finished, %,d opened", timeoutMillis, finished, connections, opened));
+                    }
+                    while (opened < connections && connecting < maxConnecting) {
+                        SocketChannel channel = SocketChannel.open();
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        channel.connect(address);
+                        // {id, messages echoed, send time}
+                        channel.register(selector, SelectionKey.OP_CONNECT, new long[]{opened, 0, 0});
+                        opened++;
+                        connecting++;
+                    }
+                    selector.select(50);
+                    if (whileRunning != null && System.nanoTime() - lastTick >= 50_000_000) {
+                        lastTick = System.nanoTime();
+                        whileRunning.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        long[] state = (long[]) key.attachment();
+                        if (key.isConnectable()) {
+                            channel.finishConnect();
+                            connecting--;
+                            if (connecting == 0 && opened == connections) {
+                                connectedAt = System.nanoTime();
+                            }
+                            state[2] = System.nanoTime();
+                            channel.write(ByteBuffer.wrap(echoLine(state).getBytes()));
+                            key.interestOps(SelectionKey.OP_READ);
+                            continue;
+                        }
+                        // Replies are a few dozen bytes: one read is one line
+                        reply.clear();
+                        if (channel.read(reply) < 0) {
+                            throw new IOException("server closed connection " + state[0]);
+                        }
+                        latencies[messages++] = System.nanoTime() - state[2];
+                        if (!new String(reply.array(), 0, reply.position()).equals(echoLine(state))) {
+                            mismatches++;
+                        }
+                        if (++state[1] < rounds) {
+                            state[2] = System.nanoTime();
+                            channel.write(ByteBuffer.wrap(echoLine(state).getBytes()));
+                        } else {
+                            if (closeWhenDone) {
+                                channel.close();
+                            } else {
+                                key.interestOps(0);
+                            }
+                            finished++;
+                        }
+                    }
+                }
+                if (whileRunning != null) {
+                    whileRunning.run();
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+            }
+            return new EchoRun(connections, messages, mismatches, System.nanoTime() - start,
+                    (connectedAt - start) / 1_000_000, Arrays.copyOf(latencies, messages));
+        }
+    }
+
+    private static String echoLine(long[] state) {
+        return "client " + state[0] + " message " + state[1] + "\n";
+    }
+
+    // Without virtual threads each connection costs a platform thread (and its stack)
+    private static final int PLATFORM_THREAD_LIMIT = 10_000;
+
+    // Same echo load against thread-per-connection vs a fixed pool
+    private static void benchmarkConnectionModels(int[] connectionCounts, int rounds, int poolSize)
+            throws IOException, InterruptedException {
+        boolean virtual = ThreadPerConnectionServer.newVirtualThreadExecutor() != null;
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        int threadsBefore = threads.getThreadCount();
+        String perConnection = virtual ? "virtual/conn" : "platform/conn";
+        System.out.printf("%,d echoes per connection; each client closes when done%n", rounds);
+        System.out.printf("%-9s %-16s %10s %10s %10s %9s %8s%n",
+                "conns", "server", "msg/s", "p99 ms", "max ms", "mem MB", "threads");
+        for (int wanted : connectionCounts) {
+            int connections = connectionsWithinFdLimit(wanted);
+            for (int mode = 0; mode < 2; mode++) {
+                String label = mode == 1 ? "fixed pool " + poolSize : perConnection;
+                if (mode == 0 && !virtual && connections > PLATFORM_THREAD_LIMIT) {
+                    System.out.printf("%-9s %-16s skipped: over %,d platform threads (needs JDK 21+)%n",
+                            String.format("%,d", connections), label, PLATFORM_THREAD_LIMIT);
+                    continue;
+                }
+                // The platform fallback is bounded too: extra connections are refused, not OOM
+                ExecutorService executor = mode == 1 ? Executors.newFixedThreadPool(poolSize)
+                        : virtual ? ThreadPerConnectionServer.newVirtualThreadExecutor()
+                        : new ThreadPoolExecutor(0, PLATFORM_THREAD_LIMIT, 60, TimeUnit.SECONDS,
+                                new SynchronousQueue<>());
+                // Let the previous run's threads exit so they aren't counted
+                for (int i = 0; i < 500 && threads.getThreadCount() > threadsBefore + 8; i++) {
+                    Thread.sleep(10);
+                }
+                System.gc();
+                long baseline = residentBytes();
+                long[] peakMemory = {baseline};
+                int[] peakThreads = {0};
+                ThreadPerConnectionServer server = new ThreadPerConnectionServer(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), executor,
+                        200_000, 60_000, request -> request);
+                EchoRun run;
+                try {
+                    run = runEchoClients(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port()),
+                            connections, rounds, true, 120_000, () -> {
+                                peakMemory[0] = Math.max(peakMemory[0], residentBytes());
+                                peakThreads[0] = Math.max(peakThreads[0], threads.getThreadCount());
+                            });
+                } catch (IOException e) {
+                    System.out.printf("%-9s %-16s failed: %s%n",
+                            String.format("%,d", connections), label, e.getMessage());
+                    continue;
+                } finally {
+                    server.shutdown(5000);
+                }
+                System.out.printf("%-9s %-16s %,10.0f %10.1f %10.1f %,9d %,8d%n",
+                        String.format("%,d", connections), label, run.throughput(),
+                        run.percentileMicros(99) / 1000, run.percentileMicros(100) / 1000,
+                        (peakMemory[0] - baseline) >> 20, peakThreads[0]);
+            }
+        }
+        System.out.println("(mem: peak growth of process RSS; threads: live platform threads)");
+    }
+
+    // Resident set size from /proc on Linux, else used heap
+    private static long residentBytes() {
+        try {
+            for (String line : java.nio.file.Files.readAllLines(java.nio.file.Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not Linux
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Run the task on n threads at once; returns elapsed nanos
+    private static long runConcurrently(ExecutorService executor, int n, Callable<Void> task)
+            throws InterruptedException, ExecutionException {
+        List<Callable<Void>> tasks = Collections.nCopies(n, task);
+        long start = System.nanoTime();
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            future.get();
+        }
+        return System.nanoTime() - start;
+    }
 }
 
 
@@ -568,6 +1163,128 @@ public class Lesson31_Networking {
 
 class SimpleHttpClient {
 
+    /*
+     * Async calls go through java.net.http.HttpClient, which uses
+     * non-blocking I/O internally: no thread waits on a socket, so one
+     * caller thread can keep thousands of requests going. At most
+     * maxInFlight requests are on the wire at once; the rest wait in a
+     * queue and start as earlier ones finish (never blocking the caller).
+     */
+    public record Response(int status, String body) {
+    }
+
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    private volatile HttpClient asyncClient;
+
+    public SimpleHttpClient() {
+        this(256);
+    }
+
+    public SimpleHttpClient(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    public CompletableFuture<Response> getAsync(String urlString) {
+        return sendAsync(HttpRequest.newBuilder(URI.create(urlString)).GET());
+    }
+
+    public CompletableFuture<Response> postAsync(String urlString, String jsonData) {
+        return sendAsync(HttpRequest.newBuilder(URI.create(urlString))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(jsonData)));
+    }
+
+    // Requests started but not finished yet (for monitoring)
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    private CompletableFuture<Response> sendAsync(HttpRequest.Builder builder) {
+        HttpRequest request = builder
+                .header("User-Agent", "SimpleHttpClient/1.0")
+                .timeout(Duration.ofMillis(5000))
+                .build();
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        pending.add(() -> {
+            CompletableFuture<HttpResponse<String>> sent;
+            try {
+                sent = client().sendAsync(request, HttpResponse.BodyHandlers.ofString());
+            } catch (RuntimeException e) {
+                // Never reached the wire: give the slot back. We run inside
+                // dispatch(), whose loop goes on to the next queued request
+                // (calling it again here would recurse once per failure).
+                inFlight.decrementAndGet();
+                result.completeExceptionally(e);
+                return;
+            }
+            sent.whenComplete((response, error) -> {
+                inFlight.decrementAndGet();
+                dispatch();
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(new Response(response.statusCode(), response.body()));
+                }
+            });
+        });
+        dispatch();
+        return result;
+    }
+
+    // Start queued requests while below the in-flight limit
+    private void dispatch() {
+        while (!pending.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return;
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Runnable next = pending.poll();
+            if (next == null) {
+                inFlight.decrementAndGet();
+            } else {
+                next.run();
+            }
+        }
+    }
+
+    private HttpClient client() {
+        HttpClient client = asyncClient;
+        if (client == null) {
+            synchronized (this) {
+                client = asyncClient;
+                if (client == null) {
+                    // The default executor is an unbounded cached pool: with
+                    // hundreds in flight it starts hundreds of threads that
+                    // fight over the cores. Completions are short, so a few
+                    // threads keep up; they exit when the client goes idle.
+                    int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                                Thread thread = new Thread(runnable, "SimpleHttpClient-async");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+                    executor.allowCoreThreadTimeOut(true);
+                    client = HttpClient.newBuilder()
+                            .executor(executor)
+                            .version(HttpClient.Version.HTTP_1_1)
+                            .connectTimeout(Duration.ofMillis(5000))
+                            .build();
+                    asyncClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
     public String get(String urlString) {
         try {
             URL url = new URL(urlString);
@@ -646,3 +1363,1746 @@ class SimpleHttpClient {
         }
     }
 }
+
+
+// ============================================================
+// POOLED KEEP-ALIVE HTTP CLIENT
+// ============================================================
+
+/*
+ * HTTP/1.1 client over plain sockets that keeps connections open.
+ *
+ * SimpleHttpClient opens a new HttpURLConnection per call and then
+ * disconnects, paying a TCP (and TLS) handshake every time. Here each
+ * host:port has a pool of persistent connections:
+ *
+ * - at most maxConnectionsPerHost in use at once; callers beyond that
+ *   wait up to the timeout for one to be released
+ * - the most recently used idle connection is reused first (warm),
+ *   connections idle longer than idleTimeout are closed
+ * - any number of threads can send concurrently, each on its own
+ *   borrowed connection
+ * - bodies are framed by Content-Length or chunked encoding; a
+ *   "Connection: close" response (or a body read to EOF) is not reused
+ * - a GET/HEAD whose reused connection turns out closed (EOF or reset
+ *   before any response byte) is retried once on a fresh one, since the
+ *   server may have closed it while it sat idle; other methods and
+ *   timeouts are not retried, as the server may already have acted
+ *
+ * Responses come back as raw bytes (send/get/post) or streamed
+ * (open): the connection returns to the pool when the body stream is
+ * closed.
+ */
+class PooledHttpClient implements Closeable {
+    private final int maxConnectionsPerHost;
+    private final long idleTimeoutNanos;
+    private final int timeoutMillis;
+    private final ConcurrentHashMap<String, HostPool> pools = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    public PooledHttpClient() {
+        this(8, 30_000, 5000);
+    }
+
+    public PooledHttpClient(int maxConnectionsPerHost, long idleTimeoutMillis, int timeoutMillis) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeoutNanos = idleTimeoutMillis * 1_000_000L;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public Response get(String url) throws IOException {
+        return send("GET", url, null, null);
+    }
+
+    public Response post(String url, String contentType, byte[] body) throws IOException {
+        return send("POST", url, contentType, body);
+    }
+
+    public Response send(String method, String url, String contentType, byte[] body) throws IOException {
+        try (StreamingResponse response = open(method, url, contentType, body)) {
+            byte[] bytes = response.body().readAllBytes();
+            return new Response(response.status(), response.headers(), bytes);
+        }
+    }
+
+    // Caller must close the response; that hands the connection back
+    public StreamingResponse open(String method, String url, String contentType, byte[] body) throws IOException {
+        if (closed) {
+            throw new IOException("Client is closed");
+        }
+        URI uri = URI.create(url);
+        HostPool pool = pool(uri);
+        byte[] request = encodeRequest(method, uri, contentType, body);
+
+        Connection connection = pool.borrow();
+        try {
+            try {
+                return exchange(connection, method, request);
+            } catch (IOException e) {
+                if (!connection.reused || connection.responseStarted || !retryable(method, e)) {
+                    throw e;
+                }
+                // Stale keep-alive connection: retry once on a new one
+                connection.close();
+                connection = pool.open();
+                return exchange(connection, method, request);
+            }
+        } catch (IOException | RuntimeException e) {
+            pool.release(connection, false);
+            throw e;
+        }
+    }
+
+    // Safe to send again: an idempotent method, and the connection was
+    // closed under us rather than slow (a timed-out request may have arrived)
+    private static boolean retryable(String method, IOException e) {
+        return ("GET".equals(method) || "HEAD".equals(method))
+                && (e instanceof EOFException || e instanceof SocketException);
+    }
+
+    // Close connections idle longer than the idle timeout
+    public void evictIdle() {
+        for (HostPool pool : pools.values()) {
+            pool.evictExpired();
+        }
+    }
+
+    public int idleConnections() {
+        int count = 0;
+        for (HostPool pool : pools.values()) {
+            count += pool.idle.size();
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (HostPool pool : pools.values()) {
+            Connection connection;
+            while ((connection = pool.idle.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private HostPool pool(URI uri) {
+        boolean tls = "https".equalsIgnoreCase(uri.getScheme());
+        if (!tls && !"http".equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("Unsupported scheme: " + uri.getScheme());
+        }
+        int port = uri.getPort() != -1 ? uri.getPort() : tls ? 443 : 80;
+        String key = (tls ? "https://" : "http://") + uri.getHost() + ":" + port;
+        return pools.computeIfAbsent(key, k -> new HostPool(uri.getHost(), port, tls));
+    }
+
+    private static byte[] encodeRequest(String method, URI uri, String contentType, byte[] body) {
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+        StringBuilder head = new StringBuilder(128)
+                .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(uri.getHost());
+        if (uri.getPort() != -1) {
+            head.append(':').append(uri.getPort());
+        }
+        head.append("\r\nUser-Agent: PooledHttpClient/1.0\r\n");
+        if (body != null) {
+            if (contentType != null) {
+                head.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+        if (body == null) {
+            return headBytes;
+        }
+        byte[] request = Arrays.copyOf(headBytes, headBytes.length + body.length);
+        System.arraycopy(body, 0, request, headBytes.length, body.length);
+        return request;
+    }
+
+    private StreamingResponse exchange(Connection connection, String method, byte[] request) throws IOException {
+        connection.responseStarted = false;
+        connection.out.write(request);
+        connection.out.flush();
+
+        String statusLine = connection.readLine();
+        if (statusLine == null) {
+            throw new EOFException("Connection closed before response");
+        }
+        connection.responseStarted = true;
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+        int status = Integer.parseInt(parts[1]);
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while ((line = connection.readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.merge(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        line.substring(colon + 1).trim(), (a, b) -> a + ", " + b);
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed inside headers");
+        }
+
+        boolean keepAlive = parts[0].equals("HTTP/1.1")
+                ? !"close".equalsIgnoreCase(headers.get("connection"))
+                : "keep-alive".equalsIgnoreCase(headers.get("connection"));
+        BodyStream body;
+        if (method.equals("HEAD") || status / 100 == 1 || status == 204 || status == 304) {
+            body = new BodyStream(connection, 0, false, keepAlive);
+        } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            body = new BodyStream(connection, -1, true, keepAlive);
+        } else if (headers.containsKey("content-length")) {
+            body = new BodyStream(connection, Long.parseLong(headers.get("content-length")), false, keepAlive);
+        } else {
+            body = new BodyStream(connection, -1, false, false); // until EOF
+        }
+        return new StreamingResponse(status, headers, body);
+    }
+
+    public static final class Response {
+        private final int status;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        Response(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int status() { return status; }
+        public Map<String, String> headers() { return headers; }
+        public byte[] body() { return body; }
+
+        public String bodyAsString() {
+            return new String(body, java.nio.charset.StandardCharsets.UTF_8);
+        }
+    }
+
+    public static final class StreamingResponse implements Closeable {
+        private final int status;
+        private final Map<String, String> headers;
+        private final BodyStream body;
+
+        StreamingResponse(int status, Map<String, String> headers, BodyStream body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int status() { return status; }
+        public Map<String, String> headers() { return headers; }
+        public InputStream body() { return body; }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    /*
+     * Response body limited to its framing. Closing it returns the
+     * connection to the pool if the body was fully read (small leftovers
+     * are drained first), otherwise the connection is closed.
+     */
+    private static final class BodyStream extends InputStream {
+        private static final int MAX_DRAIN = 64 * 1024;
+
+        private final Connection connection;
+        private final boolean chunked;
+        private final boolean keepAlive;
+        private long remaining;        // bytes left (in the current chunk)
+        private boolean chunkSeen;
+        private boolean finished;
+        private boolean released;
+
+        BodyStream(Connection connection, long length, boolean chunked, boolean keepAlive) {
+            this.connection = connection;
+            this.chunked = chunked;
+            this.keepAlive = keepAlive;
+            this.remaining = chunked ? 0 : length;
+            this.finished = !chunked && length == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (finished || len == 0) {
+                return finished ? -1 : 0;
+            }
+            if (chunked && remaining == 0) {
+                nextChunk();
+                if (finished) {
+                    return -1;
+                }
+            }
+            int max = remaining < 0 ? len : (int) Math.min(len, remaining);
+            int n = connection.in.read(b, off, max);
+            if (n < 0) {
+                if (remaining < 0) {
+                    finished = true;   // body delimited by connection close
+                    return -1;
+                }
+                throw new EOFException("Connection closed inside body");
+            }
+            if (remaining > 0) {
+                remaining -= n;
+                if (remaining == 0 && !chunked) {
+                    finished = true;
+                }
+            }
+            return n;
+        }
+
+        private void nextChunk() throws IOException {
+            if (chunkSeen) {
+                connection.readLine(); // CRLF after the previous chunk
+            }
+            String sizeLine = connection.readLine();
+            if (sizeLine == null) {
+                throw new EOFException("Connection closed inside chunked body");
+            }
+            int semicolon = sizeLine.indexOf(';');
+            remaining = Long.parseLong((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+            chunkSeen = true;
+            if (remaining == 0) {
+                String trailer;
+                while ((trailer = connection.readLine()) != null && !trailer.isEmpty()) {
+                    // ignore trailers
+                }
+                finished = true;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released) {
+                return;
+            }
+            released = true;
+            boolean reusable = keepAlive;
+            if (reusable && !finished) {
+                // Drain a small leftover so the connection can be reused
+                byte[] skip = new byte[8192];
+                long drained = 0;
+                try {
+                    int n;
+                    while (drained <= MAX_DRAIN && (n = read(skip, 0, skip.length)) >= 0) {
+                        drained += n;
+                    }
+                } catch (IOException e) {
+                    reusable = false;
+                }
+                reusable &= finished;
+            }
+            connection.pool.release(connection, reusable);
+        }
+    }
+
+    private final class HostPool {
+        final String host;
+        final int port;
+        final boolean tls;
+        final Semaphore permits;
+        // Most recently used at the head, longest idle at the tail
+        final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+        HostPool(String host, int port, boolean tls) {
+            this.host = host;
+            this.port = port;
+            this.tls = tls;
+            this.permits = new Semaphore(maxConnectionsPerHost);
+        }
+
+        Connection borrow() throws IOException {
+            try {
+                if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException("No free connection to " + host + ":" + port
+                            + " within " + timeoutMillis + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a connection");
+            }
+            Connection connection;
+            long now = System.nanoTime();
+            while ((connection = idle.pollFirst()) != null) {
+                if (now - connection.lastUsed < idleTimeoutNanos && !connection.socket.isClosed()) {
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close();
+            }
+            try {
+                return open();
+            } catch (IOException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        Connection open() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+                socket.setSoTimeout(timeoutMillis);
+                socket.setTcpNoDelay(true);
+                if (tls) {
+                    socket = startTls(socket);
+                }
+                return new Connection(this, socket);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /*
+         * TLS over the connected socket. Endpoint identification makes the
+         * handshake fail unless the certificate is issued for this host
+         * (a CA-valid certificate for another name would allow a MITM);
+         * SNI tells a shared server which certificate to present.
+         */
+        private Socket startTls(Socket plain) throws IOException {
+            javax.net.ssl.SSLSocketFactory factory = (javax.net.ssl.SSLSocketFactory) javax.net.ssl.SSLSocketFactory.getDefault();
+            javax.net.ssl.SSLSocket socket = (javax.net.ssl.SSLSocket) factory.createSocket(plain, host, port, true);
+            javax.net.ssl.SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            // SNI carries DNS names only, never IP literals
+            if (host.indexOf(':') < 0 && !host.matches("[0-9.]+")) {
+                parameters.setServerNames(List.of(new javax.net.ssl.SNIHostName(host)));
+            }
+            socket.setSSLParameters(parameters);
+            socket.startHandshake();
+            return socket;
+        }
+
+        void release(Connection connection, boolean reusable) {
+            if (reusable && !closed) {
+                connection.lastUsed = System.nanoTime();
+                idle.offerFirst(connection);
+            } else {
+                connection.close();
+            }
+            permits.release();
+            evictExpired();
+        }
+
+        void evictExpired() {
+            long now = System.nanoTime();
+            Connection oldest;
+            while ((oldest = idle.peekLast()) != null && now - oldest.lastUsed >= idleTimeoutNanos) {
+                if (idle.removeLastOccurrence(oldest)) {
+                    oldest.close();
+                }
+            }
+        }
+    }
+
+    private static final class Connection {
+        final HostPool pool;
+        final Socket socket;
+        final BufferedInputStream in;
+        final BufferedOutputStream out;
+        final StringBuilder line = new StringBuilder(64);
+        long lastUsed;
+        boolean reused;
+        boolean responseStarted;
+
+        Connection(HostPool pool, Socket socket) throws IOException {
+            this.pool = pool;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
+        }
+
+        // One CRLF-terminated header line (ISO-8859-1), or null at EOF
+        String readLine() throws IOException {
+            line.setLength(0);
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b == '\n') {
+                    int end = line.length();
+                    if (end > 0 && line.charAt(end - 1) == '\r') {
+                        line.setLength(end - 1);
+                    }
+                    return line.toString();
+                }
+                line.append((char) b);
+            }
+            return line.length() == 0 ? null : line.toString();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing useful to do
+            }
+        }
+    }
+}
+
+
+// ============================================================
+// NIO EVENT-LOOP SERVER
+// ============================================================
+
+/*
+ * Non-blocking TCP server: a few threads serve thousands of clients.
+ *
+ * The ServerSocket demo blocks a thread in accept() and another in
+ * readLine() for every client. Here each event-loop thread owns a
+ * Selector and handles every connection registered with it, acting
+ * only on sockets that are ready:
+ *
+ * - one event loop per core; with SO_REUSEPORT each loop binds its own
+ *   listening socket to the same port and the kernel spreads incoming
+ *   connections across them. Where the option is missing, loop 0
+ *   accepts and hands connections out round-robin
+ * - messages are framed as lines ('\n', a trailing '\r' is dropped) or
+ *   as a 4-byte big-endian length followed by that many bytes; a frame
+ *   must fit in one buffer (BUFFER_SIZE) or the connection is closed
+ * - read and write buffers are direct ByteBuffers taken from a per-loop
+ *   pool. A connection only keeps a read buffer while it holds a partial
+ *   frame, so idle connections cost no buffer memory
+ * - back-pressure: replies are written straight away; whatever the
+ *   socket doesn't take is queued. Once more than highWaterMark bytes
+ *   are queued the connection stops being read (the client's sends then
+ *   stall in TCP) until the queue drains below half of that
+ *
+ * Handler callbacks run on the connection's event-loop thread and must
+ * not block. Connection.send() may only be called from that thread.
+ *
+ * Note: SO_REUSEPORT lets any process of the same user bind the port
+ * too; use it for servers you control.
+ */
+class NioServer implements Closeable {
+    public static final int BUFFER_SIZE = 4096;
+
+    public enum Framing { LINE, LENGTH_PREFIXED }
+
+    public interface Handler {
+        // message is a view of the read buffer, valid only during the call
+        void onMessage(Connection connection, ByteBuffer message);
+    }
+
+    private final Framing framing;
+    private final Handler handler;
+    private final int highWaterMark;
+    private final int lowWaterMark;
+    private final EventLoop[] loops;
+    private final boolean reusePort;
+    private final int port;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean closed;
+
+    public NioServer(InetSocketAddress address, Framing framing, Handler handler) throws IOException {
+        this(address, Runtime.getRuntime().availableProcessors(), framing, handler, 64 * 1024);
+    }
+
+    public NioServer(InetSocketAddress address, int eventLoops, Framing framing, Handler handler,
+                     int highWaterMark) throws IOException {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("eventLoops must be >= 1");
+        }
+        this.framing = framing;
+        this.handler = handler;
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = highWaterMark / 2;
+        this.loops = new EventLoop[eventLoops];
+
+        ServerSocketChannel first = ServerSocketChannel.open();
+        this.reusePort = eventLoops > 1
+                && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        try {
+            if (reusePort) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            first.bind(address, 4096);
+            this.port = ((InetSocketAddress) first.getLocalAddress()).getPort();
+            InetSocketAddress bound = new InetSocketAddress(address.getAddress(), port);
+            for (int i = 0; i < eventLoops; i++) {
+                ServerSocketChannel listener = null;
+                if (i == 0) {
+                    listener = first;
+                } else if (reusePort) {
+                    listener = ServerSocketChannel.open();
+                    listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    listener.bind(bound, 4096);
+                }
+                loops[i] = new EventLoop(i, listener);
+            }
+        } catch (IOException e) {
+            first.close();
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.closeQuietly();
+                }
+            }
+            throw e;
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public int eventLoops() {
+        return loops.length;
+    }
+
+    public boolean usesReusePort() {
+        return reusePort;
+    }
+
+    public int connections() {
+        return connections.get();
+    }
+
+    // Direct buffers ever allocated across all loops (the pools reuse them)
+    public int buffersAllocated() {
+        int total = 0;
+        for (EventLoop loop : loops) {
+            total += loop.allocated;
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (EventLoop loop : loops) {
+            try {
+                loop.thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------
+
+    public final class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer readBuffer;                    // only while a frame is incomplete
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>(2); // fill mode
+        private int pendingBytes;
+        private boolean readPaused;
+        private boolean closed;
+
+        private Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        // Queue the parts as one framed message; flushed after the handler returns
+        public void send(ByteBuffer... parts) {
+            if (closed) {
+                return;
+            }
+            int length = 0;
+            for (ByteBuffer part : parts) {
+                length += part.remaining();
+            }
+            if (framing == Framing.LENGTH_PREFIXED) {
+                ByteBuffer prefix = loop.scratch.clear().putInt(length).flip();
+                enqueue(prefix);
+            }
+            for (ByteBuffer part : parts) {
+                enqueue(part.duplicate());
+            }
+            if (framing == Framing.LINE) {
+                enqueue(loop.scratch.clear().put((byte) '\n').flip());
+            }
+        }
+
+        public SocketAddress remoteAddress() {
+            try {
+                return channel.getRemoteAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        public int pendingBytes() {
+            return pendingBytes;
+        }
+
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+            if (readBuffer != null) {
+                loop.release(readBuffer);
+                readBuffer = null;
+            }
+            ByteBuffer buffer;
+            while ((buffer = writeQueue.pollFirst()) != null) {
+                loop.release(buffer);
+            }
+            pendingBytes = 0;
+            connections.decrementAndGet();
+        }
+
+        private void enqueue(ByteBuffer src) {
+            pendingBytes += src.remaining();
+            while (src.hasRemaining()) {
+                ByteBuffer tail = writeQueue.peekLast();
+                if (tail == null || !tail.hasRemaining()) {
+                    tail = loop.acquire();
+                    writeQueue.addLast(tail);
+                }
+                int n = Math.min(tail.remaining(), src.remaining());
+                tail.put(src.slice(src.position(), n));
+                src.position(src.position() + n);
+            }
+        }
+
+        // Write as much as the socket takes; false if the connection failed
+        private boolean flush() {
+            try {
+                ByteBuffer head;
+                while ((head = writeQueue.peekFirst()) != null) {
+                    head.flip();
+                    pendingBytes -= channel.write(head);
+                    if (head.hasRemaining()) {
+                        head.compact();
+                        break;
+                    }
+                    loop.release(writeQueue.pollFirst());
+                }
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+            updateInterest();
+            return true;
+        }
+
+        private void updateInterest() {
+            if (closed) {
+                return;
+            }
+            if (!readPaused && pendingBytes > highWaterMark) {
+                readPaused = true;
+            } else if (readPaused && pendingBytes <= lowWaterMark) {
+                readPaused = false;
+            }
+            int ops = (readPaused ? 0 : SelectionKey.OP_READ)
+                    | (pendingBytes > 0 ? SelectionKey.OP_WRITE : 0);
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+
+        private void onReadable() {
+            ByteBuffer buffer = readBuffer != null ? readBuffer : loop.acquire();
+            readBuffer = null;
+            int n;
+            try {
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                loop.release(buffer);
+                close();
+                return;
+            }
+            buffer.flip();
+            boolean ok = decode(buffer);
+            if (closed || !ok) {
+                loop.release(buffer);
+                close();
+                return;
+            }
+            if (buffer.hasRemaining()) {
+                buffer.compact();
+                readBuffer = buffer;
+            } else {
+                loop.release(buffer);
+            }
+            if (pendingBytes > 0) {
+                flush();
+            } else {
+                updateInterest();
+            }
+        }
+
+        // Deliver every complete frame; false on a protocol violation
+        private boolean decode(ByteBuffer buffer) {
+            while (buffer.hasRemaining() && !closed) {
+                int start = buffer.position();
+                int end;
+                int next;
+                if (framing == Framing.LINE) {
+                    int newline = -1;
+                    for (int i = start; i < buffer.limit(); i++) {
+                        if (buffer.get(i) == '\n') {
+                            newline = i;
+                            break;
+                        }
+                    }
+                    if (newline < 0) {
+                        return buffer.position() > 0 || buffer.limit() < buffer.capacity();
+                    }
+                    next = newline + 1;
+                    end = newline > start && buffer.get(newline - 1) == '\r' ? newline - 1 : newline;
+                } else {
+                    if (buffer.remaining() < 4) {
+                        return true;
+                    }
+                    int length = buffer.getInt(start);
+                    if (length < 0 || length > BUFFER_SIZE - 4) {
+                        return false;
+                    }
+                    if (buffer.remaining() < 4 + length) {
+                        return true;
+                    }
+                    start += 4;
+                    end = start + length;
+                    next = end;
+                }
+                buffer.position(next);
+                try {
+                    handler.onMessage(this, buffer.slice(start, end - start).asReadOnlyBuffer());
+                } catch (RuntimeException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // ---------------------------------------------------------------
+
+    private final class EventLoop implements Runnable {
+        private static final int MAX_POOLED = 1024;
+
+        final Selector selector;
+        final ServerSocketChannel listener;              // null: fed by loop 0
+        final Thread thread;
+        final Queue<SocketChannel> handedOver = new ConcurrentLinkedQueue<>();
+        final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+        final ByteBuffer scratch = ByteBuffer.allocate(4);
+        volatile int allocated;
+        private int nextLoop;
+
+        EventLoop(int index, ServerSocketChannel listener) throws IOException {
+            this.listener = listener;
+            this.selector = Selector.open();
+            if (listener != null) {
+                listener.configureBlocking(false);
+                listener.register(selector, SelectionKey.OP_ACCEPT);
+            }
+            this.thread = new Thread(this, "nio-loop-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = pool.pollFirst();
+            if (buffer == null) {
+                allocated++;
+                buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            return buffer;
+        }
+
+        void release(ByteBuffer buffer) {
+            if (pool.size() < MAX_POOLED) {
+                pool.addFirst(buffer.clear());
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select(this::onReady);
+                    SocketChannel channel;
+                    while ((channel = handedOver.poll()) != null) {
+                        register(channel);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (!closed) {
+                    System.out.println(thread.getName() + " stopped: " + e);
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection connection) {
+                        connection.close();
+                    }
+                }
+                closeQuietly();
+            }
+        }
+
+        private void onReady(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            Connection connection = (Connection) key.attachment();
+            if (key.isWritable() && !connection.flush()) {
+                return;
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable();
+            }
+        }
+
+        private void accept() {
+            try {
+                SocketChannel channel;
+                while ((channel = listener.accept()) != null) {
+                    EventLoop target = this;
+                    if (!reusePort) {
+                        // Wrap instead of counting up: after 2^31 accepts
+                        // nextLoop++ % n would go negative
+                        target = loops[nextLoop];
+                        nextLoop = (nextLoop + 1) % loops.length;
+                    }
+                    if (target == this) {
+                        register(channel);
+                    } else {
+                        target.handedOver.add(channel);
+                        target.selector.wakeup();
+                    }
+                }
+            } catch (IOException e) {
+                // out of file descriptors and the like: the client retries
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            Connection connection = new Connection(this, channel);
+            connections.incrementAndGet();
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                if (listener != null) {
+                    listener.close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                // shutting down anyway
+            }
+        }
+    }
+}
+
+
+// ============================================================
+// THREAD-PER-CONNECTION SERVER (VIRTUAL THREADS)
+// ============================================================
+
+/*
+ * Blocking-style line server: every accepted Socket is served by one
+ * task on the given executor, written as plain readLine/write code.
+ *
+ * With a virtual-thread-per-task executor (Java 21+) a task blocked on
+ * a socket parks its virtual thread and frees the carrier thread, so
+ * tens of thousands of connections cost heap-allocated stacks of a few
+ * KB each instead of one OS thread apiece. A fixed platform pool of N
+ * threads serves at most N connections; the rest queue until one
+ * closes.
+ *
+ * - maxConnections: the acceptor takes a permit before accept(), so
+ *   excess clients wait in the kernel backlog instead of piling up
+ * - idleTimeoutMillis: a connection that sends nothing for this long
+ *   is closed (SO_TIMEOUT on the blocking read)
+ * - shutdown(grace): stop accepting, close idle connections, let
+ *   requests in progress finish and send their reply, then force-close
+ *   whatever is still open when the grace period ends
+ *
+ * Requests and replies are UTF-8 lines. Per-connection buffers are kept
+ * small (512 bytes) since there may be very many connections.
+ */
+class ThreadPerConnectionServer implements Closeable {
+    public interface RequestHandler {
+        String handle(String request) throws IOException;
+    }
+
+    private static final int IDLE = 0;
+    private static final int BUSY = 1;
+    private static final int CLOSED = 2;
+
+    private final ServerSocket listener;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int idleTimeoutMillis;
+    private final RequestHandler handler;
+    private final Set<ClientConnection> open = ConcurrentHashMap.newKeySet();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong idleTimeouts = new AtomicLong();
+    private final Thread acceptor;
+    private volatile boolean draining;
+
+    public ThreadPerConnectionServer(InetSocketAddress address, ExecutorService executor, int maxConnections,
+                                     int idleTimeoutMillis, RequestHandler handler) throws IOException {
+        this.listener = new ServerSocket();
+        this.listener.bind(address, 4096);
+        this.executor = executor;
+        this.permits = new Semaphore(maxConnections);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.handler = handler;
+        this.acceptor = new Thread(this::acceptLoop, "acceptor-" + listener.getLocalPort());
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() if this JDK has it (21+), else null
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public int port() {
+        return listener.getLocalPort();
+    }
+
+    public int connections() {
+        return open.size();
+    }
+
+    public long accepted() {
+        return accepted.get();
+    }
+
+    public long idleTimeouts() {
+        return idleTimeouts.get();
+    }
+
+    // True if every connection finished within the grace period
+    public boolean shutdown(long graceMillis) throws InterruptedException {
+        draining = true;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // accept() fails either way
+        }
+        acceptor.interrupt();
+        acceptor.join();
+        for (ClientConnection connection : open) {
+            connection.closeWhenIdle();
+        }
+        executor.shutdown();
+        if (executor.awaitTermination(graceMillis, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        for (ClientConnection connection : open) {
+            connection.forceClose();
+        }
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        return false;
+    }
+
+    @Override
+    public void close() {
+        try {
+            shutdown(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!draining) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Socket socket;
+            try {
+                socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(idleTimeoutMillis);
+            } catch (IOException e) {
+                permits.release();
+                continue; // listener closed (draining) or the client gave up
+            }
+            accepted.incrementAndGet();
+            ClientConnection connection = new ClientConnection(socket);
+            open.add(connection);
+            try {
+                executor.execute(connection::serve);
+            } catch (RejectedExecutionException | OutOfMemoryError e) {
+                // Pool full, or no native thread could be started: refuse this
+                // client but keep accepting
+                connection.forceClose();
+                open.remove(connection);
+                permits.release();
+            }
+        }
+    }
+
+    private final class ClientConnection {
+        private final Socket socket;
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+
+        ClientConnection(Socket socket) {
+            this.socket = socket;
+        }
+
+        void serve() {
+            try (socket) {
+                InputStream in = new BufferedInputStream(socket.getInputStream(), 512);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 512);
+                ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+                while (!draining && readLine(in, line)) {
+                    if (!state.compareAndSet(IDLE, BUSY)) {
+                        break;                   // closed by shutdown
+                    }
+                    String request = line.toString(java.nio.charset.StandardCharsets.UTF_8);
+                    if (request.endsWith("\r")) {
+                        request = request.substring(0, request.length() - 1);
+                    }
+                    String reply = handler.handle(request);
+                    out.write(reply.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                    out.write('\n');
+                    out.flush();
+                    if (!state.compareAndSet(BUSY, IDLE)) {
+                        break;                   // shutdown began mid-request
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                idleTimeouts.incrementAndGet();
+            } catch (IOException e) {
+                // client went away, or forced close during shutdown
+            } finally {
+                state.set(CLOSED);
+                open.remove(this);
+                permits.release();
+            }
+        }
+
+        // False at end of stream
+        private boolean readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+            line.reset();
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b == '\n') {
+                    return true;
+                }
+                if (line.size() >= 64 * 1024) {
+                    throw new IOException("Line too long");
+                }
+                line.write(b);
+            }
+            return false;
+        }
+
+        void closeWhenIdle() {
+            if (state.compareAndSet(IDLE, CLOSED)) {
+                forceClose();                    // unblocks the pending read
+            } else {
+                state.compareAndSet(BUSY, CLOSED);
+            }
+        }
+
+        void forceClose() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
+
+
+// ============================================================
+// LATENCY HISTOGRAM (HDR-STYLE)
+// ============================================================
+
+/*
+ * Log-linear histogram of long values (nanoseconds here), in the style
+ * of HdrHistogram.
+ *
+ * Values below 2048 get one bucket each. Above that, every power-of-two
+ * range is split into 1024 equal buckets, so any recorded value is
+ * off by at most 1/1024 (~0.1%) whatever its magnitude. Recording is
+ * an array increment and the whole range (1 ns .. ~2.4 hours) fits in
+ * ~35K counters, so you can keep every sample and still get exact-enough
+ * tail percentiles. Compare sorting all samples (memory grows with the
+ * run) or averaging (hides the tail completely).
+ *
+ * Not thread-safe: record from one thread, or keep one histogram per
+ * thread and add() them together.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 11;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS >> 1;
+    private static final long HIGHEST_TRACKABLE = (1L << 43) - 1;
+
+    private final long[] counts = new long[indexOf(HIGHEST_TRACKABLE) + 1];
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    // Negative values count as 0; values beyond ~2.4 hours are clamped
+    public void record(long value) {
+        long v = Math.min(Math.max(value, 0), HIGHEST_TRACKABLE);
+        counts[indexOf(v)]++;
+        totalCount++;
+        sum += v;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long count() {
+        return totalCount;
+    }
+
+    public long min() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    // Smallest value v such that `percentile`% of samples are <= v
+    public long percentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    // Bucket index: the top SUB_BUCKET_BITS significant bits of the value
+    private static int indexOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalent(int index) {
+        int shift = index < SUB_BUCKETS ? 0 : index / HALF - 1;
+        long sub = index - (long) shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
+
+
+// ============================================================
+// LOAD GENERATOR
+// ============================================================
+
+/*
+ * Drives a TCP or HTTP/1.1 endpoint from one selector thread over a
+ * fixed set of keep-alive connections, one request in flight per
+ * connection.
+ *
+ * CLOSED LOOP (runClosedLoop): every connection sends its next request
+ * as soon as the previous reply arrives. Offered load adapts to the
+ * server: when it stalls, the generator stalls with it and simply sends
+ * less. A 1-second hiccup then shows up as one slow sample instead of
+ * the hundreds of requests that real users would have sent meanwhile.
+ * This is "coordinated omission".
+ *
+ * OPEN LOOP (runOpenLoop): requests are scheduled at a fixed rate no
+ * matter how the server is doing. A request that cannot be sent on
+ * time (all connections busy) waits in a backlog, and its latency is
+ * measured from its *scheduled* start, which corrects for coordinated
+ * omission. The latency from the actual send is kept too
+ * (uncorrected), to show how much a naive tool would under-report.
+ *
+ * Requests scheduled before the end of the run are still sent and
+ * measured afterwards (up to 10 s); anything left is reported as
+ * unfinished.
+ */
+class LoadGenerator {
+    private static final long REPORT_INTERVAL_NANOS = 1_000_000_000L;
+    private static final long DRAIN_TIMEOUT_NANOS = 10_000_000_000L;
+
+    public interface Protocol {
+        // Bytes of one request; the buffer is only read (duplicated per send)
+        ByteBuffer request();
+
+        // Length of the first complete response at received.position(), or -1
+        int responseLength(ByteBuffer received);
+
+        default boolean succeeded(ByteBuffer response) {
+            return true;
+        }
+    }
+
+    // One '\n'-terminated line out, one line back (e.g. an echo server)
+    public static Protocol lines(String message) {
+        ByteBuffer request = ByteBuffer.wrap((message + "\n").getBytes(java.nio.charset.StandardCharsets.UTF_8))
+                .asReadOnlyBuffer();
+        return new Protocol() {
+            @Override
+            public ByteBuffer request() {
+                return request;
+            }
+
+            @Override
+            public int responseLength(ByteBuffer received) {
+                for (int i = received.position(); i < received.limit(); i++) {
+                    if (received.get(i) == '\n') {
+                        return i + 1 - received.position();
+                    }
+                }
+                return -1;
+            }
+        };
+    }
+
+    // Keep-alive GET; responses must carry a Content-Length (no chunked bodies)
+    public static Protocol httpGet(String host, int port, String path) {
+        String head = "GET " + path + " HTTP/1.1\r\nHost: " + host + ":" + port + "\r\n\r\n";
+        ByteBuffer request = ByteBuffer.wrap(head.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1))
+                .asReadOnlyBuffer();
+        return new Protocol() {
+            @Override
+            public ByteBuffer request() {
+                return request;
+            }
+
+            @Override
+            public int responseLength(ByteBuffer received) {
+                int start = received.position();
+                for (int i = start; i + 3 < received.limit(); i++) {
+                    if (received.get(i) == '\r' && received.get(i + 1) == '\n'
+                            && received.get(i + 2) == '\r' && received.get(i + 3) == '\n') {
+                        int headerLength = i + 4 - start;
+                        byte[] bytes = new byte[headerLength];
+                        received.get(start, bytes);
+                        int body = bodyLength(new String(bytes, java.nio.charset.StandardCharsets.ISO_8859_1));
+                        return received.limit() - start >= headerLength + body ? headerLength + body : -1;
+                    }
+                }
+                return -1;
+            }
+
+            @Override
+            public boolean succeeded(ByteBuffer response) {
+                return response.remaining() > 9 && response.get(response.position() + 9) == '2';
+            }
+
+            private int bodyLength(String headers) {
+                int status = Integer.parseInt(headers.substring(9, 12));
+                if (status == 204 || status == 304 || status / 100 == 1) {
+                    return 0;
+                }
+                for (String line : headers.split("\r\n")) {
+                    int colon = line.indexOf(':');
+                    if (colon < 0) {
+                        continue;
+                    }
+                    String name = line.substring(0, colon).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        return Integer.parseInt(line.substring(colon + 1).trim());
+                    }
+                    if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                        throw new IllegalStateException("Chunked responses are not supported");
+                    }
+                }
+                throw new IllegalStateException("Response without Content-Length");
+            }
+        };
+    }
+
+    // Completed requests and latency for one reporting interval (the last is longer: it includes the drain)
+    public record Interval(long startMillis, long endMillis, long completed, long p50Nanos, long p99Nanos,
+                           long maxNanos) {
+        public double throughput() {
+            return completed * 1000.0 / Math.max(1, endMillis - startMillis);
+        }
+    }
+
+    public static final class Result {
+        private final String description;
+        private final LatencyHistogram latency;
+        private final LatencyHistogram uncorrected;     // open loop only
+        private final List<Interval> timeline;
+        private final long errors;
+        private final long unfinished;
+        private final long elapsedNanos;
+
+        private Result(String description, LatencyHistogram latency, LatencyHistogram uncorrected,
+                       List<Interval> timeline, long errors, long unfinished, long elapsedNanos) {
+            this.description = description;
+            this.latency = latency;
+            this.uncorrected = uncorrected;
+            this.timeline = timeline;
+            this.errors = errors;
+            this.unfinished = unfinished;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public LatencyHistogram latency() {
+            return latency;
+        }
+
+        public LatencyHistogram uncorrectedLatency() {
+            return uncorrected;
+        }
+
+        public List<Interval> timeline() {
+            return timeline;
+        }
+
+        public long completed() {
+            return latency.count();
+        }
+
+        public long errors() {
+            return errors;
+        }
+
+        public long unfinished() {
+            return unfinished;
+        }
+
+        public double throughput() {
+            return latency.count() * 1e9 / elapsedNanos;
+        }
+
+        public void print() {
+            System.out.printf("%s: %,d requests in %.1f s (%,.0f req/s), errors %d, unfinished %d%n",
+                    description, completed(), elapsedNanos / 1e9, throughput(), errors, unfinished);
+            printPercentiles(uncorrected == null ? "latency" : "corrected", latency);
+            if (uncorrected != null) {
+                printPercentiles("uncorrected", uncorrected);
+            }
+            for (Interval interval : timeline) {
+                System.out.printf("    %5.1f-%-5.1f s %,9.0f req/s   p50 %8.3f  p99 %8.3f  max %8.3f ms%n",
+                        interval.startMillis() / 1000.0, interval.endMillis() / 1000.0, interval.throughput(),
+                        interval.p50Nanos() / 1e6, interval.p99Nanos() / 1e6, interval.maxNanos() / 1e6);
+            }
+        }
+
+        private static void printPercentiles(String label, LatencyHistogram histogram) {
+            System.out.printf("  %-11s ms  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n", label,
+                    histogram.percentile(50) / 1e6, histogram.percentile(90) / 1e6,
+                    histogram.percentile(99) / 1e6, histogram.percentile(99.9) / 1e6, histogram.max() / 1e6);
+        }
+    }
+
+    private final InetSocketAddress target;
+    private final Protocol protocol;
+    private final int connections;
+
+    public LoadGenerator(InetSocketAddress target, Protocol protocol, int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("connections must be >= 1");
+        }
+        this.target = target;
+        this.protocol = protocol;
+        this.connections = connections;
+    }
+
+    public Result runClosedLoop(Duration duration) throws IOException {
+        return run(0, duration.toNanos());
+    }
+
+    public Result runOpenLoop(double requestsPerSecond, Duration duration) throws IOException {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("requestsPerSecond must be > 0");
+        }
+        return run(requestsPerSecond, duration.toNanos());
+    }
+
+    private Result run(double rate, long durationNanos) throws IOException {
+        try (Selector selector = Selector.open()) {
+            ArrayDeque<Client> idle = new ArrayDeque<>(connections);
+            try {
+                for (int i = 0; i < connections; i++) {
+                    idle.add(new Client(SocketChannel.open(target), selector));
+                }
+                return drive(selector, idle, rate, durationNanos);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+            }
+        }
+    }
+
+    private Result drive(Selector selector, ArrayDeque<Client> idle, double rate, long durationNanos)
+            throws IOException {
+        boolean openLoop = rate > 0;
+        double spacingNanos = openLoop ? 1e9 / rate : 0;
+        ArrayDeque<Long> backlog = new ArrayDeque<>();
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram uncorrected = openLoop ? new LatencyHistogram() : null;
+        LatencyHistogram current = new LatencyHistogram();
+        List<Interval> timeline = new ArrayList<>();
+        long[] counters = new long[2];                  // {errors, in flight}
+
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long intervalStart = start;
+        long scheduled = 0;
+        long nextScheduled = start;
+        long now = start;
+        while (true) {
+            if (openLoop) {
+                while (nextScheduled <= now && nextScheduled < end) {
+                    backlog.add(nextScheduled);
+                    nextScheduled = start + (long) (++scheduled * spacingNanos);
+                }
+            }
+            while (!idle.isEmpty()) {
+                long intended;
+                if (openLoop) {
+                    if (backlog.isEmpty()) {
+                        break;
+                    }
+                    intended = backlog.poll();
+                } else if (now < end) {
+                    intended = now;
+                } else {
+                    break;
+                }
+                Client client = idle.poll();
+                if (client.send(intended, now)) {
+                    counters[1]++;
+                } else {
+                    counters[0]++;
+                }
+            }
+
+            // The last interval runs on through the drain instead of
+            // leaving a few-millisecond tail that extrapolates to req/s
+            boolean lastInterval = intervalStart + 2 * REPORT_INTERVAL_NANOS > end;
+            if (!lastInterval && now - intervalStart >= REPORT_INTERVAL_NANOS) {
+                timeline.add(snapshot(intervalStart - start, REPORT_INTERVAL_NANOS, current));
+                current.reset();
+                intervalStart += REPORT_INTERVAL_NANOS;
+                lastInterval = intervalStart + 2 * REPORT_INTERVAL_NANOS > end;
+            }
+            if (now >= end && backlog.isEmpty() && counters[1] == 0) {
+                break;
+            }
+            if (now >= end + DRAIN_TIMEOUT_NANOS || selector.keys().isEmpty()) {
+                break;                                 // stuck, or every connection failed
+            }
+
+            long wake = now < end ? (openLoop ? nextScheduled : end) : end + DRAIN_TIMEOUT_NANOS;
+            if (!lastInterval) {
+                wake = Math.min(wake, intervalStart + REPORT_INTERVAL_NANOS);
+            }
+            Consumer<SelectionKey> onReady = key -> {
+                Client client = (Client) key.attachment();
+                long at = System.nanoTime();
+                if (!client.onReady(at, latency, uncorrected, current, counters)) {
+                    return;                             // closed
+                }
+                if (!client.busy) {
+                    if (!openLoop && at < end) {
+                        if (client.send(at, at)) {
+                            counters[1]++;
+                        } else {
+                            counters[0]++;
+                        }
+                    } else {
+                        idle.add(client);
+                    }
+                }
+            };
+            // Selector timeouts are whole milliseconds: round down, and poll
+            // for the last sub-millisecond so sends aren't late by up to 1 ms
+            long waitMillis = (wake - now) / 1_000_000;
+            if (waitMillis > 0) {
+                selector.select(onReady, waitMillis);
+            } else if (selector.selectNow(onReady) == 0) {
+                Thread.yield();
+            }
+            now = System.nanoTime();
+        }
+        long elapsed = now - start;
+        if (current.count() > 0) {
+            timeline.add(snapshot(intervalStart - start, now - intervalStart, current));
+        }
+        String description = openLoop
+                ? String.format("Open loop, %,.0f req/s over %d connections", rate, connections)
+                : String.format("Closed loop, %d connections", connections);
+        return new Result(description, latency, uncorrected, timeline, counters[0],
+                backlog.size() + counters[1], elapsed);
+    }
+
+    private static Interval snapshot(long offsetNanos, long lengthNanos, LatencyHistogram histogram) {
+        return new Interval(offsetNanos / 1_000_000, (offsetNanos + lengthNanos) / 1_000_000, histogram.count(),
+                histogram.percentile(50), histogram.percentile(99), histogram.max());
+    }
+
+    private final class Client {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer out;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        long intended;
+        long sent;
+        boolean busy;
+
+        Client(SocketChannel channel, Selector selector) throws IOException {
+            this.channel = channel;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        // False if the connection failed (and was closed)
+        boolean send(long intendedAt, long now) {
+            out = protocol.request().duplicate();
+            intended = intendedAt;
+            sent = now;
+            busy = true;
+            try {
+                channel.write(out);
+            } catch (IOException e) {
+                busy = false;
+                close();
+                return false;
+            }
+            key.interestOps(out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            return true;
+        }
+
+        // Handle readiness; false if the connection is now closed
+        boolean onReady(long now, LatencyHistogram latency, LatencyHistogram uncorrected,
+                        LatencyHistogram current, long[] counters) {
+            try {
+                if (key.isWritable()) {
+                    channel.write(out);
+                    if (!out.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                if (!key.isReadable()) {
+                    return true;
+                }
+                if (channel.read(in) < 0) {
+                    throw new EOFException("Server closed the connection");
+                }
+                in.flip();
+                int length;
+                while ((length = protocol.responseLength(in)) >= 0) {
+                    if (!busy) {
+                        throw new IOException("Unexpected response data");
+                    }
+                    ByteBuffer response = in.slice(in.position(), length);
+                    if (protocol.succeeded(response)) {
+                        latency.record(now - intended);
+                        current.record(now - intended);
+                        if (uncorrected != null) {
+                            uncorrected.record(now - sent);
+                        }
+                    } else {
+                        counters[0]++;
+                    }
+                    counters[1]--;
+                    busy = false;
+                    in.position(in.position() + length);
+                }
+                in.compact();
+                if (!in.hasRemaining()) {
+                    in = ByteBuffer.allocate(in.capacity() * 2).put(in.flip());
+                }
+                return true;
+            } catch (IOException | RuntimeException e) {
+                if (busy) {
+                    counters[0]++;
+                    counters[1]--;
+                    busy = false;
+                }
+                close();
+                return false;
+            }
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -27,10 +27,18 @@
  *
  * CUSTOM DATA STRUCTURES:
  * - Linked List
+ * - Unrolled Linked List (array chunks)
  * - Binary Search Tree
- * - Graph
+ * - B+ Tree (balanced, primitive long keys, range queries)
+ * - Graph (adjacency list, CSR with parallel BFS)
+ * - Weighted Graph (Dijkstra, A*, indexed 4-ary heap)
  * - Trie
  * - Bloom Filter
+ * - Primitive Hash Maps (open addressing, no boxing)
+ * - Radix Trie (path-compressed, top-K autocomplete)
+ * - Memory-mapped Trie snapshot (read-only, zero deserialization)
+ * - W-TinyLFU Cache (concurrent, size-bounded)
+ * - Off-Heap Cache (direct memory, TTL, segmented LRU)
  *
  * ALGORITHMS:
  * - Binary Search
@@ -39,11 +47,23 @@
  * - Sorting
  */
 
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class Lesson33_AdvancedCollections {
+    // Benchmarks write results here so the JIT can't drop the measured loops
+    static volatile long sink;
+
     public static void main(String[] args) {
 
         System.out.println("=== ADVANCED COLLECTIONS & DATA STRUCTURES ===\n");
@@ -383,7 +403,325 @@ public class Lesson33_AdvancedCollections {
 
 
         // ============================================================
-        // 14. BIG O COMPLEXITY REFERENCE
+        // 14. CONCURRENT W-TINYLFU CACHE
+        // ============================================================
+
+        System.out.println("--- Concurrent W-TinyLFU Cache ---");
+
+        // LRUCache above is an access-ordered LinkedHashMap: every get() rewires
+        // the linked list, so it needs a global lock to be shared across threads.
+        // ConcurrentTinyLfuCache reads from a ConcurrentHashMap and only *records*
+        // the access in a lossy striped buffer; the LRU bookkeeping is replayed
+        // later by whichever thread wins the eviction lock.
+        ConcurrentTinyLfuCache<Integer, String> tinyLfu = new ConcurrentTinyLfuCache<>(3);
+        tinyLfu.put(1, "A");
+        tinyLfu.put(2, "B");
+        tinyLfu.put(3, "C");
+        tinyLfu.get(1);
+        tinyLfu.get(1);
+        tinyLfu.put(4, "D"); // admission: new key 4 must beat a cold victim
+        System.out.println("Get 1: " + tinyLfu.get(1) + " (frequently used, kept)");
+        System.out.println("Size: " + tinyLfu.size());
+
+        // Weight-based bound: the cache holds at most 10 "characters" of values
+        ConcurrentTinyLfuCache<String, String> weighted =
+                new ConcurrentTinyLfuCache<>(10, (k, v) -> v.length());
+        weighted.put("short", "abc");
+        weighted.put("long", "abcdefgh");
+        System.out.println("Weighted size: " + weighted.weightedSize() + " (max 10)");
+        System.out.println("Stats: " + tinyLfu.stats());
+
+        // Throughput under contention: synchronized LRUCache vs W-TinyLFU
+        System.out.println("Throughput (ops/ms), skewed read-through workload:");
+        for (int threads : new int[]{1, 4, 16, 64}) {
+            Map<Integer, String> lru = Collections.synchronizedMap(new LRUCache(1_000));
+            ConcurrentTinyLfuCache<Integer, String> lfu = new ConcurrentTinyLfuCache<>(1_000);
+            double lruOps = benchmarkCache(lru::get, lru::put, threads);
+            double lfuOps = benchmarkCache(lfu::get, lfu::put, threads);
+            System.out.printf("  %2d threads: LRUCache %,10.0f | W-TinyLFU %,10.0f%n",
+                    threads, lruOps, lfuOps);
+        }
+
+        System.out.println();
+
+
+        // ============================================================
+        // 15. RADIX TRIE & TOP-K AUTOCOMPLETE
+        // ============================================================
+
+        System.out.println("--- Radix Trie & Autocomplete ---");
+
+        // Trie above spends a HashMap (and a boxed Character) per character.
+        // RadixTrie collapses single-child chains into one edge labelled with
+        // a char[] and keeps children in sorted primitive arrays.
+        RadixTrie radix = new RadixTrie();
+        radix.insert("cat", 50);
+        radix.insert("car", 90);
+        radix.insert("card", 70);
+        radix.insert("care", 85);
+        radix.insert("careful", 10);
+        radix.insert("dog", 40);
+
+        System.out.println("Search 'car': " + radix.search("car"));
+        System.out.println("Search 'ca': " + radix.search("ca"));
+        System.out.println("Starts with 'carf': " + radix.startsWith("carf"));
+        System.out.println("Top 3 for 'ca': " + radix.completions("ca", 3));
+        System.out.println("Top 2 for 'care': " + radix.completions("care", 2));
+        System.out.println("Nodes: " + radix.nodeCount() + " for " + radix.size() + " words");
+
+        benchmarkTries(200_000);
+
+        System.out.println();
+
+
+        // ============================================================
+        // 16. MEMORY-MAPPED TRIE SNAPSHOT
+        // ============================================================
+
+        System.out.println("--- Memory-Mapped Trie Snapshot ---");
+
+        // Rebuilding a Trie means calling insert() for every word at startup.
+        // freeze() writes the built Trie as flat arrays; TrieSnapshot.open()
+        // maps that file read-only and answers queries straight from the
+        // mapping - no parsing, and the OS page cache is shared by every JVM
+        // that maps the same file.
+        try {
+            Path snapshotFile = Files.createTempFile("trie", ".snapshot");
+            trie.freeze(snapshotFile);
+
+            TrieSnapshot snapshot = TrieSnapshot.open(snapshotFile);
+            System.out.println("Snapshot: " + snapshot.nodeCount() + " nodes, "
+                    + Files.size(snapshotFile) + " bytes");
+            System.out.println("Search 'card': " + snapshot.search("card"));
+            System.out.println("Search 'ca': " + snapshot.search("ca"));
+            System.out.println("Starts with 'do': " + snapshot.startsWith("do"));
+            System.out.println("Starts with 'x': " + snapshot.startsWith("x"));
+
+            // A truncated file is rejected when it is opened, not mid-query
+            Path truncated = Files.createTempFile("trie", ".truncated");
+            byte[] bytes = Files.readAllBytes(snapshotFile);
+            Files.write(truncated, Arrays.copyOf(bytes, bytes.length / 2));
+            try {
+                TrieSnapshot.open(truncated);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Truncated snapshot: " + e.getMessage());
+            }
+            Files.deleteIfExists(truncated);
+
+            benchmarkSnapshotStartup(200_000, snapshotFile);
+            Files.deleteIfExists(snapshotFile);
+        } catch (IOException e) {
+            System.out.println("Snapshot error: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
+        // ============================================================
+        // 17. CSR GRAPH & PARALLEL BFS
+        // ============================================================
+
+        System.out.println("--- CSR Graph & Parallel BFS ---");
+
+        // Same edges as the Graph example, packed into offsets/targets arrays.
+        // BFS returns distances instead of printing.
+        CsrGraph csr = CsrGraph.fromEdges(6,
+                new int[]{0, 0, 1, 1, 2},
+                new int[]{1, 2, 3, 4, 5}, false);
+        System.out.println("Distances from 0: " + Arrays.toString(csr.parallelBfs(0)));
+
+        benchmarkCsrGraph(1_000_000, 8_000_000);
+
+        System.out.println();
+
+
+        // ============================================================
+        // 18. ITERATIVE DFS & CONNECTED COMPONENTS
+        // ============================================================
+
+        System.out.println("--- Iterative DFS & Components ---");
+
+        // Graph.DFS now uses an explicit stack, so a 200,000-vertex path no
+        // longer overflows the call stack (the old recursion did)
+        int pathLength = 200_000;
+        Graph path = new Graph(pathLength);
+        for (int v = 0; v + 1 < pathLength; v++) {
+            path.addEdge(v, v + 1);
+        }
+        int[] visitCount = new int[1];
+        path.DFS(0, vertex -> visitCount[0]++);
+        System.out.println("DFS visited " + visitCount[0] + " vertices along a path");
+
+        List<Integer> order = new ArrayList<>();
+        graph.toCsr().dfs(0, order::add);
+        System.out.println("CSR DFS order from 0: " + order);
+
+        // Two islands: {0,1,2} and {3,4}
+        CsrGraph islands = CsrGraph.fromEdges(5, new int[]{0, 1, 3}, new int[]{1, 2, 4}, false);
+        System.out.println("Connected components: " + Arrays.toString(islands.connectedComponents()));
+
+        // Directed: cycle 0->1->2->0, then 2->3, and cycle 3<->4
+        CsrGraph directed = CsrGraph.fromEdges(5,
+                new int[]{0, 1, 2, 2, 3, 4},
+                new int[]{1, 2, 0, 3, 4, 3}, true);
+        System.out.println("Strongly connected: " + Arrays.toString(directed.stronglyConnectedComponents()));
+
+        System.out.println();
+
+
+        // ============================================================
+        // 19. WEIGHTED SHORTEST PATHS (DIJKSTRA & A*)
+        // ============================================================
+
+        System.out.println("--- Weighted Shortest Paths ---");
+
+        // Edges: 0->1 (4), 0->2 (1), 2->1 (2), 1->3 (1), 2->3 (5)
+        // Going 0->2->1->3 (cost 4) beats both direct-looking routes
+        WeightedGraph roads = WeightedGraph.fromEdges(4,
+                new int[]{0, 0, 2, 1, 2},
+                new int[]{1, 2, 1, 3, 3},
+                new double[]{4, 1, 2, 1, 5});
+        System.out.println("Dijkstra from 0: " + Arrays.toString(roads.dijkstra(0)));
+        System.out.println("Distance 0 -> 3: " + roads.distance(0, 3));
+
+        benchmarkShortestPaths(1_000);
+
+        System.out.println();
+
+
+        // ============================================================
+        // 20. B+ TREE (BALANCED, PRIMITIVE KEYS)
+        // ============================================================
+
+        System.out.println("--- B+ Tree Map ---");
+
+        LongBPlusTreeMap<String> students = new LongBPlusTreeMap<>();
+        for (long id = 1000; id <= 1090; id += 10) {
+            students.put(id, "Student " + id);
+        }
+        students.remove(1040);
+        System.out.println("Get 1030: " + students.get(1030));
+        System.out.println("Floor of 1045: " + students.floor(1045));        // 1030
+        System.out.println("Ceiling of 1045: " + students.ceiling(1045));    // 1050
+        System.out.println("Ids in [1020, 1070): " + students.rangeCount(1020, 1070));
+        System.out.print("Range [1050, 1080): ");
+        students.forEachInRange(1050, 1080, (id, name) -> System.out.print(id + " "));
+        System.out.println();
+
+        // Sorted input is the worst case for BinarySearchTree (a linked list
+        // n levels deep). The B+ tree stays balanced and never recurses.
+        int sortedCount = 10_000;
+        long start = System.nanoTime();
+        BinarySearchTree sortedBst = new BinarySearchTree();
+        for (int i = 0; i < sortedCount; i++) {
+            sortedBst.insert(i);
+        }
+        double bstMs = (System.nanoTime() - start) / 1_000_000.0;
+
+        start = System.nanoTime();
+        LongBPlusTreeMap<Void> sortedTree = new LongBPlusTreeMap<>();
+        for (int i = 0; i < 1_000_000; i++) {
+            sortedTree.put(i, null);
+        }
+        double treeMs = (System.nanoTime() - start) / 1_000_000.0;
+
+        long[] sortedIds = new long[1_000_000];
+        for (int i = 0; i < sortedIds.length; i++) {
+            sortedIds[i] = 2L * i;
+        }
+        start = System.nanoTime();
+        LongBPlusTreeMap<Void> loaded = LongBPlusTreeMap.bulkLoad(sortedIds);
+        double loadMs = (System.nanoTime() - start) / 1_000_000.0;
+
+        System.out.printf("Sorted inserts: BST %,d keys %.0f ms | B+ tree 1,000,000 keys %.0f ms (height %d)%n",
+                sortedCount, bstMs, treeMs, sortedTree.height());
+        System.out.printf("Bulk load 1,000,000 sorted keys: %.0f ms (height %d)%n", loadMs, loaded.height());
+
+        System.out.println();
+
+
+        // ============================================================
+        // 21. UNROLLED LINKED LIST
+        // ============================================================
+
+        System.out.println("--- Unrolled Linked List ---");
+
+        UnrolledLinkedList<Integer> unrolled = new UnrolledLinkedList<>();
+        for (int i = 1; i <= 5; i++) {
+            unrolled.add(i * 10);
+        }
+        unrolled.add(2, 25);
+        unrolled.remove(0);
+        System.out.println("Element at index 1: " + unrolled.get(1));
+        System.out.println("Contains 25? " + unrolled.contains(25));
+        System.out.print("Chunks: ");
+        unrolled.printList();
+
+        benchmarkLists(200_000);
+
+        System.out.println();
+
+
+        // ============================================================
+        // 22. OFF-HEAP CACHE (DIRECT MEMORY, TTL, SEGMENTED LRU)
+        // ============================================================
+
+        System.out.println("--- Off-Heap Cache ---");
+
+        OffHeapCache offHeap = new OffHeapCache(3, 32);
+        offHeap.put(1, "A", 0);
+        offHeap.put(2, "B", 0);
+        offHeap.put(3, "C", 50);       // expires after 50 ms
+        offHeap.getString(1);           // 1 moves to the protected segment
+        offHeap.put(4, "D", 0);         // evicts 2, the probation LRU
+        System.out.println("Get 1: " + offHeap.getString(1) + ", get 2: " + offHeap.getString(2));
+        try {
+            Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Get 3 after TTL: " + offHeap.getString(3));
+        System.out.println("Stats: " + offHeap.stats());
+
+        benchmarkOffHeap(1_000_000);
+
+        System.out.println();
+
+
+        // ============================================================
+        // 23. PRIMITIVE HASH MAPS (NO BOXING)
+        // ============================================================
+
+        System.out.println("--- Primitive Hash Maps ---");
+
+        IntIntMap grades = new IntIntMap();
+        grades.put(1001, 90);
+        grades.put(1002, 85);
+        grades.addTo(1002, 5);
+        System.out.println("Grade of 1002: " + grades.get(1002, -1));
+        System.out.println("Grade of 9999: " + grades.get(9999, -1) + " (default)");
+
+        IntObjectMap<String> names = new IntObjectMap<>();
+        names.put(1001, "Alice");
+        names.put(0, "Zero is a valid key too");
+        System.out.println("Name of 1001: " + names.get(1001) + ", key 0: " + names.get(0));
+
+        IntSet visitedIds = new IntSet();
+        System.out.println("First add 7: " + visitedIds.add(7) + ", second add 7: " + visitedIds.add(7));
+
+        ConcurrentIntIntMap hits = new ConcurrentIntIntMap(1_000);
+        IntStream.range(0, 10_000).parallel().forEach(i -> hits.addTo(i % 10, 1));
+        System.out.println("Concurrent counts for key 3: " + hits.get(3, 0));
+
+        // Pass larger sizes (e.g. 50_000_000) with a big -Xmx to see the
+        // gap widen; HashMap<Integer,Integer> needs several GB at that size
+        benchmarkPrimitiveMaps(new int[]{10_000, 1_000_000});
+
+        System.out.println();
+
+
+        // ============================================================
+        // 24. BIG O COMPLEXITY REFERENCE
         // ============================================================
 
         System.out.println("--- Time Complexity Reference ---");
@@ -509,6 +847,414 @@ public class Lesson33_AdvancedCollections {
          * 8. Understand the implementation
          */
     }
+
+    // Helper method: hammer a cache from several threads with a skewed key
+    // distribution (a few hot keys, a long cold tail) and return ops/ms.
+    // Naive timing - see Lesson 40 for why real numbers need JMH.
+    static double benchmarkCache(Function<Integer, String> getter,
+                                 BiConsumer<Integer, String> putter, int threads) {
+        int opsPerThread = 400_000 / threads;
+        int[] keys = new int[1 << 16];
+        Random random = new Random(42);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (int) (Math.pow(random.nextDouble(), 4) * 20_000);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int offset = t * 7919;
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < opsPerThread; i++) {
+                    int key = keys[(offset + i) & (keys.length - 1)];
+                    if (getter.apply(key) == null) {
+                        putter.accept(key, "v" + key);
+                    }
+                }
+                return null;
+            }));
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+        double millis = (System.nanoTime() - begin) / 1_000_000.0;
+        return (opsPerThread * (double) threads) / millis;
+    }
+
+    // Helper method: memory per key and lookups/ms for Trie vs RadixTrie
+    // on a synthetic dictionary. Heap deltas from Runtime are approximate.
+    static void benchmarkTries(int wordCount) {
+        String[] words = new String[wordCount];
+        Random random = new Random(7);
+        for (int i = 0; i < wordCount; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 4 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(j < 2 ? 6 : 26)));
+            }
+            words[i] = sb.toString();
+        }
+
+        long before = usedMemory();
+        Trie trie = new Trie();
+        for (String word : words) {
+            trie.insert(word);
+        }
+        long trieBytes = usedMemory() - before;
+
+        before = usedMemory();
+        RadixTrie radix = new RadixTrie();
+        for (String word : words) {
+            radix.insert(word);
+        }
+        long radixBytes = usedMemory() - before;
+
+        System.out.printf("Memory per key: Trie %d bytes | RadixTrie %d bytes%n",
+                trieBytes / wordCount, radixBytes / wordCount);
+
+        for (int round = 0; round < 3; round++) { // warm-up rounds, last one printed
+            long start = System.nanoTime();
+            int found = 0;
+            for (String word : words) {
+                if (trie.search(word)) found++;
+            }
+            double trieMs = (System.nanoTime() - start) / 1_000_000.0;
+
+            start = System.nanoTime();
+            for (String word : words) {
+                if (radix.search(word)) found++;
+            }
+            double radixMs = (System.nanoTime() - start) / 1_000_000.0;
+
+            if (round == 2) {
+                System.out.printf("Lookups/ms: Trie %,.0f | RadixTrie %,.0f (found %d)%n",
+                        wordCount / trieMs, wordCount / radixMs, found);
+            }
+        }
+    }
+
+    // Helper method: startup cost of rebuilding a Trie word by word
+    // versus mapping a frozen snapshot of the same words
+    static void benchmarkSnapshotStartup(int wordCount, Path file) throws IOException {
+        String[] words = new String[wordCount];
+        Random random = new Random(11);
+        for (int i = 0; i < wordCount; i++) {
+            words[i] = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+        }
+
+        long start = System.nanoTime();
+        Trie trie = new Trie();
+        for (String word : words) {
+            trie.insert(word);
+        }
+        double rebuildMs = (System.nanoTime() - start) / 1_000_000.0;
+        trie.freeze(file);
+
+        start = System.nanoTime();
+        TrieSnapshot snapshot = TrieSnapshot.open(file);
+        double openMs = (System.nanoTime() - start) / 1_000_000.0;
+
+        int found = 0;
+        for (String word : words) {
+            if (snapshot.search(word)) found++;
+        }
+        System.out.printf("Startup for %,d words: rebuild %.1f ms | mmap snapshot %.3f ms (%d found)%n",
+                wordCount, rebuildMs, openMs, found);
+    }
+
+    // Helper method: CSR memory vs Graph's LinkedList<Integer>[] (measured
+    // on a 10x smaller copy), and sequential vs parallel BFS time
+    static void benchmarkCsrGraph(int vertices, int edges) {
+        Random random = new Random(3);
+        int[] from = new int[edges];
+        int[] to = new int[edges];
+        for (int i = 0; i < edges; i++) {
+            from[i] = random.nextInt(vertices);
+            to[i] = random.nextInt(vertices);
+        }
+
+        long start = System.nanoTime();
+        CsrGraph csr = CsrGraph.fromEdges(vertices, from, to, false);
+        double buildMs = (System.nanoTime() - start) / 1_000_000.0;
+
+        int sample = edges / 10;
+        long before = usedMemory();
+        Graph graph = new Graph(vertices / 10);
+        for (int i = 0; i < sample; i++) {
+            graph.addEdge(from[i] % (vertices / 10), to[i] % (vertices / 10));
+        }
+        long graphBytes = usedMemory() - before;
+        System.out.printf("Bytes per edge: Graph %.1f | CsrGraph %.1f (built %,d edges in %.0f ms)%n",
+                graphBytes / (double) sample, csr.memoryBytes() / (double) edges, edges, buildMs);
+
+        double seqMs = 0, parMs = 0;
+        boolean same = true;
+        for (int round = 0; round < 3; round++) {
+            start = System.nanoTime();
+            int[] expected = csr.bfs(0);
+            seqMs = (System.nanoTime() - start) / 1_000_000.0;
+
+            start = System.nanoTime();
+            int[] actual = csr.parallelBfs(0);
+            parMs = (System.nanoTime() - start) / 1_000_000.0;
+            same &= Arrays.equals(expected, actual);
+        }
+        System.out.printf("BFS: sequential %.1f ms | parallel %.1f ms on %d cores (same result: %b)%n",
+                seqMs, parMs, ForkJoinPool.commonPool().getParallelism(), same);
+    }
+
+    // Helper method: road-like grid (side x side vertices, 4 neighbors,
+    // edge cost = length x random congestion >= length) comparing
+    // PriorityQueue-based Dijkstra, indexed-heap Dijkstra, A* and a batch
+    static void benchmarkShortestPaths(int side) {
+        int vertices = side * side;
+        int edgeCount = 4 * side * (side - 1);
+        int[] from = new int[edgeCount];
+        int[] to = new int[edgeCount];
+        double[] cost = new double[edgeCount];
+        Random random = new Random(9);
+        int e = 0;
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                int v = y * side + x;
+                if (x + 1 < side) {
+                    for (int[] pair : new int[][]{{v, v + 1}, {v + 1, v}}) {
+                        from[e] = pair[0];
+                        to[e] = pair[1];
+                        cost[e++] = 1 + random.nextDouble();
+                    }
+                }
+                if (y + 1 < side) {
+                    for (int[] pair : new int[][]{{v, v + side}, {v + side, v}}) {
+                        from[e] = pair[0];
+                        to[e] = pair[1];
+                        cost[e++] = 1 + random.nextDouble();
+                    }
+                }
+            }
+        }
+        WeightedGraph grid = WeightedGraph.fromEdges(vertices, from, to, cost);
+        int source = 0;
+        int target = vertices - 1;
+        // Manhattan distance never overestimates: every edge costs >= 1
+        IntToDoubleFunction manhattan = v ->
+                Math.abs(v % side - target % side) + Math.abs(v / side - target / side);
+
+        double pqMs = 0, heapMs = 0, aStarMs = 0, pqDist = 0, heapDist = 0, aStarDist = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            pqDist = priorityQueueDijkstra(vertices, from, to, cost, source)[target];
+            pqMs = (System.nanoTime() - start) / 1_000_000.0;
+
+            start = System.nanoTime();
+            heapDist = grid.dijkstra(source)[target];
+            heapMs = (System.nanoTime() - start) / 1_000_000.0;
+
+            start = System.nanoTime();
+            aStarDist = grid.aStar(source, target, manhattan);
+            aStarMs = (System.nanoTime() - start) / 1_000_000.0;
+        }
+        System.out.printf("%,d vertices: PriorityQueue %.0f ms | IndexedMinHeap %.0f ms | A* %.0f ms%n",
+                vertices, pqMs, heapMs, aStarMs);
+        System.out.printf("  corner-to-corner: %.2f / %.2f / %.2f%n", pqDist, heapDist, aStarDist);
+
+        int[] sources = {0, side - 1, vertices - side, vertices - 1};
+        long start = System.nanoTime();
+        double[][] batch = grid.dijkstraBatch(sources, ForkJoinPool.commonPool());
+        System.out.printf("  batch of %d full Dijkstras: %.0f ms%n",
+                batch.length, (System.nanoTime() - start) / 1_000_000.0);
+    }
+
+    // Textbook version for comparison: boxed entries, lazy deletion
+    static double[] priorityQueueDijkstra(int vertices, int[] from, int[] to, double[] cost, int source) {
+        List<List<int[]>> adjacency = new ArrayList<>(vertices);
+        for (int v = 0; v < vertices; v++) {
+            adjacency.add(new ArrayList<>());
+        }
+        for (int i = 0; i < from.length; i++) {
+            adjacency.get(from[i]).add(new int[]{to[i], i});
+        }
+        double[] dist = new double[vertices];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[source] = 0;
+        PriorityQueue<double[]> queue = new PriorityQueue<>(Comparator.comparingDouble(entry -> entry[0]));
+        queue.add(new double[]{0, source});
+        while (!queue.isEmpty()) {
+            double[] entry = queue.poll();
+            int v = (int) entry[1];
+            if (entry[0] > dist[v]) {
+                continue; // stale entry
+            }
+            for (int[] edge : adjacency.get(v)) {
+                double candidate = dist[v] + cost[edge[1]];
+                if (candidate < dist[edge[0]]) {
+                    dist[edge[0]] = candidate;
+                    queue.add(new double[]{candidate, edge[0]});
+                }
+            }
+        }
+        return dist;
+    }
+
+    // Helper method: append / iterate / random get / middle insert for four
+    // lists. CustomLinkedList appends in O(n), so it only gets n / 20 items.
+    static void benchmarkLists(int n) {
+        int small = n / 20;
+        long start = System.nanoTime();
+        CustomLinkedList<Integer> custom = new CustomLinkedList<>();
+        for (int i = 0; i < small; i++) {
+            custom.add(i);
+        }
+        double customMs = (System.nanoTime() - start) / 1_000_000.0;
+        System.out.printf("CustomLinkedList append %,d: %.0f ms (O(n) per add)%n", small, customMs);
+
+        Map<String, List<Integer>> jdkLists = new LinkedHashMap<>();
+        jdkLists.put("ArrayList", new ArrayList<>());
+        jdkLists.put("LinkedList", new LinkedList<>());
+        Random random = new Random(5);
+        int[] probes = new int[2_000];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = random.nextInt(n);
+        }
+
+        System.out.printf("%-20s %10s %10s %10s %10s%n", "(ms)", "append", "iterate", "get x2000", "insert x2000");
+        for (int round = 0; round < 2; round++) { // first round warms up the JIT
+            for (Map.Entry<String, List<Integer>> entry : jdkLists.entrySet()) {
+                List<Integer> list = entry.getValue();
+                list.clear();
+                long t0 = System.nanoTime();
+                for (int i = 0; i < n; i++) list.add(i);
+                long t1 = System.nanoTime();
+                long sum = 0;
+                for (int value : list) sum += value;
+                long t2 = System.nanoTime();
+                for (int probe : probes) sum += list.get(probe);
+                long t3 = System.nanoTime();
+                for (int probe : probes) list.add(probe, probe);
+                long t4 = System.nanoTime();
+                sink = sum;
+                if (round == 1) printListTimings(entry.getKey(), t0, t1, t2, t3, t4);
+            }
+
+            UnrolledLinkedList<Integer> list = new UnrolledLinkedList<>();
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) list.add(i);
+            long t1 = System.nanoTime();
+            long sum = 0;
+            for (int value : list) sum += value;
+            long t2 = System.nanoTime();
+            for (int probe : probes) sum += list.get(probe);
+            long t3 = System.nanoTime();
+            for (int probe : probes) list.add(probe, probe);
+            long t4 = System.nanoTime();
+            sink = sum;
+            if (round == 1) printListTimings("UnrolledLinkedList", t0, t1, t2, t3, t4);
+        }
+    }
+
+    private static void printListTimings(String name, long t0, long t1, long t2, long t3, long t4) {
+        System.out.printf("%-20s %10.1f %10.1f %10.1f %10.1f%n", name,
+                (t1 - t0) / 1e6, (t2 - t1) / 1e6, (t3 - t2) / 1e6, (t4 - t3) / 1e6);
+    }
+
+    // Helper method: fill LRUCache and OffHeapCache with the same entries and
+    // compare heap footprint and the pause of a full GC over each
+    static void benchmarkOffHeap(int entries) {
+        long baseline = usedMemory();
+        LRUCache onHeap = new LRUCache(entries);
+        for (int i = 0; i < entries; i++) {
+            onHeap.put(i, "value-" + i);
+        }
+        long onHeapBytes = usedMemory() - baseline;
+        double onHeapPause = timeFullGc();
+        System.out.printf("LRUCache     %,d entries: heap %,d MB, full GC %.0f ms%n",
+                onHeap.size(), onHeapBytes >> 20, onHeapPause);
+        onHeap = null;
+
+        baseline = usedMemory();
+        OffHeapCache offHeap = new OffHeapCache(entries, 24);
+        for (int i = 0; i < entries; i++) {
+            offHeap.put(i, "value-" + i, 0);
+        }
+        long offHeapBytes = usedMemory() - baseline;
+        double offHeapPause = timeFullGc();
+        System.out.printf("OffHeapCache %,d entries: heap %,d MB, full GC %.0f ms, direct %,d MB%n",
+                offHeap.size(), Math.max(0, offHeapBytes) >> 20, offHeapPause,
+                offHeap.directMemoryBytes() >> 20);
+    }
+
+    // System.gc() is a stop-the-world full collection, so its wall time is
+    // the pause; it grows with the number of live objects the GC must trace
+    static double timeFullGc() {
+        long start = System.nanoTime();
+        System.gc();
+        return (System.nanoTime() - start) / 1_000_000.0;
+    }
+
+    // Helper method: put / get / iterate / remove, HashMap<Integer,Integer>
+    // vs IntIntMap, reported as ns per operation for the last of several
+    // rounds (small sizes get more rounds so the JIT has warmed up)
+    static void benchmarkPrimitiveMaps(int[] sizes) {
+        System.out.printf("%-12s %-10s %8s %8s %8s %8s%n", "(ns/op)", "entries", "put", "get", "iterate", "remove");
+        for (int n : sizes) {
+            int[] keys = new Random(n).ints(n).toArray();
+            int rounds = Math.max(2, Math.min(50, 1_000_000 / n));
+            for (int round = 0; round < rounds; round++) {
+                Map<Integer, Integer> boxed = new HashMap<>();
+                long t0 = System.nanoTime();
+                for (int key : keys) boxed.put(key, key);
+                long t1 = System.nanoTime();
+                long sum = 0;
+                for (int key : keys) sum += boxed.get(key);
+                long t2 = System.nanoTime();
+                for (Map.Entry<Integer, Integer> entry : boxed.entrySet()) sum += entry.getValue();
+                long t3 = System.nanoTime();
+                for (int key : keys) boxed.remove(key);
+                long t4 = System.nanoTime();
+                sink = sum;
+                if (round == rounds - 1) printMapTimings("HashMap", n, t0, t1, t2, t3, t4);
+
+                IntIntMap primitive = new IntIntMap();
+                t0 = System.nanoTime();
+                for (int key : keys) primitive.put(key, key);
+                t1 = System.nanoTime();
+                sum = 0;
+                for (int key : keys) sum += primitive.get(key, 0);
+                t2 = System.nanoTime();
+                long[] total = {0};
+                primitive.forEach((key, value) -> total[0] += value);
+                t3 = System.nanoTime();
+                for (int key : keys) primitive.remove(key, 0);
+                t4 = System.nanoTime();
+                sink = sum + total[0];
+                if (round == rounds - 1) printMapTimings("IntIntMap", n, t0, t1, t2, t3, t4);
+            }
+        }
+    }
+
+    private static void printMapTimings(String name, int n, long t0, long t1, long t2, long t3, long t4) {
+        System.out.printf("%-12s %,10d %8.1f %8.1f %8.1f %8.1f%n", name, n,
+                (t1 - t0) / (double) n, (t2 - t1) / (double) n, (t3 - t2) / (double) n, (t4 - t3) / (double) n);
+    }
+
+    static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
 }
 
 
@@ -591,61 +1337,263 @@ class CustomLinkedList<T> {
 
 
 // ============================================================
-// BINARY SEARCH TREE
+// UNROLLED LINKED LIST
 // ============================================================
 
-class BinarySearchTree {
-    private TreeNode root;
+/*
+ * A linked list of small arrays ("chunks") instead of single nodes.
+ * - add(): O(1) via the tail pointer
+ * - get(i): skips whole chunks, O(n / CHUNK_SIZE)
+ * - iteration: mostly sequential array reads, close to ArrayList
+ * - add(i, x) / remove(i): shift inside one chunk; a full chunk splits
+ *   in half, and a chunk that gets too empty merges with its neighbor
+ */
+class UnrolledLinkedList<T> implements Iterable<T> {
+    private static final int CHUNK_SIZE = 64;
 
-    private static class TreeNode {
-        int value;
-        TreeNode left, right;
+    private Chunk head;
+    private Chunk tail;
+    private int size;
 
-        TreeNode(int value) {
-            this.value = value;
-            left = right = null;
-        }
+    private static class Chunk {
+        final Object[] items = new Object[CHUNK_SIZE];
+        int count;
+        Chunk next;
     }
 
-    public void insert(int value) {
-        root = insertRec(root, value);
+    public UnrolledLinkedList() {
+        head = tail = new Chunk();
     }
 
-    private TreeNode insertRec(TreeNode root, int value) {
-        if (root == null) {
-            return new TreeNode(value);
-        }
-        if (value < root.value) {
-            root.left = insertRec(root.left, value);
-        } else if (value > root.value) {
-            root.right = insertRec(root.right, value);
+    public void add(T data) {
+        if (tail.count == CHUNK_SIZE) {
+            Chunk chunk = new Chunk();
+            tail.next = chunk;
+            tail = chunk;
         }
-        return root;
+        tail.items[tail.count++] = data;
+        size++;
     }
 
-    public boolean search(int value) {
-        return searchRec(root, value);
+    public void add(int index, T data) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        if (index == size) {
+            add(data);
+            return;
+        }
+        Chunk chunk = head;
+        while (index > chunk.count) {  // "==" may append to the end of this chunk
+            index -= chunk.count;
+            chunk = chunk.next;
+        }
+        if (chunk.count == CHUNK_SIZE) {
+            Chunk right = split(chunk);
+            if (index > chunk.count) {
+                index -= chunk.count;
+                chunk = right;
+            }
+        }
+        System.arraycopy(chunk.items, index, chunk.items, index + 1, chunk.count - index);
+        chunk.items[index] = data;
+        chunk.count++;
+        size++;
     }
 
-    private boolean searchRec(TreeNode root, int value) {
-        if (root == null) {
-            return false;
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
         }
-        if (root.value == value) {
-            return true;
+        Chunk chunk = head;
+        while (index >= chunk.count) {
+            index -= chunk.count;
+            chunk = chunk.next;
         }
-        return value < root.value
-                ? searchRec(root.left, value)
-                : searchRec(root.right, value);
+        return (T) chunk.items[index];
     }
 
-    public void inOrderTraversal() {
-        inOrderRec(root);
-        System.out.println();
+    @SuppressWarnings("unchecked")
+    public T remove(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        Chunk previous = null;
+        Chunk chunk = head;
+        while (index >= chunk.count) {
+            index -= chunk.count;
+            previous = chunk;
+            chunk = chunk.next;
+        }
+        T removed = (T) chunk.items[index];
+        System.arraycopy(chunk.items, index + 1, chunk.items, index, chunk.count - index - 1);
+        chunk.items[--chunk.count] = null;
+        size--;
+
+        // Keep chunks (except the tail) at least half full so get() stays
+        // O(n / CHUNK_SIZE): merge with the next chunk if both fit, else
+        // borrow from it. add() splits full chunks in half, so it keeps this.
+        if (chunk.count < CHUNK_SIZE / 2) {
+            if (chunk.next != null) {
+                if (chunk.count + chunk.next.count <= CHUNK_SIZE) {
+                    mergeWithNext(chunk);
+                } else {
+                    borrowFromNext(chunk, CHUNK_SIZE / 2 - chunk.count);
+                }
+            } else if (previous != null && previous.count + chunk.count <= CHUNK_SIZE) {
+                mergeWithNext(previous);
+            }
+        }
+        return removed;
     }
 
-    private void inOrderRec(TreeNode root) {
-        if (root != null) {
+    public boolean contains(T data) {
+        for (Chunk chunk = head; chunk != null; chunk = chunk.next) {
+            for (int i = 0; i < chunk.count; i++) {
+                if (Objects.equals(chunk.items[i], data)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private Chunk chunk = head;
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                while (position == chunk.count && chunk.next != null) {
+                    chunk = chunk.next;
+                    position = 0;
+                }
+                return position < chunk.count;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return (T) chunk.items[position++];
+            }
+        };
+    }
+
+    public void printList() {
+        StringBuilder sb = new StringBuilder("[");
+        for (Chunk chunk = head; chunk != null; chunk = chunk.next) {
+            sb.append(Arrays.toString(Arrays.copyOf(chunk.items, chunk.count)));
+            if (chunk.next != null) {
+                sb.append(" -> ");
+            }
+        }
+        System.out.println(sb.append("]"));
+    }
+
+    // Move the upper half of a full chunk into a new chunk after it
+    private Chunk split(Chunk chunk) {
+        Chunk right = new Chunk();
+        int half = chunk.count / 2;
+        right.count = chunk.count - half;
+        System.arraycopy(chunk.items, half, right.items, 0, right.count);
+        Arrays.fill(chunk.items, half, chunk.count, null);
+        chunk.count = half;
+        right.next = chunk.next;
+        chunk.next = right;
+        if (tail == chunk) {
+            tail = right;
+        }
+        return right;
+    }
+
+    // Next holds more than CHUNK_SIZE - chunk.count items, so it stays over half full
+    private void borrowFromNext(Chunk chunk, int n) {
+        Chunk next = chunk.next;
+        System.arraycopy(next.items, 0, chunk.items, chunk.count, n);
+        System.arraycopy(next.items, n, next.items, 0, next.count - n);
+        Arrays.fill(next.items, next.count - n, next.count, null);
+        chunk.count += n;
+        next.count -= n;
+    }
+
+    private void mergeWithNext(Chunk chunk) {
+        Chunk next = chunk.next;
+        System.arraycopy(next.items, 0, chunk.items, chunk.count, next.count);
+        chunk.count += next.count;
+        chunk.next = next.next;
+        if (tail == next) {
+            tail = chunk;
+        }
+    }
+}
+
+
+// ============================================================
+// BINARY SEARCH TREE
+// ============================================================
+
+class BinarySearchTree {
+    private TreeNode root;
+
+    private static class TreeNode {
+        int value;
+        TreeNode left, right;
+
+        TreeNode(int value) {
+            this.value = value;
+            left = right = null;
+        }
+    }
+
+    public void insert(int value) {
+        root = insertRec(root, value);
+    }
+
+    private TreeNode insertRec(TreeNode root, int value) {
+        if (root == null) {
+            return new TreeNode(value);
+        }
+        if (value < root.value) {
+            root.left = insertRec(root.left, value);
+        } else if (value > root.value) {
+            root.right = insertRec(root.right, value);
+        }
+        return root;
+    }
+
+    public boolean search(int value) {
+        return searchRec(root, value);
+    }
+
+    private boolean searchRec(TreeNode root, int value) {
+        if (root == null) {
+            return false;
+        }
+        if (root.value == value) {
+            return true;
+        }
+        return value < root.value
+                ? searchRec(root.left, value)
+                : searchRec(root.right, value);
+    }
+
+    public void inOrderTraversal() {
+        inOrderRec(root);
+        System.out.println();
+    }
+
+    private void inOrderRec(TreeNode root) {
+        if (root != null) {
             inOrderRec(root.left);
             System.out.print(root.value + " ");
             inOrderRec(root.right);
@@ -654,6 +1602,514 @@ class BinarySearchTree {
 }
 
 
+// ============================================================
+// B+ TREE MAP WITH PRIMITIVE LONG KEYS
+// ============================================================
+
+/*
+ * Balanced ordered map from long keys to values (use null values for a
+ * set; int keys widen to long). Unlike BinarySearchTree it never
+ * degrades on sorted input, and every operation is a loop - no
+ * recursion, so depth cannot blow the stack (it stays around 4 even
+ * for billions of keys).
+ *
+ * LAYOUT:
+ * - Leaves hold up to 64 sorted keys in a long[] plus a value array,
+ *   and are chained left/right for range scans.
+ * - Internal nodes hold up to 64 children, the separator keys between
+ *   them, and the number of entries under each child, which makes
+ *   rangeCount() O(log n).
+ * - Nodes stay at least half full via borrow/merge on delete.
+ */
+class LongBPlusTreeMap<V> {
+    private static final int MAX_KEYS = 64;
+    private static final int MIN_KEYS = MAX_KEYS / 2;
+    private static final int MAX_CHILDREN = 64;
+    private static final int MIN_CHILDREN = MAX_CHILDREN / 2;
+    private static final int MAX_DEPTH = 16;
+
+    private Node root = new Node(true);
+    private int size;
+
+    // Reused root-to-leaf path for put/remove (the map is not thread-safe)
+    private final Node[] pathNodes = new Node[MAX_DEPTH];
+    private final int[] pathSlots = new int[MAX_DEPTH];
+
+    @FunctionalInterface
+    public interface EntryVisitor<V> {
+        void visit(long key, V value);
+    }
+
+    private static final class Node {
+        final boolean leaf;
+        int size;              // keys in a leaf, children in an internal node
+        final long[] keys;     // leaf: entry keys; internal: size - 1 separators
+        Object[] values;       // leaf only
+        Node[] children;       // internal only
+        int[] counts;          // internal only: entries under each child
+        Node prev, next;       // leaf chain
+
+        // Arrays have one spare slot so a node can overflow before splitting
+        Node(boolean leaf) {
+            this.leaf = leaf;
+            if (leaf) {
+                keys = new long[MAX_KEYS + 1];
+                values = new Object[MAX_KEYS + 1];
+            } else {
+                keys = new long[MAX_CHILDREN];
+                children = new Node[MAX_CHILDREN + 1];
+                counts = new int[MAX_CHILDREN + 1];
+            }
+        }
+
+        int entryCount() {
+            if (leaf) {
+                return size;
+            }
+            int total = 0;
+            for (int i = 0; i < size; i++) {
+                total += counts[i];
+            }
+            return total;
+        }
+
+        boolean underflows() {
+            return size < (leaf ? MIN_KEYS : MIN_CHILDREN);
+        }
+
+        boolean canLend() {
+            return size > (leaf ? MIN_KEYS : MIN_CHILDREN);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        Node leaf = findLeaf(key);
+        int pos = lowerBound(leaf.keys, leaf.size, key);
+        return pos < leaf.size && leaf.keys[pos] == key ? (V) leaf.values[pos] : null;
+    }
+
+    public boolean containsKey(long key) {
+        Node leaf = findLeaf(key);
+        int pos = lowerBound(leaf.keys, leaf.size, key);
+        return pos < leaf.size && leaf.keys[pos] == key;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        int depth = descend(key);
+        Node leaf = depth == 0 ? root : pathNodes[depth - 1].children[pathSlots[depth - 1]];
+        int pos = lowerBound(leaf.keys, leaf.size, key);
+        if (pos < leaf.size && leaf.keys[pos] == key) {
+            V old = (V) leaf.values[pos];
+            leaf.values[pos] = value;
+            return old;
+        }
+
+        System.arraycopy(leaf.keys, pos, leaf.keys, pos + 1, leaf.size - pos);
+        System.arraycopy(leaf.values, pos, leaf.values, pos + 1, leaf.size - pos);
+        leaf.keys[pos] = key;
+        leaf.values[pos] = value;
+        leaf.size++;
+        size++;
+        for (int d = 0; d < depth; d++) {
+            pathNodes[d].counts[pathSlots[d]]++;
+        }
+
+        // Split overflowing nodes bottom-up
+        Node node = leaf;
+        for (int d = depth - 1; node.size > (node.leaf ? MAX_KEYS : MAX_CHILDREN); d--) {
+            long separator;
+            Node right;
+            if (node.leaf) {
+                right = splitLeaf(node);
+                separator = right.keys[0];
+            } else {
+                separator = node.keys[node.size / 2 - 1];
+                right = splitInternal(node);
+            }
+
+            if (d < 0) {
+                Node newRoot = new Node(false);
+                newRoot.children[0] = node;
+                newRoot.children[1] = right;
+                newRoot.keys[0] = separator;
+                newRoot.counts[0] = node.entryCount();
+                newRoot.counts[1] = right.entryCount();
+                newRoot.size = 2;
+                root = newRoot;
+                break;
+            }
+
+            Node parent = pathNodes[d];
+            int slot = pathSlots[d];
+            System.arraycopy(parent.keys, slot, parent.keys, slot + 1, parent.size - 1 - slot);
+            System.arraycopy(parent.children, slot + 1, parent.children, slot + 2, parent.size - 1 - slot);
+            System.arraycopy(parent.counts, slot + 1, parent.counts, slot + 2, parent.size - 1 - slot);
+            parent.keys[slot] = separator;
+            parent.children[slot + 1] = right;
+            parent.counts[slot] = node.entryCount();
+            parent.counts[slot + 1] = right.entryCount();
+            parent.size++;
+            node = parent;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int depth = descend(key);
+        Node leaf = depth == 0 ? root : pathNodes[depth - 1].children[pathSlots[depth - 1]];
+        int pos = lowerBound(leaf.keys, leaf.size, key);
+        if (pos >= leaf.size || leaf.keys[pos] != key) {
+            return null;
+        }
+
+        V old = (V) leaf.values[pos];
+        System.arraycopy(leaf.keys, pos + 1, leaf.keys, pos, leaf.size - pos - 1);
+        System.arraycopy(leaf.values, pos + 1, leaf.values, pos, leaf.size - pos - 1);
+        leaf.values[--leaf.size] = null;
+        size--;
+        for (int d = 0; d < depth; d++) {
+            pathNodes[d].counts[pathSlots[d]]--;
+        }
+
+        // Fix underflow bottom-up: borrow from a sibling, else merge with it
+        Node node = leaf;
+        for (int d = depth - 1; d >= 0 && node.underflows(); d--) {
+            Node parent = pathNodes[d];
+            int slot = pathSlots[d];
+            if (slot > 0 && parent.children[slot - 1].canLend()) {
+                borrowFromLeft(parent, slot);
+            } else if (slot + 1 < parent.size && parent.children[slot + 1].canLend()) {
+                borrowFromRight(parent, slot);
+            } else if (slot > 0) {
+                merge(parent, slot - 1);
+            } else {
+                merge(parent, slot);
+            }
+            node = parent;
+        }
+        if (!root.leaf && root.size == 1) {
+            root = root.children[0];
+        }
+        return old;
+    }
+
+    // Greatest key <= key
+    public OptionalLong floor(long key) {
+        Node leaf = findLeaf(key);
+        int pos = upperBound(leaf.keys, leaf.size, key) - 1;
+        if (pos >= 0) {
+            return OptionalLong.of(leaf.keys[pos]);
+        }
+        Node prev = leaf.prev;
+        return prev == null ? OptionalLong.empty() : OptionalLong.of(prev.keys[prev.size - 1]);
+    }
+
+    // Smallest key >= key
+    public OptionalLong ceiling(long key) {
+        Node leaf = findLeaf(key);
+        int pos = lowerBound(leaf.keys, leaf.size, key);
+        if (pos < leaf.size) {
+            return OptionalLong.of(leaf.keys[pos]);
+        }
+        Node next = leaf.next;
+        return next == null ? OptionalLong.empty() : OptionalLong.of(next.keys[0]);
+    }
+
+    public OptionalLong firstKey() {
+        return size == 0 ? OptionalLong.empty() : ceiling(Long.MIN_VALUE);
+    }
+
+    public OptionalLong lastKey() {
+        return size == 0 ? OptionalLong.empty() : floor(Long.MAX_VALUE);
+    }
+
+    // Number of keys in [fromInclusive, toExclusive), O(log n)
+    public int rangeCount(long fromInclusive, long toExclusive) {
+        return Math.max(0, rank(toExclusive) - rank(fromInclusive));
+    }
+
+    // Visit keys in [fromInclusive, toExclusive) in ascending order
+    @SuppressWarnings("unchecked")
+    public void forEachInRange(long fromInclusive, long toExclusive, EntryVisitor<? super V> visitor) {
+        Node leaf = findLeaf(fromInclusive);
+        int pos = lowerBound(leaf.keys, leaf.size, fromInclusive);
+        while (leaf != null) {
+            for (; pos < leaf.size; pos++) {
+                if (leaf.keys[pos] >= toExclusive) {
+                    return;
+                }
+                visitor.visit(leaf.keys[pos], (V) leaf.values[pos]);
+            }
+            leaf = leaf.next;
+            pos = 0;
+        }
+    }
+
+    // Build from strictly increasing keys in O(n), bottom-up, no splits.
+    // values may be null (set usage) or must match keys in length.
+    public static <V> LongBPlusTreeMap<V> bulkLoad(long[] sortedKeys, V[] values) {
+        if (values != null && values.length != sortedKeys.length) {
+            throw new IllegalArgumentException("keys and values differ in length");
+        }
+        for (int i = 1; i < sortedKeys.length; i++) {
+            if (sortedKeys[i - 1] >= sortedKeys[i]) {
+                throw new IllegalArgumentException("keys must be strictly increasing at index " + i);
+            }
+        }
+        LongBPlusTreeMap<V> map = new LongBPlusTreeMap<>();
+        int n = sortedKeys.length;
+        if (n == 0) {
+            return map;
+        }
+
+        // Leaves: spread keys evenly so every leaf is at least half full
+        int leafCount = (n + MAX_KEYS - 1) / MAX_KEYS;
+        Node[] level = new Node[leafCount];
+        long[] firstKeys = new long[leafCount];
+        int offset = 0;
+        for (int i = 0; i < leafCount; i++) {
+            int take = n / leafCount + (i < n % leafCount ? 1 : 0);
+            Node leaf = new Node(true);
+            System.arraycopy(sortedKeys, offset, leaf.keys, 0, take);
+            if (values != null) {
+                System.arraycopy(values, offset, leaf.values, 0, take);
+            }
+            leaf.size = take;
+            if (i > 0) {
+                level[i - 1].next = leaf;
+                leaf.prev = level[i - 1];
+            }
+            level[i] = leaf;
+            firstKeys[i] = sortedKeys[offset];
+            offset += take;
+        }
+
+        // Internal levels, the same way, until one node is left
+        while (level.length > 1) {
+            int parentCount = (level.length + MAX_CHILDREN - 1) / MAX_CHILDREN;
+            Node[] parents = new Node[parentCount];
+            long[] parentFirstKeys = new long[parentCount];
+            int child = 0;
+            for (int i = 0; i < parentCount; i++) {
+                int take = level.length / parentCount + (i < level.length % parentCount ? 1 : 0);
+                Node parent = new Node(false);
+                for (int j = 0; j < take; j++, child++) {
+                    parent.children[j] = level[child];
+                    parent.counts[j] = level[child].entryCount();
+                    if (j > 0) {
+                        parent.keys[j - 1] = firstKeys[child];
+                    }
+                }
+                parent.size = take;
+                parents[i] = parent;
+                parentFirstKeys[i] = firstKeys[child - take];
+            }
+            level = parents;
+            firstKeys = parentFirstKeys;
+        }
+        map.root = level[0];
+        map.size = n;
+        return map;
+    }
+
+    public static LongBPlusTreeMap<Void> bulkLoad(long[] sortedKeys) {
+        return bulkLoad(sortedKeys, null);
+    }
+
+    public int height() {
+        int height = 1;
+        for (Node node = root; !node.leaf; node = node.children[0]) {
+            height++;
+        }
+        return height;
+    }
+
+    private Node findLeaf(long key) {
+        Node node = root;
+        while (!node.leaf) {
+            node = node.children[upperBound(node.keys, node.size - 1, key)];
+        }
+        return node;
+    }
+
+    // Fill pathNodes/pathSlots from the root down to key's leaf; returns depth
+    private int descend(long key) {
+        Node node = root;
+        int depth = 0;
+        while (!node.leaf) {
+            int slot = upperBound(node.keys, node.size - 1, key);
+            pathNodes[depth] = node;
+            pathSlots[depth++] = slot;
+            node = node.children[slot];
+        }
+        return depth;
+    }
+
+    // Number of keys < key
+    private int rank(long key) {
+        Node node = root;
+        int rank = 0;
+        while (!node.leaf) {
+            int slot = upperBound(node.keys, node.size - 1, key);
+            for (int i = 0; i < slot; i++) {
+                rank += node.counts[i];
+            }
+            node = node.children[slot];
+        }
+        return rank + lowerBound(node.keys, node.size, key);
+    }
+
+    private static Node splitLeaf(Node left) {
+        Node right = new Node(true);
+        int mid = left.size / 2;
+        right.size = left.size - mid;
+        System.arraycopy(left.keys, mid, right.keys, 0, right.size);
+        System.arraycopy(left.values, mid, right.values, 0, right.size);
+        Arrays.fill(left.values, mid, left.size, null);
+        left.size = mid;
+
+        right.next = left.next;
+        if (right.next != null) {
+            right.next.prev = right;
+        }
+        right.prev = left;
+        left.next = right;
+        return right;
+    }
+
+    // Children [mid, size) move right; separator mid - 1 moves up to the parent
+    private static Node splitInternal(Node left) {
+        Node right = new Node(false);
+        int mid = left.size / 2;
+        right.size = left.size - mid;
+        System.arraycopy(left.children, mid, right.children, 0, right.size);
+        System.arraycopy(left.counts, mid, right.counts, 0, right.size);
+        System.arraycopy(left.keys, mid, right.keys, 0, right.size - 1);
+        Arrays.fill(left.children, mid, left.size, null);
+        left.size = mid;
+        return right;
+    }
+
+    private static void borrowFromLeft(Node parent, int slot) {
+        Node left = parent.children[slot - 1];
+        Node node = parent.children[slot];
+        int moved;
+        if (node.leaf) {
+            System.arraycopy(node.keys, 0, node.keys, 1, node.size);
+            System.arraycopy(node.values, 0, node.values, 1, node.size);
+            node.keys[0] = left.keys[left.size - 1];
+            node.values[0] = left.values[left.size - 1];
+            left.values[left.size - 1] = null;
+            parent.keys[slot - 1] = node.keys[0];
+            moved = 1;
+        } else {
+            // Rotate through the parent: its separator comes down, left's goes up
+            System.arraycopy(node.keys, 0, node.keys, 1, node.size - 1);
+            System.arraycopy(node.children, 0, node.children, 1, node.size);
+            System.arraycopy(node.counts, 0, node.counts, 1, node.size);
+            node.keys[0] = parent.keys[slot - 1];
+            node.children[0] = left.children[left.size - 1];
+            node.counts[0] = left.counts[left.size - 1];
+            parent.keys[slot - 1] = left.keys[left.size - 2];
+            left.children[left.size - 1] = null;
+            moved = node.counts[0];
+        }
+        left.size--;
+        node.size++;
+        parent.counts[slot - 1] -= moved;
+        parent.counts[slot] += moved;
+    }
+
+    private static void borrowFromRight(Node parent, int slot) {
+        Node node = parent.children[slot];
+        Node right = parent.children[slot + 1];
+        int moved;
+        if (node.leaf) {
+            node.keys[node.size] = right.keys[0];
+            node.values[node.size] = right.values[0];
+            System.arraycopy(right.keys, 1, right.keys, 0, right.size - 1);
+            System.arraycopy(right.values, 1, right.values, 0, right.size - 1);
+            right.values[right.size - 1] = null;
+            parent.keys[slot] = right.keys[0];
+            moved = 1;
+        } else {
+            node.keys[node.size - 1] = parent.keys[slot];
+            node.children[node.size] = right.children[0];
+            node.counts[node.size] = right.counts[0];
+            moved = right.counts[0];
+            parent.keys[slot] = right.keys[0];
+            System.arraycopy(right.keys, 1, right.keys, 0, right.size - 2);
+            System.arraycopy(right.children, 1, right.children, 0, right.size - 1);
+            System.arraycopy(right.counts, 1, right.counts, 0, right.size - 1);
+            right.children[right.size - 1] = null;
+        }
+        right.size--;
+        node.size++;
+        parent.counts[slot] += moved;
+        parent.counts[slot + 1] -= moved;
+    }
+
+    // Fold children[slot + 1] into children[slot] and drop it from the parent
+    private static void merge(Node parent, int slot) {
+        Node left = parent.children[slot];
+        Node right = parent.children[slot + 1];
+        if (left.leaf) {
+            System.arraycopy(right.keys, 0, left.keys, left.size, right.size);
+            System.arraycopy(right.values, 0, left.values, left.size, right.size);
+            left.next = right.next;
+            if (left.next != null) {
+                left.next.prev = left;
+            }
+        } else {
+            left.keys[left.size - 1] = parent.keys[slot];
+            System.arraycopy(right.keys, 0, left.keys, left.size, right.size - 1);
+            System.arraycopy(right.children, 0, left.children, left.size, right.size);
+            System.arraycopy(right.counts, 0, left.counts, left.size, right.size);
+        }
+        left.size += right.size;
+
+        parent.counts[slot] += parent.counts[slot + 1];
+        System.arraycopy(parent.keys, slot + 1, parent.keys, slot, parent.size - 2 - slot);
+        System.arraycopy(parent.children, slot + 2, parent.children, slot + 1, parent.size - 2 - slot);
+        System.arraycopy(parent.counts, slot + 2, parent.counts, slot + 1, parent.size - 2 - slot);
+        parent.children[--parent.size] = null;
+    }
+
+    // First index with a[i] >= key
+    private static int lowerBound(long[] a, int n, long key) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // First index with a[i] > key
+    private static int upperBound(long[] a, int n, long key) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] <= key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
+
+
 // ============================================================
 // GRAPH (ADJACENCY LIST)
 // ============================================================
@@ -698,48 +2154,700 @@ class Graph {
     }
 
     public void DFS(int start) {
-        boolean[] visited = new boolean[vertices];
-        DFSUtil(start, visited);
+        DFS(start, vertex -> System.out.print(vertex + " "));
         System.out.println();
     }
 
-    private void DFSUtil(int vertex, boolean[] visited) {
-        visited[vertex] = true;
-        System.out.print(vertex + " ");
+    // Same visit order as the recursive version, but the "call stack" is an
+    // explicit stack of neighbor iterators, so deep paths can't overflow it
+    public void DFS(int start, IntConsumer visitor) {
+        boolean[] visited = new boolean[vertices];
+        Deque<Iterator<Integer>> stack = new ArrayDeque<>();
 
-        for (int neighbor : adjList[vertex]) {
+        visited[start] = true;
+        visitor.accept(start);
+        stack.push(adjList[start].iterator());
+
+        while (!stack.isEmpty()) {
+            Iterator<Integer> neighbors = stack.peek();
+            if (!neighbors.hasNext()) {
+                stack.pop();
+                continue;
+            }
+            int neighbor = neighbors.next();
             if (!visited[neighbor]) {
-                DFSUtil(neighbor, visited);
+                visited[neighbor] = true;
+                visitor.accept(neighbor);
+                stack.push(adjList[neighbor].iterator());
+            }
+        }
+    }
+
+    // Primitive-array copy of this graph for the algorithms in CsrGraph
+    public CsrGraph toCsr() {
+        int edgeCount = 0;
+        for (LinkedList<Integer> neighbors : adjList) {
+            edgeCount += neighbors.size();
+        }
+        int[] from = new int[edgeCount];
+        int[] to = new int[edgeCount];
+        int i = 0;
+        for (int v = 0; v < vertices; v++) {
+            for (int neighbor : adjList[v]) {
+                from[i] = v;
+                to[i++] = neighbor;
             }
         }
+        // adjList already holds both directions of every edge
+        return CsrGraph.fromEdges(vertices, from, to, true);
     }
 }
 
 
 // ============================================================
-// TRIE (PREFIX TREE)
+// CSR GRAPH (COMPRESSED SPARSE ROW) WITH PARALLEL BFS
 // ============================================================
 
-class Trie {
-    private TrieNode root;
+/*
+ * Graph stores one boxed Integer inside one LinkedList node per edge
+ * endpoint (~80 bytes per undirected edge). CsrGraph packs all
+ * adjacency into two int arrays (~8 bytes per undirected edge):
+ *
+ *   neighbors of v = targets[offsets[v] .. offsets[v + 1])
+ *
+ * parallelBfs() is level-synchronous on a ForkJoinPool and switches
+ * between two strategies per level (direction-optimizing BFS):
+ * - top-down:  frontier vertices claim unvisited neighbors (CAS)
+ * - bottom-up: unvisited vertices look for any parent in the frontier
+ * Bottom-up wins when the frontier is huge, because most unvisited
+ * vertices find a parent after checking just a few edges.
+ */
+class CsrGraph {
+    private static final VarHandle DIST = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final int ALPHA = 14;  // go bottom-up when frontier edges > unexplored / ALPHA
+    private static final int BETA = 24;   // go back top-down when frontier < vertices / BETA
+    private static final int LEAF_SIZE = 2048;
+
+    private final int vertexCount;
+    private final int[] offsets;
+    private final int[] targets;
+    private final int[] inOffsets;  // incoming edges for bottom-up steps;
+    private final int[] inSources;  // same arrays as above when undirected
+
+    private CsrGraph(int vertexCount, int[][] out, int[][] in) {
+        this.vertexCount = vertexCount;
+        this.offsets = out[0];
+        this.targets = out[1];
+        this.inOffsets = in[0];
+        this.inSources = in[1];
+    }
 
-    private static class TrieNode {
-        Map<Character, TrieNode> children;
-        boolean isEndOfWord;
+    // Edge i goes from[i] -> to[i]; undirected graphs store both directions
+    public static CsrGraph fromEdges(int vertexCount, int[] from, int[] to, boolean directed) {
+        if (from.length != to.length) {
+            throw new IllegalArgumentException("from and to must have the same length");
+        }
+        int[][] out = buildCsr(vertexCount, from, to, !directed);
+        int[][] in = directed ? buildCsr(vertexCount, to, from, false) : out;
+        return new CsrGraph(vertexCount, out, in);
+    }
 
-        TrieNode() {
-            children = new HashMap<>();
-            isEndOfWord = false;
+    // Counting sort of the edge list by source vertex
+    private static int[][] buildCsr(int vertexCount, int[] from, int[] to, boolean symmetric) {
+        long edgeCount = symmetric ? 2L * from.length : from.length;
+        if (edgeCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many edges for int offsets: " + edgeCount);
+        }
+        int[] offsets = new int[vertexCount + 1];
+        for (int i = 0; i < from.length; i++) {
+            offsets[from[i] + 1]++;
+            if (symmetric) {
+                offsets[to[i] + 1]++;
+            }
         }
+        for (int v = 0; v < vertexCount; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        int[] cursor = Arrays.copyOf(offsets, vertexCount);
+        int[] targets = new int[(int) edgeCount];
+        for (int i = 0; i < from.length; i++) {
+            targets[cursor[from[i]]++] = to[i];
+            if (symmetric) {
+                targets[cursor[to[i]]++] = from[i];
+            }
+        }
+        return new int[][]{offsets, targets};
     }
 
-    public Trie() {
-        root = new TrieNode();
+    public int vertexCount() {
+        return vertexCount;
     }
 
-    public void insert(String word) {
-        TrieNode current = root;
-        for (char ch : word.toCharArray()) {
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    public int degree(int vertex) {
+        return offsets[vertex + 1] - offsets[vertex];
+    }
+
+    public long memoryBytes() {
+        long bytes = 4L * (offsets.length + targets.length);
+        if (inOffsets != offsets) {
+            bytes += 4L * (inOffsets.length + inSources.length);
+        }
+        return bytes;
+    }
+
+    // Plain single-threaded BFS; distance -1 means unreachable
+    public int[] bfs(int source) {
+        int[] dist = new int[vertexCount];
+        Arrays.fill(dist, -1);
+        int[] queue = new int[vertexCount];
+        int head = 0, tail = 0;
+        dist[source] = 0;
+        queue[tail++] = source;
+        while (head < tail) {
+            int v = queue[head++];
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int w = targets[e];
+                if (dist[w] < 0) {
+                    dist[w] = dist[v] + 1;
+                    queue[tail++] = w;
+                }
+            }
+        }
+        return dist;
+    }
+
+    public int[] parallelBfs(int source) {
+        return parallelBfs(source, ForkJoinPool.commonPool());
+    }
+
+    public int[] parallelBfs(int source, ForkJoinPool pool) {
+        int[] dist = new int[vertexCount];
+        Arrays.fill(dist, -1);
+        dist[source] = 0;
+
+        int[] frontier = {source};
+        long frontierEdges = degree(source);
+        long unexploredEdges = targets.length - frontierEdges;
+        boolean bottomUp = false;
+
+        for (int level = 0; frontier.length > 0; level++) {
+            if (!bottomUp && frontierEdges > unexploredEdges / ALPHA) {
+                bottomUp = true;
+            } else if (bottomUp && frontier.length < vertexCount / BETA) {
+                bottomUp = false;
+            }
+
+            int current = level;
+            int[] currentFrontier = frontier;
+            IntArrayBuilder next = bottomUp
+                    ? collect(pool, vertexCount, (lo, hi, out) -> bottomUpStep(lo, hi, current, dist, out))
+                    : collect(pool, frontier.length, (lo, hi, out) -> topDownStep(currentFrontier, lo, hi, current, dist, out));
+
+            frontier = next.toArray();
+            frontierEdges = next.edges;
+            unexploredEdges -= frontierEdges;
+        }
+        return dist;
+    }
+
+    private void topDownStep(int[] frontier, int lo, int hi, int level, int[] dist, IntArrayBuilder out) {
+        for (int i = lo; i < hi; i++) {
+            int v = frontier[i];
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int w = targets[e];
+                if (dist[w] < 0 && DIST.compareAndSet(dist, w, -1, level + 1)) {
+                    out.add(w, degree(w));
+                }
+            }
+        }
+    }
+
+    // Each task owns its vertex range, so plain writes are safe. Reading
+    // dist[u] == level is race-free: this level only writes level + 1.
+    private void bottomUpStep(int lo, int hi, int level, int[] dist, IntArrayBuilder out) {
+        for (int v = lo; v < hi; v++) {
+            if (dist[v] >= 0) {
+                continue;
+            }
+            for (int e = inOffsets[v]; e < inOffsets[v + 1]; e++) {
+                if (dist[inSources[e]] == level) {
+                    dist[v] = level + 1;
+                    out.add(v, degree(v));
+                    break;
+                }
+            }
+        }
+    }
+
+    // Iterative pre-order DFS: cursor[i] is the next edge to try for the
+    // vertex at stack depth i, exactly what a recursive frame would hold
+    public void dfs(int source, IntConsumer visitor) {
+        boolean[] visited = new boolean[vertexCount];
+        int[] stack = new int[vertexCount];
+        int[] cursor = new int[vertexCount];
+        int depth = 0;
+
+        visited[source] = true;
+        visitor.accept(source);
+        stack[depth] = source;
+        cursor[depth++] = offsets[source];
+
+        while (depth > 0) {
+            int v = stack[depth - 1];
+            if (cursor[depth - 1] == offsets[v + 1]) {
+                depth--;
+                continue;
+            }
+            int w = targets[cursor[depth - 1]++];
+            if (!visited[w]) {
+                visited[w] = true;
+                visitor.accept(w);
+                stack[depth] = w;
+                cursor[depth++] = offsets[w];
+            }
+        }
+    }
+
+    // Component id (0..k-1) per vertex via union-find. Edge direction is
+    // ignored, so for directed graphs these are weakly connected components.
+    public int[] connectedComponents() {
+        int[] parent = new int[vertexCount];
+        int[] size = new int[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            parent[v] = v;
+            size[v] = 1;
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int a = find(parent, v);
+                int b = find(parent, targets[e]);
+                if (a != b) {
+                    // union by size keeps the trees shallow
+                    if (size[a] < size[b]) {
+                        int t = a;
+                        a = b;
+                        b = t;
+                    }
+                    parent[b] = a;
+                    size[a] += size[b];
+                }
+            }
+        }
+
+        int[] component = new int[vertexCount];
+        Arrays.fill(component, -1);
+        int count = 0;
+        for (int v = 0; v < vertexCount; v++) {
+            int root = find(parent, v);
+            if (component[root] < 0) {
+                component[root] = count++;
+            }
+            component[v] = component[root];
+        }
+        return component;
+    }
+
+    // Find with path compression (path halving: point at grandparent)
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+
+    // Strongly connected component id (0..k-1) per vertex, Tarjan's
+    // algorithm with the recursion replaced by explicit stacks
+    public int[] stronglyConnectedComponents() {
+        int[] index = new int[vertexCount];
+        int[] low = new int[vertexCount];
+        int[] component = new int[vertexCount];
+        boolean[] onStack = new boolean[vertexCount];
+        int[] tarjanStack = new int[vertexCount];
+        int[] callStack = new int[vertexCount];
+        int[] cursor = new int[vertexCount];
+        Arrays.fill(index, -1);
+        Arrays.fill(component, -1);
+        int nextIndex = 0, count = 0, top = 0;
+
+        for (int start = 0; start < vertexCount; start++) {
+            if (index[start] >= 0) {
+                continue;
+            }
+            int depth = 0;
+            index[start] = low[start] = nextIndex++;
+            tarjanStack[top++] = start;
+            onStack[start] = true;
+            callStack[depth] = start;
+            cursor[depth++] = offsets[start];
+
+            while (depth > 0) {
+                int v = callStack[depth - 1];
+                if (cursor[depth - 1] < offsets[v + 1]) {
+                    int w = targets[cursor[depth - 1]++];
+                    if (index[w] < 0) {
+                        // "recursive call" on w
+                        index[w] = low[w] = nextIndex++;
+                        tarjanStack[top++] = w;
+                        onStack[w] = true;
+                        callStack[depth] = w;
+                        cursor[depth++] = offsets[w];
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+
+                // "return" from v
+                depth--;
+                if (low[v] == index[v]) {
+                    int w;
+                    do {
+                        w = tarjanStack[--top];
+                        onStack[w] = false;
+                        component[w] = count;
+                    } while (w != v);
+                    count++;
+                }
+                if (depth > 0) {
+                    int parent = callStack[depth - 1];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+            }
+        }
+        return component;
+    }
+
+    @FunctionalInterface
+    private interface RangeBody {
+        void run(int lo, int hi, IntArrayBuilder out);
+    }
+
+    // Run body over [0, n) in parallel and concatenate every leaf's output
+    private static IntArrayBuilder collect(ForkJoinPool pool, int n, RangeBody body) {
+        ConcurrentLinkedQueue<IntArrayBuilder> parts = new ConcurrentLinkedQueue<>();
+        pool.invoke(new RangeTask(0, n, body, parts));
+        IntArrayBuilder all = new IntArrayBuilder();
+        for (IntArrayBuilder part : parts) {
+            all.addAll(part);
+        }
+        return all;
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int lo, hi;
+        private final RangeBody body;
+        private final Queue<IntArrayBuilder> parts;
+
+        RangeTask(int lo, int hi, RangeBody body, Queue<IntArrayBuilder> parts) {
+            this.lo = lo;
+            this.hi = hi;
+            this.body = body;
+            this.parts = parts;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= LEAF_SIZE) {
+                IntArrayBuilder out = new IntArrayBuilder();
+                body.run(lo, hi, out);
+                if (out.size > 0) {
+                    parts.add(out);
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new RangeTask(lo, mid, body, parts), new RangeTask(mid, hi, body, parts));
+        }
+    }
+
+    // Growable int[] that also sums the degrees of what it holds
+    private static final class IntArrayBuilder {
+        int[] data = new int[16];
+        int size;
+        long edges;
+
+        void add(int value, int degree) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+            edges += degree;
+        }
+
+        void addAll(IntArrayBuilder other) {
+            if (size + other.size > data.length) {
+                data = Arrays.copyOf(data, Math.max(size + other.size, data.length * 2));
+            }
+            System.arraycopy(other.data, 0, data, size, other.size);
+            size += other.size;
+            edges += other.edges;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
+
+
+// ============================================================
+// WEIGHTED GRAPH: DIJKSTRA & A* ON AN INDEXED HEAP
+// ============================================================
+
+/*
+ * Directed, weighted graph in CSR form (offsets / targets / weights).
+ *
+ * Dijkstra with PriorityQueue<Object> pushes a new object on every
+ * relaxation and leaves stale ones behind. IndexedMinHeap instead keeps
+ * at most one slot per vertex id and supports decrease-key, so the heap
+ * never grows past V and allocates nothing during a query.
+ */
+class WeightedGraph {
+    private final int vertexCount;
+    private final int[] offsets;
+    private final int[] targets;
+    private final double[] weights;
+
+    private WeightedGraph(int vertexCount, int[] offsets, int[] targets, double[] weights) {
+        this.vertexCount = vertexCount;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+    }
+
+    // Edge i goes from[i] -> to[i] with cost weight[i] (must be >= 0)
+    public static WeightedGraph fromEdges(int vertexCount, int[] from, int[] to, double[] weight) {
+        if (from.length != to.length || from.length != weight.length) {
+            throw new IllegalArgumentException("from, to and weight must have the same length");
+        }
+        int[] offsets = new int[vertexCount + 1];
+        for (int i = 0; i < from.length; i++) {
+            if (!(weight[i] >= 0)) {
+                throw new IllegalArgumentException("Dijkstra needs non-negative weights: " + weight[i]);
+            }
+            offsets[from[i] + 1]++;
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        int[] cursor = Arrays.copyOf(offsets, vertexCount);
+        int[] targets = new int[from.length];
+        double[] weights = new double[from.length];
+        for (int i = 0; i < from.length; i++) {
+            int slot = cursor[from[i]]++;
+            targets[slot] = to[i];
+            weights[slot] = weight[i];
+        }
+        return new WeightedGraph(vertexCount, offsets, targets, weights);
+    }
+
+    public int vertexCount() {
+        return vertexCount;
+    }
+
+    // Single-source distances to every vertex (+Infinity if unreachable)
+    public double[] dijkstra(int source) {
+        return search(source, -1, v -> 0.0);
+    }
+
+    // Point-to-point distance; stops as soon as the target is settled
+    public double distance(int source, int target) {
+        return search(source, target, v -> 0.0)[target];
+    }
+
+    // A*: the heuristic estimates the remaining cost to target and must
+    // never overestimate it (e.g. straight-line distance on a map)
+    public double aStar(int source, int target, IntToDoubleFunction heuristic) {
+        return search(source, target, heuristic)[target];
+    }
+
+    // Runs one full Dijkstra per source in parallel; each task has its own heap
+    public double[][] dijkstraBatch(int[] sources, ForkJoinPool pool) {
+        try {
+            return pool.submit(() -> Arrays.stream(sources)
+                    .parallel()
+                    .mapToObj(this::dijkstra)
+                    .toArray(double[][]::new)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Dijkstra when heuristic == 0, A* otherwise. target < 0 = no early exit.
+    private double[] search(int source, int target, IntToDoubleFunction heuristic) {
+        double[] dist = new double[vertexCount];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[source] = 0;
+
+        IndexedMinHeap heap = new IndexedMinHeap(vertexCount);
+        heap.insertOrDecrease(source, heuristic.applyAsDouble(source));
+        while (!heap.isEmpty()) {
+            int v = heap.pollMin();
+            if (v == target) {
+                break;
+            }
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int w = targets[e];
+                double candidate = dist[v] + weights[e];
+                if (candidate < dist[w]) {
+                    dist[w] = candidate;
+                    heap.insertOrDecrease(w, candidate + heuristic.applyAsDouble(w));
+                }
+            }
+        }
+        return dist;
+    }
+}
+
+
+/*
+ * 4-ary min-heap over int ids 0..capacity-1 with double priorities.
+ * position[id] tracks where each id sits, which makes decrease-key
+ * O(log n). A 4-ary heap is shallower than a binary one and its
+ * children share a cache line, which is usually faster for Dijkstra.
+ */
+class IndexedMinHeap {
+    private static final int ARITY = 4;
+
+    private final int[] heap;       // heap slot -> id
+    private final double[] keys;    // id -> priority
+    private final int[] position;   // id -> heap slot, -1 if absent
+    private int size;
+
+    IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        keys = new double[capacity];
+        position = new int[capacity];
+        Arrays.fill(position, -1);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int id) {
+        return position[id] >= 0;
+    }
+
+    public double minKey() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return keys[heap[0]];
+    }
+
+    // Insert id, or lower its priority if already present
+    public void insertOrDecrease(int id, double key) {
+        int slot = position[id];
+        if (slot < 0) {
+            slot = size++;
+            heap[slot] = id;
+            position[id] = slot;
+        } else if (key >= keys[id]) {
+            return;
+        }
+        keys[id] = key;
+        siftUp(slot);
+    }
+
+    public int pollMin() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        int min = heap[0];
+        position[min] = -1;
+        int last = heap[--size];
+        if (size > 0) {
+            heap[0] = last;
+            position[last] = 0;
+            siftDown(0);
+        }
+        return min;
+    }
+
+    private void siftUp(int slot) {
+        int id = heap[slot];
+        double key = keys[id];
+        while (slot > 0) {
+            int parent = (slot - 1) / ARITY;
+            int parentId = heap[parent];
+            if (keys[parentId] <= key) {
+                break;
+            }
+            heap[slot] = parentId;
+            position[parentId] = slot;
+            slot = parent;
+        }
+        heap[slot] = id;
+        position[id] = slot;
+    }
+
+    private void siftDown(int slot) {
+        int id = heap[slot];
+        double key = keys[id];
+        while (true) {
+            int first = slot * ARITY + 1;
+            if (first >= size) {
+                break;
+            }
+            int best = first;
+            int end = Math.min(first + ARITY, size);
+            for (int c = first + 1; c < end; c++) {
+                if (keys[heap[c]] < keys[heap[best]]) {
+                    best = c;
+                }
+            }
+            if (keys[heap[best]] >= key) {
+                break;
+            }
+            heap[slot] = heap[best];
+            position[heap[slot]] = slot;
+            slot = best;
+        }
+        heap[slot] = id;
+        position[id] = slot;
+    }
+}
+
+
+// ============================================================
+// TRIE (PREFIX TREE)
+// ============================================================
+
+class Trie {
+    private TrieNode root;
+
+    private static class TrieNode {
+        Map<Character, TrieNode> children;
+        boolean isEndOfWord;
+
+        TrieNode() {
+            children = new HashMap<>();
+            isEndOfWord = false;
+        }
+    }
+
+    public Trie() {
+        root = new TrieNode();
+    }
+
+    public void insert(String word) {
+        TrieNode current = root;
+        for (char ch : word.toCharArray()) {
             current.children.putIfAbsent(ch, new TrieNode());
             current = current.children.get(ch);
         }
@@ -765,23 +2873,1935 @@ class Trie {
         }
         return current;
     }
+
+    // Write this Trie as a TrieSnapshot file (see TrieSnapshot for layout).
+    // Nodes are numbered in BFS order, so each node's children get
+    // consecutive ids and its edges form one contiguous, sorted run.
+    public void freeze(Path file) throws IOException {
+        int nodeCount = 0;
+        Deque<TrieNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            TrieNode node = stack.pop();
+            nodeCount++;
+            for (TrieNode child : node.children.values()) {
+                stack.push(child);
+            }
+        }
+        int edgeCount = nodeCount - 1;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    TrieSnapshot.fileSize(nodeCount, edgeCount));
+            out.putInt(TrieSnapshot.MAGIC).putInt(TrieSnapshot.VERSION).putInt(nodeCount).putInt(edgeCount);
+            int labelsAt = TrieSnapshot.labelsOffset(nodeCount);
+            int targetsAt = TrieSnapshot.targetsOffset(nodeCount, edgeCount);
+
+            Queue<TrieNode> queue = new ArrayDeque<>();
+            queue.offer(root);
+            int nodeId = 0;
+            int nextId = 1;
+            int edge = 0;
+            while (!queue.isEmpty()) {
+                TrieNode node = queue.poll();
+                char[] keys = new char[node.children.size()];
+                int k = 0;
+                for (char ch : node.children.keySet()) {
+                    keys[k++] = ch;
+                }
+                Arrays.sort(keys);
+
+                int nodeAt = TrieSnapshot.HEADER_BYTES + nodeId * TrieSnapshot.NODE_BYTES;
+                out.putInt(nodeAt, edge);
+                out.putInt(nodeAt + 4, keys.length | (node.isEndOfWord ? TrieSnapshot.END_OF_WORD : 0));
+                for (char ch : keys) {
+                    out.putChar(labelsAt + edge * 2, ch);
+                    out.putInt(targetsAt + edge * 4, nextId++);
+                    queue.offer(node.children.get(ch));
+                    edge++;
+                }
+                nodeId++;
+            }
+            out.force();
+        }
+    }
 }
 
 
 // ============================================================
-// LRU CACHE (LEAST RECENTLY USED)
+// IMMUTABLE, MEMORY-MAPPED TRIE SNAPSHOT
 // ============================================================
 
-class LRUCache extends LinkedHashMap<Integer, String> {
-    private int capacity;
+/*
+ * Read-only view of a Trie frozen with Trie.freeze(). Every query reads
+ * the MappedByteBuffer with absolute gets: nothing is deserialized and
+ * the instance is safe to share between threads.
+ *
+ * FILE LAYOUT (big-endian):
+ *   header  : magic, version, nodeCount, edgeCount     (4 x int)
+ *   nodes   : per node [firstEdge, edgeCount | END bit] (2 x int)
+ *   labels  : per edge, the child's char, sorted per node (char)
+ *   targets : per edge, the child's node id           (int)
+ *
+ * Node 0 is the root. One mapping is limited to 2 GB.
+ */
+class TrieSnapshot {
+    static final int MAGIC = 0x54524945; // "TRIE"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int NODE_BYTES = 8;
+    static final int END_OF_WORD = 1 << 31;
+
+    private final MappedByteBuffer buffer;
+    private final int nodeCount;
+    private final int labelsAt;
+    private final int targetsAt;
+
+    private TrieSnapshot(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Not a trie snapshot (version " + VERSION + ")");
+        }
+        this.nodeCount = buffer.getInt(8);
+        int edgeCount = buffer.getInt(12);
+        // Reject a truncated or corrupt file here rather than mid-query
+        if (nodeCount < 1 || edgeCount < 0 || requiredBytes(nodeCount, edgeCount) > buffer.capacity()) {
+            throw new IllegalArgumentException("Corrupt trie snapshot: " + nodeCount + " nodes and "
+                    + edgeCount + " edges need " + requiredBytes(nodeCount, edgeCount)
+                    + " bytes, file has " + buffer.capacity());
+        }
+        this.labelsAt = labelsOffset(nodeCount);
+        this.targetsAt = targetsOffset(nodeCount, edgeCount);
+    }
 
-    public LRUCache(int capacity) {
-        super(capacity, 0.75f, true); // accessOrder = true
-        this.capacity = capacity;
+    public static TrieSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return new TrieSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
     }
 
-    @Override
-    protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
-        return size() > capacity;
+    public boolean search(String word) {
+        int node = findNode(word);
+        return node >= 0 && (buffer.getInt(HEADER_BYTES + node * NODE_BYTES + 4) & END_OF_WORD) != 0;
+    }
+
+    public boolean startsWith(String prefix) {
+        return findNode(prefix) >= 0;
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    private int findNode(String prefix) {
+        int node = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = child(node, prefix.charAt(i));
+            if (node < 0) {
+                return -1;
+            }
+        }
+        return node;
+    }
+
+    // Binary search the node's sorted run of edge labels
+    private int child(int node, char ch) {
+        int nodeAt = HEADER_BYTES + node * NODE_BYTES;
+        int low = buffer.getInt(nodeAt);
+        int high = low + (buffer.getInt(nodeAt + 4) & ~END_OF_WORD) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char label = buffer.getChar(labelsAt + mid * 2);
+            if (label < ch) {
+                low = mid + 1;
+            } else if (label > ch) {
+                high = mid - 1;
+            } else {
+                return buffer.getInt(targetsAt + mid * 4);
+            }
+        }
+        return -1;
+    }
+
+    static int labelsOffset(int nodeCount) {
+        return checkedOffset(HEADER_BYTES + (long) nodeCount * NODE_BYTES);
+    }
+
+    // Labels are padded to a 4-byte boundary so targets stay aligned
+    static int targetsOffset(int nodeCount, int edgeCount) {
+        return checkedOffset(labelsOffset(nodeCount) + ((edgeCount * 2L + 3) & ~3L));
+    }
+
+    static long fileSize(int nodeCount, int edgeCount) {
+        return checkedOffset(requiredBytes(nodeCount, edgeCount));
+    }
+
+    // Same layout as the offsets above, unchecked, for validating a file's header
+    private static long requiredBytes(int nodeCount, int edgeCount) {
+        return HEADER_BYTES + (long) nodeCount * NODE_BYTES + ((edgeCount * 2L + 3) & ~3L) + edgeCount * 4L;
+    }
+
+    // Computed in long so a huge trie fails here instead of wrapping around
+    private static int checkedOffset(long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Trie too large for a single mapping: " + bytes + " bytes");
+        }
+        return (int) bytes;
+    }
+}
+
+
+// ============================================================
+// RADIX TRIE (PATH-COMPRESSED) WITH TOP-K AUTOCOMPLETE
+// ============================================================
+
+/*
+ * Same insert/search/startsWith API as Trie, but:
+ * - Chains of single-child nodes collapse into one edge ("path
+ *   compression"), so a dictionary needs far fewer nodes.
+ * - Edge labels are char[] and children live in a sorted char[] of
+ *   first characters plus a parallel node array: no HashMap, no boxing.
+ * - Every node caches the best weight in its subtree (maxWeight), so
+ *   completions(prefix, k) does a best-first search and stops after k
+ *   results instead of walking the whole subtree.
+ */
+class RadixTrie {
+    private static final char[] EMPTY_CHARS = new char[0];
+    private static final RadixNode[] EMPTY_NODES = new RadixNode[0];
+
+    private final RadixNode root = new RadixNode(EMPTY_CHARS);
+    private int size;
+    private int nodeCount = 1;
+
+    private static class RadixNode {
+        char[] label;
+        char[] firstChars = EMPTY_CHARS;
+        RadixNode[] children = EMPTY_NODES;
+        boolean isEndOfWord;
+        long weight;
+        long maxWeight = Long.MIN_VALUE;
+
+        RadixNode(char[] label) {
+            this.label = label;
+        }
+
+        int indexOf(char ch) {
+            return Arrays.binarySearch(firstChars, ch);
+        }
+
+        void addChild(RadixNode child) {
+            int insertAt = -(indexOf(child.label[0]) + 1);
+            firstChars = insertChar(firstChars, insertAt, child.label[0]);
+            RadixNode[] grown = new RadixNode[children.length + 1];
+            System.arraycopy(children, 0, grown, 0, insertAt);
+            grown[insertAt] = child;
+            System.arraycopy(children, insertAt, grown, insertAt + 1, children.length - insertAt);
+            children = grown;
+        }
+
+        void recomputeMaxWeight() {
+            long max = isEndOfWord ? weight : Long.MIN_VALUE;
+            for (RadixNode child : children) {
+                max = Math.max(max, child.maxWeight);
+            }
+            maxWeight = max;
+        }
+
+        private static char[] insertChar(char[] array, int index, char ch) {
+            char[] grown = new char[array.length + 1];
+            System.arraycopy(array, 0, grown, 0, index);
+            grown[index] = ch;
+            System.arraycopy(array, index, grown, index + 1, array.length - index);
+            return grown;
+        }
+    }
+
+    // Inserting an existing word again bumps its weight by one
+    public void insert(String word) {
+        RadixNode node = findNode(word);
+        insert(word, node != null && node.isEndOfWord ? node.weight + 1 : 1);
+    }
+
+    public void insert(String word, long weight) {
+        List<RadixNode> path = new ArrayList<>();
+        RadixNode current = root;
+        int pos = 0;
+        path.add(current);
+
+        while (pos < word.length()) {
+            int index = current.indexOf(word.charAt(pos));
+            if (index < 0) {
+                RadixNode leaf = new RadixNode(word.substring(pos).toCharArray());
+                current.addChild(leaf);
+                nodeCount++;
+                current = leaf;
+                path.add(current);
+                break;
+            }
+
+            RadixNode child = current.children[index];
+            int common = commonPrefix(child.label, word, pos);
+            if (common < child.label.length) {
+                // Split the edge: current -> middle(common part) -> child(rest)
+                RadixNode middle = new RadixNode(Arrays.copyOf(child.label, common));
+                child.label = Arrays.copyOfRange(child.label, common, child.label.length);
+                middle.firstChars = new char[]{child.label[0]};
+                middle.children = new RadixNode[]{child};
+                middle.recomputeMaxWeight();
+                current.children[index] = middle;
+                nodeCount++;
+                child = middle;
+            }
+            current = child;
+            path.add(current);
+            pos += common;
+        }
+
+        if (!current.isEndOfWord) {
+            current.isEndOfWord = true;
+            size++;
+        }
+        current.weight = weight;
+
+        // Refresh cached subtree maxima bottom-up along the insert path
+        for (int i = path.size() - 1; i >= 0; i--) {
+            path.get(i).recomputeMaxWeight();
+        }
+    }
+
+    public boolean search(String word) {
+        RadixNode node = findNode(word);
+        return node != null && node.isEndOfWord;
+    }
+
+    public boolean startsWith(String prefix) {
+        return locatePrefix(prefix) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    public List<String> completions(String prefix, int k) {
+        List<String> results = new ArrayList<>(Math.max(k, 0));
+        if (k <= 0) {
+            return results;
+        }
+        Candidate start = locatePrefix(prefix);
+        if (start == null) {
+            return results;
+        }
+
+        // Best-first search ordered by the best weight still reachable.
+        // A word is emitted only once nothing left in the queue can beat it.
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        queue.add(start);
+        while (!queue.isEmpty() && results.size() < k) {
+            Candidate next = queue.poll();
+            if (next.complete) {
+                results.add(next.text);
+                continue;
+            }
+            RadixNode node = next.node;
+            if (node.isEndOfWord) {
+                queue.add(new Candidate(null, next.text, node.weight, true));
+            }
+            for (RadixNode child : node.children) {
+                queue.add(new Candidate(child, next.text + new String(child.label), child.maxWeight, false));
+            }
+        }
+        return results;
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        final RadixNode node;
+        final String text;
+        final long bound;
+        final boolean complete;
+
+        Candidate(RadixNode node, String text, long bound, boolean complete) {
+            this.node = node;
+            this.text = text;
+            this.bound = bound;
+            this.complete = complete;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int byWeight = Long.compare(other.bound, bound);
+            if (byWeight != 0) return byWeight;
+            if (complete != other.complete) return complete ? -1 : 1;
+            return text.compareTo(other.text);
+        }
+    }
+
+    // Exact node for a whole word, or null (word may end mid-edge)
+    private RadixNode findNode(String word) {
+        RadixNode current = root;
+        int pos = 0;
+        while (pos < word.length()) {
+            int index = current.indexOf(word.charAt(pos));
+            if (index < 0) {
+                return null;
+            }
+            RadixNode child = current.children[index];
+            if (commonPrefix(child.label, word, pos) < child.label.length) {
+                return null;
+            }
+            pos += child.label.length;
+            current = child;
+        }
+        return current;
+    }
+
+    // Node whose subtree holds every word with this prefix, plus the
+    // full text spelled out to reach it (the prefix may end mid-edge)
+    private Candidate locatePrefix(String prefix) {
+        RadixNode current = root;
+        int pos = 0;
+        while (pos < prefix.length()) {
+            int index = current.indexOf(prefix.charAt(pos));
+            if (index < 0) {
+                return null;
+            }
+            RadixNode child = current.children[index];
+            int common = commonPrefix(child.label, prefix, pos);
+            if (pos + common == prefix.length()) {
+                String text = prefix + new String(child.label, common, child.label.length - common);
+                return new Candidate(child, text, child.maxWeight, false);
+            }
+            if (common < child.label.length) {
+                return null;
+            }
+            pos += common;
+            current = child;
+        }
+        return new Candidate(current, prefix, current.maxWeight, false);
+    }
+
+    private static int commonPrefix(char[] label, String word, int offset) {
+        int max = Math.min(label.length, word.length() - offset);
+        int i = 0;
+        while (i < max && label[i] == word.charAt(offset + i)) {
+            i++;
+        }
+        return i;
+    }
+}
+
+
+// ============================================================
+// LRU CACHE (LEAST RECENTLY USED)
+// ============================================================
+
+class LRUCache extends LinkedHashMap<Integer, String> {
+    private int capacity;
+
+    public LRUCache(int capacity) {
+        super(capacity, 0.75f, true); // accessOrder = true
+        this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+        return size() > capacity;
+    }
+}
+
+
+// ============================================================
+// CONCURRENT W-TINYLFU CACHE
+// ============================================================
+
+/*
+ * Thread-safe, size-bounded cache using the W-TinyLFU policy
+ * (the design behind Caffeine).
+ *
+ * LAYOUT:
+ *   [ window LRU (1%) ] -> [ probation (main) | protected (80% of main) ]
+ *
+ * - New entries land in the small window LRU.
+ * - Entries leaving the window must win an "admission duel" against the
+ *   main region's victim, judged by a FrequencySketch (approximate
+ *   popularity). One-hit wonders never push out popular entries.
+ * - Entries hit while in probation are promoted to protected.
+ *
+ * CONCURRENCY:
+ * - Reads: ConcurrentHashMap lookup + lossy offer into a striped ring
+ *   buffer. No lock and no list rewiring on the read path.
+ * - Writes: take the eviction lock, replay buffered reads, evict.
+ * - Dropping a read record only costs a little policy accuracy.
+ */
+class ConcurrentTinyLfuCache<K, V> {
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2, DEAD = 3;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final ToIntBiFunction<? super K, ? super V> weigher;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ReadBuffer<Node<K, V>> readBuffer = new ReadBuffer<>();
+    private final FrequencySketch sketch;
+
+    // Policy state below is guarded by evictionLock
+    private final AccessOrderDeque<K, V> window = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K, V> probation = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K, V> protectedQueue = new AccessOrderDeque<>();
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private long windowWeight;
+    private long protectedWeight;
+    private volatile long totalWeight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    static final class Node<K, V> {
+        final K key;
+        volatile V value;
+        int weight;
+        int queue;
+        Node<K, V> prev, next;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    public ConcurrentTinyLfuCache(long maximumSize) {
+        this(maximumSize, (k, v) -> 1);
+    }
+
+    public ConcurrentTinyLfuCache(long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher) {
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("maximumWeight must be positive");
+        }
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (long) ((maximumWeight - windowMaximum) * 0.8);
+        this.sketch = new FrequencySketch(maximumWeight);
+    }
+
+    public V get(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (!readBuffer.offer(node)) {
+            tryDrain(); // buffer full: help out if nobody holds the lock
+        }
+        return node.value;
+    }
+
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        V value = get(key);
+        if (value == null) {
+            value = loader.apply(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        int weight = weigher.applyAsInt(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("negative weight");
+        }
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            Node<K, V> node = data.get(key);
+            if (node == null) {
+                node = new Node<>(key, value, weight);
+                data.put(key, node);
+                node.queue = WINDOW;
+                window.addLast(node);
+                windowWeight += weight;
+                totalWeight += weight;
+                sketch.increment(key);
+            } else {
+                int delta = weight - node.weight;
+                node.value = value;
+                node.weight = weight;
+                totalWeight += delta;
+                if (node.queue == WINDOW) {
+                    windowWeight += delta;
+                } else if (node.queue == PROTECTED) {
+                    protectedWeight += delta;
+                }
+                onAccess(node);
+            }
+            evict();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public V remove(K key) {
+        evictionLock.lock();
+        try {
+            Node<K, V> node = data.remove(key);
+            if (node == null) {
+                return null;
+            }
+            unlink(node);
+            return node.value;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public long weightedSize() {
+        return totalWeight;
+    }
+
+    public String stats() {
+        long h = hits.sum(), m = misses.sum();
+        double hitRate = (h + m) == 0 ? 1.0 : (double) h / (h + m);
+        return String.format("hits=%d, misses=%d, evictions=%d, hitRate=%.2f",
+                h, m, evictions.sum(), hitRate);
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    private void tryDrain() {
+        if (evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void drainReadBuffer() {
+        readBuffer.drainTo(this::onAccess);
+    }
+
+    // Replay one access against the policy (caller holds evictionLock)
+    private void onAccess(Node<K, V> node) {
+        if (node.queue == DEAD) {
+            return; // evicted after the read was recorded
+        }
+        sketch.increment(node.key);
+        if (node.queue == WINDOW) {
+            window.moveToTail(node);
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedQueue.addLast(node);
+            protectedWeight += node.weight;
+            while (protectedWeight > protectedMaximum && protectedQueue.head != null) {
+                Node<K, V> demoted = protectedQueue.head;
+                protectedQueue.remove(demoted);
+                protectedWeight -= demoted.weight;
+                demoted.queue = PROBATION;
+                probation.addLast(demoted);
+            }
+        } else {
+            protectedQueue.moveToTail(node);
+        }
+    }
+
+    private void evict() {
+        // Window overflow: its LRU entries become admission candidates
+        while (windowWeight > windowMaximum && window.head != null) {
+            Node<K, V> node = window.head;
+            window.remove(node);
+            windowWeight -= node.weight;
+            node.queue = PROBATION;
+            probation.addLast(node);
+        }
+
+        // Over capacity: candidate (newest in probation) vs victim (oldest)
+        while (totalWeight > maximumWeight) {
+            Node<K, V> victim = probation.head;
+            Node<K, V> candidate = probation.tail;
+            if (victim == null) {
+                Node<K, V> fallback = protectedQueue.head != null ? protectedQueue.head : window.head;
+                if (fallback == null) {
+                    break;
+                }
+                evictNode(fallback);
+            } else if (victim == candidate) {
+                evictNode(victim);
+            } else if (candidate.weight > maximumWeight) {
+                evictNode(candidate);
+            } else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evictNode(victim);
+            } else {
+                evictNode(candidate);
+            }
+        }
+    }
+
+    private void evictNode(Node<K, V> node) {
+        data.remove(node.key, node);
+        unlink(node);
+        evictions.increment();
+    }
+
+    private void unlink(Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW -> {
+                window.remove(node);
+                windowWeight -= node.weight;
+            }
+            case PROBATION -> probation.remove(node);
+            case PROTECTED -> {
+                protectedQueue.remove(node);
+                protectedWeight -= node.weight;
+            }
+            default -> {
+                return;
+            }
+        }
+        totalWeight -= node.weight;
+        node.queue = DEAD;
+    }
+
+    // Intrusive doubly-linked list: nodes carry their own prev/next pointers
+    private static final class AccessOrderDeque<K, V> {
+        Node<K, V> head, tail;
+
+        void addLast(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = node.next = null;
+        }
+
+        void moveToTail(Node<K, V> node) {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /*
+     * Striped, lossy ring buffers. Each thread hashes to a stripe so
+     * concurrent readers rarely CAS the same counter. offer() returns
+     * false when the stripe is full - the read is simply not recorded.
+     */
+    private static final class ReadBuffer<E> {
+        private static final int BUFFER_SIZE = 16;
+        private static final int MASK = BUFFER_SIZE - 1;
+
+        private final Stripe<E>[] stripes;
+
+        private static final class Stripe<E> {
+            final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<>(BUFFER_SIZE);
+            final AtomicLong writeCounter = new AtomicLong();
+            volatile long readCounter;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ReadBuffer() {
+            int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+            stripes = new Stripe[count];
+            for (int i = 0; i < count; i++) {
+                stripes[i] = new Stripe<>();
+            }
+        }
+
+        boolean offer(E e) {
+            long probe = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+            Stripe<E> stripe = stripes[(int) (probe >>> 32) & (stripes.length - 1)];
+            long tail = stripe.writeCounter.get();
+            if (tail - stripe.readCounter >= BUFFER_SIZE) {
+                return false;
+            }
+            if (stripe.writeCounter.compareAndSet(tail, tail + 1)) {
+                stripe.buffer.lazySet((int) (tail & MASK), e);
+            }
+            return true; // losing the CAS race also just drops the record
+        }
+
+        // Single consumer: caller holds the eviction lock
+        void drainTo(Consumer<E> consumer) {
+            for (Stripe<E> stripe : stripes) {
+                long head = stripe.readCounter;
+                long tail = stripe.writeCounter.get();
+                for (; head < tail; head++) {
+                    int index = (int) (head & MASK);
+                    E e = stripe.buffer.get(index);
+                    if (e == null) {
+                        break; // slot claimed but not yet published
+                    }
+                    stripe.buffer.lazySet(index, null);
+                    consumer.accept(e);
+                }
+                stripe.readCounter = head;
+            }
+        }
+    }
+}
+
+
+/*
+ * Count-Min sketch with 4-bit counters, used as the TinyLFU admission
+ * filter. Each long holds sixteen counters; an item maps to four of
+ * them and its frequency is the minimum. Counters are halved after
+ * 10 * capacity increments so old popularity fades ("aging").
+ * Not thread-safe: only touched under the cache's eviction lock.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(long expectedSize) {
+        int capacity = (int) Math.min(Math.max(expectedSize, 16), 1 << 22);
+        capacity = Integer.highestOneBit(capacity - 1) << 1;
+        table = new long[capacity];
+        tableMask = capacity - 1;
+        sampleSize = 10 * capacity;
+    }
+
+    int frequency(Object item) {
+        int hash = spread(item.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(Object item) {
+        int hash = spread(item.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
+
+
+// ============================================================
+// OFF-HEAP SEGMENTED-LRU CACHE WITH TTL
+// ============================================================
+
+/*
+ * Cache whose entries live in direct ByteBuffers (outside the Java
+ * heap), so the garbage collector never scans them. The heap holds only
+ * this object and a handful of buffer references, whatever the size.
+ *
+ * STORAGE:
+ * - Fixed-size slots carved out of 1 GB direct "slabs", allocated on
+ *   demand. Each slot = 40-byte header + value bytes.
+ * - Hash index: an off-heap int array of bucket heads; slots chain
+ *   through their HASH_NEXT field.
+ * - LRU lists: slots link to each other through PREV/NEXT slot numbers.
+ *
+ * POLICY (segmented LRU):
+ * - New entries go to the probation segment.
+ * - A hit in probation promotes to protected (80% of capacity); the
+ *   protected LRU entry falls back to probation when it overflows.
+ * - Eviction takes the probation LRU first, so one-off scans cannot
+ *   flush entries that were used more than once.
+ * - Each entry may carry a TTL; expired entries are dropped on access.
+ *
+ * Thread-safe through synchronized methods.
+ */
+class OffHeapCache {
+    private static final int KEY = 0, EXPIRES_AT = 8, PREV = 16, NEXT = 20;
+    private static final int HASH_NEXT = 24, SEGMENT = 28, LENGTH = 32, HEADER_BYTES = 40;
+    private static final byte PROBATION = 0, PROTECTED = 1;
+    private static final int NONE = -1;
+    private static final int SLAB_BYTES = 1 << 30;
+
+    private final int slotSize;
+    private final int slotsPerSlab;
+    private final int capacity;
+    private final int protectedCapacity;
+    private final ByteBuffer[] slabs;
+    private final ByteBuffer buckets;
+    private final int bucketMask;
+
+    private int highWater;             // slots [0, highWater) have been handed out
+    private int freeHead = NONE;       // removed slots, chained through NEXT
+    private int size;
+    private final int[] head = {NONE, NONE};   // per segment, most recently used
+    private final int[] tail = {NONE, NONE};   // per segment, least recently used
+    private int protectedCount;
+
+    private long hits, misses, evictions, expirations;
+
+    public OffHeapCache(int capacity, int maxValueBytes) {
+        if (capacity <= 0 || maxValueBytes <= 0) {
+            throw new IllegalArgumentException("capacity and maxValueBytes must be positive");
+        }
+        this.capacity = capacity;
+        this.protectedCapacity = (int) (capacity * 0.8);
+        this.slotSize = (HEADER_BYTES + maxValueBytes + 7) & ~7;
+        this.slotsPerSlab = SLAB_BYTES / slotSize;
+        this.slabs = new ByteBuffer[(capacity + slotsPerSlab - 1) / slotsPerSlab];
+
+        int bucketCount = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.buckets = ByteBuffer.allocateDirect(bucketCount * 4);
+        this.bucketMask = bucketCount - 1;
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.putInt(i * 4, NONE);
+        }
+    }
+
+    // ttlMillis <= 0 means "never expires"; false if the value doesn't fit a slot
+    public synchronized boolean put(long key, byte[] value, long ttlMillis) {
+        if (value.length > slotSize - HEADER_BYTES) {
+            return false;
+        }
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        int slot = find(key);
+        if (slot == NONE) {
+            slot = allocateSlot();
+            setLong(slot, KEY, key);
+            int bucket = bucketOf(key);
+            setInt(slot, HASH_NEXT, buckets.getInt(bucket * 4));
+            buckets.putInt(bucket * 4, slot);
+            setByte(slot, SEGMENT, PROBATION);
+            pushFront(PROBATION, slot);
+            size++;
+        } else {
+            moveToFront(slot);
+        }
+        setLong(slot, EXPIRES_AT, expiresAt);
+        setInt(slot, LENGTH, value.length);
+        slab(slot).put(offset(slot) + HEADER_BYTES, value);
+        return true;
+    }
+
+    public boolean put(long key, String value, long ttlMillis) {
+        return put(key, value.getBytes(StandardCharsets.UTF_8), ttlMillis);
+    }
+
+    public synchronized byte[] get(long key) {
+        int slot = find(key);
+        if (slot == NONE) {
+            misses++;
+            return null;
+        }
+        long expiresAt = getLong(slot, EXPIRES_AT);
+        if (expiresAt != 0 && expiresAt <= System.currentTimeMillis()) {
+            removeSlot(slot);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        if (getByte(slot, SEGMENT) == PROBATION) {
+            promote(slot);
+        } else {
+            moveToFront(slot);
+        }
+        byte[] value = new byte[getInt(slot, LENGTH)];
+        slab(slot).get(offset(slot) + HEADER_BYTES, value);
+        return value;
+    }
+
+    public String getString(long key) {
+        byte[] value = get(key);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    public synchronized boolean remove(long key) {
+        int slot = find(key);
+        if (slot == NONE) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long directMemoryBytes() {
+        long bytes = buckets.capacity();
+        for (ByteBuffer slab : slabs) {
+            if (slab != null) {
+                bytes += slab.capacity();
+            }
+        }
+        return bytes;
+    }
+
+    public synchronized String stats() {
+        return String.format("size=%d, hits=%d, misses=%d, evictions=%d, expirations=%d",
+                size, hits, misses, evictions, expirations);
+    }
+
+    private int find(long key) {
+        int slot = buckets.getInt(bucketOf(key) * 4);
+        while (slot != NONE && getLong(slot, KEY) != key) {
+            slot = getInt(slot, HASH_NEXT);
+        }
+        return slot;
+    }
+
+    private int allocateSlot() {
+        if (freeHead != NONE) {
+            int slot = freeHead;
+            freeHead = getInt(slot, NEXT);
+            return slot;
+        }
+        if (highWater < capacity) {
+            int slab = highWater / slotsPerSlab;
+            if (slabs[slab] == null) {
+                int slots = Math.min(slotsPerSlab, capacity - slab * slotsPerSlab);
+                slabs[slab] = ByteBuffer.allocateDirect(slots * slotSize);
+            }
+            return highWater++;
+        }
+        // Full: evict the LRU of probation, or of protected if probation is empty
+        int victim = tail[PROBATION] != NONE ? tail[PROBATION] : tail[PROTECTED];
+        removeSlot(victim);
+        evictions++;
+        int slot = freeHead;
+        freeHead = getInt(slot, NEXT);
+        return slot;
+    }
+
+    private void removeSlot(int slot) {
+        // Unlink from the hash chain
+        int bucket = bucketOf(getLong(slot, KEY));
+        int current = buckets.getInt(bucket * 4);
+        if (current == slot) {
+            buckets.putInt(bucket * 4, getInt(slot, HASH_NEXT));
+        } else {
+            while (getInt(current, HASH_NEXT) != slot) {
+                current = getInt(current, HASH_NEXT);
+            }
+            setInt(current, HASH_NEXT, getInt(slot, HASH_NEXT));
+        }
+
+        byte segment = getByte(slot, SEGMENT);
+        unlink(segment, slot);
+        if (segment == PROTECTED) {
+            protectedCount--;
+        }
+        size--;
+        setInt(slot, NEXT, freeHead);
+        freeHead = slot;
+    }
+
+    private void promote(int slot) {
+        unlink(PROBATION, slot);
+        setByte(slot, SEGMENT, PROTECTED);
+        pushFront(PROTECTED, slot);
+        protectedCount++;
+        if (protectedCount > protectedCapacity) {
+            int demoted = tail[PROTECTED];
+            unlink(PROTECTED, demoted);
+            protectedCount--;
+            setByte(demoted, SEGMENT, PROBATION);
+            pushFront(PROBATION, demoted);
+        }
+    }
+
+    private void moveToFront(int slot) {
+        byte segment = getByte(slot, SEGMENT);
+        if (head[segment] != slot) {
+            unlink(segment, slot);
+            pushFront(segment, slot);
+        }
+    }
+
+    private void pushFront(int segment, int slot) {
+        setInt(slot, PREV, NONE);
+        setInt(slot, NEXT, head[segment]);
+        if (head[segment] != NONE) {
+            setInt(head[segment], PREV, slot);
+        } else {
+            tail[segment] = slot;
+        }
+        head[segment] = slot;
+    }
+
+    private void unlink(int segment, int slot) {
+        int prev = getInt(slot, PREV);
+        int next = getInt(slot, NEXT);
+        if (prev == NONE) {
+            head[segment] = next;
+        } else {
+            setInt(prev, NEXT, next);
+        }
+        if (next == NONE) {
+            tail[segment] = prev;
+        } else {
+            setInt(next, PREV, prev);
+        }
+    }
+
+    private int bucketOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & bucketMask;
+    }
+
+    private ByteBuffer slab(int slot) {
+        return slabs[slot / slotsPerSlab];
+    }
+
+    private int offset(int slot) {
+        return (slot % slotsPerSlab) * slotSize;
+    }
+
+    private long getLong(int slot, int field) {
+        return slab(slot).getLong(offset(slot) + field);
+    }
+
+    private void setLong(int slot, int field, long value) {
+        slab(slot).putLong(offset(slot) + field, value);
+    }
+
+    private int getInt(int slot, int field) {
+        return slab(slot).getInt(offset(slot) + field);
+    }
+
+    private void setInt(int slot, int field, int value) {
+        slab(slot).putInt(offset(slot) + field, value);
+    }
+
+    private byte getByte(int slot, int field) {
+        return slab(slot).get(offset(slot) + field);
+    }
+
+    private void setByte(int slot, int field, byte value) {
+        slab(slot).put(offset(slot) + field, value);
+    }
+}
+
+
+// ============================================================
+// PRIMITIVE OPEN-ADDRESSING HASH MAPS & SETS
+// ============================================================
+
+/*
+ * HashMap<Integer, Integer> stores every entry as a Node object holding
+ * two boxed Integers (~50 bytes per entry plus pointer chasing).
+ * These maps keep keys and values in plain parallel arrays:
+ *
+ * - Open addressing with linear probing: a colliding key takes the next
+ *   free slot, so lookups scan neighboring array cells (cache friendly).
+ * - Key 0 marks an empty slot; the real key 0 is stored on the side.
+ * - remove() uses backward-shift deletion: later entries of the probe
+ *   run slide back, so there are no tombstones to clean up.
+ * - Tables stay at most 60% full and double when they pass that.
+ *
+ * Not thread-safe; see ConcurrentIntIntMap for the striped version.
+ */
+final class PrimitiveHashing {
+    static final float LOAD_FACTOR = 0.6f;
+
+    private PrimitiveHashing() {
+    }
+
+    static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    static int tableSize(int expectedSize) {
+        long needed = (long) Math.ceil(Math.max(expectedSize, 2) / LOAD_FACTOR);
+        if (needed > 1 << 30) {
+            throw new IllegalArgumentException("Too many entries: " + expectedSize);
+        }
+        return Integer.highestOneBit((int) needed - 1) << 1;
+    }
+
+    // Should the entry at 'next' (home slot 'home') move back into 'gap'?
+    static boolean shouldShift(int gap, int next, int home, int mask) {
+        return ((next - home) & mask) >= ((next - gap) & mask);
+    }
+}
+
+
+class IntIntMap {
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(int key, int value);
+    }
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int assigned;      // non-zero keys in the table
+    private int resizeAt;
+    private boolean hasZeroKey;
+    private int zeroValue;
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    public IntIntMap(int expectedSize) {
+        allocate(PrimitiveHashing.tableSize(expectedSize));
+    }
+
+    public int get(int key, int defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        int existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    public boolean containsKey(int key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        int existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    // Returns the previous value, or defaultValue if the key was new
+    public int put(int key, int value, int defaultValue) {
+        if (key == 0) {
+            int previous = hasZeroKey ? zeroValue : defaultValue;
+            hasZeroKey = true;
+            zeroValue = value;
+            return previous;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        int existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++assigned >= resizeAt) {
+            rehash(keys.length * 2);
+        }
+        return defaultValue;
+    }
+
+    public void put(int key, int value) {
+        put(key, value, 0);
+    }
+
+    // Add delta to the value (starting from 0) and return the new value
+    public int addTo(int key, int delta) {
+        int updated = get(key, 0) + delta;
+        put(key, updated, 0);
+        return updated;
+    }
+
+    public int remove(int key, int defaultValue) {
+        if (key == 0) {
+            int previous = hasZeroKey ? zeroValue : defaultValue;
+            hasZeroKey = false;
+            zeroValue = 0;
+            return previous;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        int existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                int previous = values[slot];
+                shiftBack(slot);
+                assigned--;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    public int size() {
+        return assigned + (hasZeroKey ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void forEach(EntryConsumer consumer) {
+        if (hasZeroKey) {
+            consumer.accept(0, zeroValue);
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                consumer.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    private void shiftBack(int gap) {
+        int next = (gap + 1) & mask;
+        int key;
+        while ((key = keys[next]) != 0) {
+            if (PrimitiveHashing.shouldShift(gap, next, PrimitiveHashing.mix(key) & mask, mask)) {
+                keys[gap] = key;
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = 0;
+        values[gap] = 0;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * PrimitiveHashing.LOAD_FACTOR);
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key != 0) {
+                int slot = PrimitiveHashing.mix(key) & mask;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
+
+
+class LongLongMap {
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long key, long value);
+    }
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int assigned;
+    private int resizeAt;
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    public LongLongMap() {
+        this(16);
+    }
+
+    public LongLongMap(int expectedSize) {
+        allocate(PrimitiveHashing.tableSize(expectedSize));
+    }
+
+    public long get(long key, long defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        long existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        long existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public long put(long key, long value, long defaultValue) {
+        if (key == 0) {
+            long previous = hasZeroKey ? zeroValue : defaultValue;
+            hasZeroKey = true;
+            zeroValue = value;
+            return previous;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        long existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                long previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++assigned >= resizeAt) {
+            rehash(keys.length * 2);
+        }
+        return defaultValue;
+    }
+
+    public void put(long key, long value) {
+        put(key, value, 0);
+    }
+
+    public long remove(long key, long defaultValue) {
+        if (key == 0) {
+            long previous = hasZeroKey ? zeroValue : defaultValue;
+            hasZeroKey = false;
+            zeroValue = 0;
+            return previous;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        long existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                long previous = values[slot];
+                shiftBack(slot);
+                assigned--;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    public int size() {
+        return assigned + (hasZeroKey ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void forEach(EntryConsumer consumer) {
+        if (hasZeroKey) {
+            consumer.accept(0, zeroValue);
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                consumer.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    private void shiftBack(int gap) {
+        int next = (gap + 1) & mask;
+        long key;
+        while ((key = keys[next]) != 0) {
+            if (PrimitiveHashing.shouldShift(gap, next, PrimitiveHashing.mix(key) & mask, mask)) {
+                keys[gap] = key;
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = 0;
+        values[gap] = 0;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * PrimitiveHashing.LOAD_FACTOR);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != 0) {
+                int slot = PrimitiveHashing.mix(key) & mask;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
+
+
+class IntObjectMap<V> {
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(int key, V value);
+    }
+
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int assigned;
+    private int resizeAt;
+    private boolean hasZeroKey;
+    private V zeroValue;
+
+    public IntObjectMap() {
+        this(16);
+    }
+
+    public IntObjectMap(int expectedSize) {
+        allocate(PrimitiveHashing.tableSize(expectedSize));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : null;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        int existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                return (V) values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(int key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        int existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (key == 0) {
+            V previous = zeroValue;
+            hasZeroKey = true;
+            zeroValue = value;
+            return previous;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        int existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++assigned >= resizeAt) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        if (key == 0) {
+            V previous = zeroValue;
+            hasZeroKey = false;
+            zeroValue = null;
+            return previous;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        int existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                V previous = (V) values[slot];
+                shiftBack(slot);
+                assigned--;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return assigned + (hasZeroKey ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<? super V> consumer) {
+        if (hasZeroKey) {
+            consumer.accept(0, zeroValue);
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                consumer.accept(keys[slot], (V) values[slot]);
+            }
+        }
+    }
+
+    private void shiftBack(int gap) {
+        int next = (gap + 1) & mask;
+        int key;
+        while ((key = keys[next]) != 0) {
+            if (PrimitiveHashing.shouldShift(gap, next, PrimitiveHashing.mix(key) & mask, mask)) {
+                keys[gap] = key;
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = 0;
+        values[gap] = null;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * PrimitiveHashing.LOAD_FACTOR);
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key != 0) {
+                int slot = PrimitiveHashing.mix(key) & mask;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
+
+
+class IntSet {
+    private int[] keys;
+    private int mask;
+    private int assigned;
+    private int resizeAt;
+    private boolean hasZero;
+
+    public IntSet() {
+        this(16);
+    }
+
+    public IntSet(int expectedSize) {
+        allocate(PrimitiveHashing.tableSize(expectedSize));
+    }
+
+    public boolean contains(int key) {
+        if (key == 0) {
+            return hasZero;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        int existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    // Returns true if the key was not already present
+    public boolean add(int key) {
+        if (key == 0) {
+            boolean added = !hasZero;
+            hasZero = true;
+            return added;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        int existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        if (++assigned >= resizeAt) {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    public boolean remove(int key) {
+        if (key == 0) {
+            boolean removed = hasZero;
+            hasZero = false;
+            return removed;
+        }
+        int slot = PrimitiveHashing.mix(key) & mask;
+        int existing;
+        while ((existing = keys[slot]) != 0) {
+            if (existing == key) {
+                shiftBack(slot);
+                assigned--;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return assigned + (hasZero ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void forEach(IntConsumer consumer) {
+        if (hasZero) {
+            consumer.accept(0);
+        }
+        for (int key : keys) {
+            if (key != 0) {
+                consumer.accept(key);
+            }
+        }
+    }
+
+    private void shiftBack(int gap) {
+        int next = (gap + 1) & mask;
+        int key;
+        while ((key = keys[next]) != 0) {
+            if (PrimitiveHashing.shouldShift(gap, next, PrimitiveHashing.mix(key) & mask, mask)) {
+                keys[gap] = key;
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = 0;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * PrimitiveHashing.LOAD_FACTOR);
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        allocate(capacity);
+        for (int key : oldKeys) {
+            if (key != 0) {
+                int slot = PrimitiveHashing.mix(key) & mask;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+            }
+        }
+    }
+}
+
+
+/*
+ * Thread-safe IntIntMap: keys are spread over independent stripes, each
+ * an IntIntMap with its own lock, so threads touching different stripes
+ * never contend. Iteration locks one stripe at a time (weakly consistent).
+ */
+class ConcurrentIntIntMap {
+    private final IntIntMap[] stripes;
+    private final int stripeMask;
+
+    public ConcurrentIntIntMap(int expectedSize) {
+        int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+        stripes = new IntIntMap[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new IntIntMap(expectedSize / count);
+        }
+        stripeMask = count - 1;
+    }
+
+    // Use the high hash bits for the stripe; the stripe map uses the low ones
+    private IntIntMap stripe(int key) {
+        return stripes[(PrimitiveHashing.mix(key) >>> 24) & stripeMask];
+    }
+
+    public int get(int key, int defaultValue) {
+        IntIntMap stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.get(key, defaultValue);
+        }
+    }
+
+    public boolean containsKey(int key) {
+        IntIntMap stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.containsKey(key);
+        }
+    }
+
+    public int put(int key, int value, int defaultValue) {
+        IntIntMap stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.put(key, value, defaultValue);
+        }
+    }
+
+    public int addTo(int key, int delta) {
+        IntIntMap stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.addTo(key, delta);
+        }
+    }
+
+    public int remove(int key, int defaultValue) {
+        IntIntMap stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.remove(key, defaultValue);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (IntIntMap stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public void forEach(IntIntMap.EntryConsumer consumer) {
+        for (IntIntMap stripe : stripes) {
+            synchronized (stripe) {
+                stripe.forEach(consumer);
+            }
+        }
     }
 }
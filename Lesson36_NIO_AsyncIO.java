@@ -55,12 +55,14 @@
  * ✗ Few connections
  */
 
+import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.nio.file.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class Lesson36_NIO_AsyncIO {
     public static void main(String[] args) {
@@ -470,6 +472,134 @@ public class Lesson36_NIO_AsyncIO {
         System.out.println();
 
 
+        // ============================================================
+        // 11. ZERO-COPY FILE SERVER
+        // ============================================================
+
+        System.out.println("--- Zero-Copy Static File Server ---");
+
+        /*
+         * StaticFileServer (end of this file) sends large files with
+         * transferTo() straight into the socket and small ones from a
+         * direct-buffer cache. Raw HTTP requests show the responses.
+         */
+        Path siteDir = null;
+        try {
+            siteDir = Files.createTempDirectory("static-site");
+            Files.writeString(siteDir.resolve("index.html"), "<h1>Hello from StaticFileServer</h1>");
+            Path bigFile = siteDir.resolve("big.bin");
+            writeTestFile(bigFile, 128L << 20);
+
+            try (StaticFileServer server = new StaticFileServer(siteDir)) {
+                int port = server.port();
+                System.out.println(firstLineAndBody(fetch(port, "GET / HTTP/1.1\r\n")));
+                System.out.println(firstLineAndBody(fetch(port, "GET /index.html HTTP/1.1\r\nRange: bytes=4-8\r\n")));
+                System.out.println(firstLineAndBody(fetch(port, "GET /index.html HTTP/1.1\r\nRange: bytes=500-\r\n")));
+                System.out.println(firstLineAndBody(fetch(port, "GET /../../etc/passwd HTTP/1.1\r\n")));
+                System.out.println("Requests " + server.requests() + ", served from cache " + server.cacheHits());
+
+                Path shrinking = siteDir.resolve("shrinking.bin");
+                writeTestFile(shrinking, 32L << 20);
+                System.out.println("File shrank mid-response, connection closed: "
+                        + closedWhenFileShrinks(port, shrinking));
+            }
+
+            benchmarkFileServer(siteDir, "big.bin", Files.size(bigFile));
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        } finally {
+            if (siteDir != null) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(siteDir)) {
+                    for (Path file : files) {
+                        Files.delete(file);
+                    }
+                    Files.delete(siteDir);
+                } catch (IOException e) {
+                    System.out.println("Cleanup failed: " + e.getMessage());
+                }
+            }
+        }
+
+        System.out.println();
+
+
+        // ============================================================
+        // 12. POOLED DIRECT BUFFERS
+        // ============================================================
+
+        System.out.println("--- Pooled Direct Buffers ---");
+
+        /*
+         * BufferPool (end of this file) hands out reference-counted direct
+         * buffers. Here one chunk is read from a file and shared with a
+         * sender thread that writes it to a Pipe: each owner releases its
+         * reference and the memory returns to the pool after the last one.
+         */
+        BufferPool pool = new BufferPool();
+        try {
+            Path chunkFile = Files.createTempFile("pooled", ".txt");
+            Files.writeString(chunkFile, "Pooled buffers are shared, not copied");
+            Pipe pipe = Pipe.open();
+            ExecutorService sender = Executors.newSingleThreadExecutor();
+            try (FileChannel file = FileChannel.open(chunkFile, StandardOpenOption.READ);
+                 BufferPool.PooledBuffer chunk = pool.acquire(3000)) {
+                System.out.println("Asked for 3000 bytes: limit=" + chunk.buffer().limit()
+                        + ", capacity=" + chunk.buffer().capacity() + " (size class)");
+                file.read(chunk.buffer());
+                chunk.buffer().flip();
+
+                chunk.retain();                           // second owner: the sender
+                System.out.println("References after retain: " + chunk.referenceCount());
+                Future<?> sent = sender.submit(() -> {
+                    try {
+                        ByteBuffer view = chunk.buffer().duplicate();
+                        while (view.hasRemaining()) {
+                            pipe.sink().write(view);
+                        }
+                    } finally {
+                        chunk.release();
+                    }
+                    return null;
+                });
+                sent.get();
+                ByteBuffer received = ByteBuffer.allocate(chunk.buffer().remaining());
+                while (received.hasRemaining()) {
+                    pipe.source().read(received);
+                }
+                System.out.println("Through the pipe: " + new String(received.array()));
+                System.out.println("References after the sender released: " + chunk.referenceCount());
+            } finally {
+                sender.shutdown();
+                pipe.sink().close();
+                pipe.source().close();
+                Files.deleteIfExists(chunkFile);
+            }
+
+            BufferPool.PooledBuffer released = pool.acquire(100);
+            released.release();
+            try {
+                released.release();
+            } catch (IllegalStateException e) {
+                System.out.println("Second release: " + e.getMessage());
+            }
+
+            // Debug mode reports buffers that were never released
+            BufferPool debugPool = new BufferPool(512, 1 << 20, 4 << 20, true);
+            debugPool.acquire(4096);                      // dropped without release()
+            for (int i = 0; i < 20 && debugPool.leaksDetected() == 0; i++) {
+                System.gc();
+                Thread.sleep(50);
+            }
+            System.out.println("Leaks detected in debug mode: " + debugPool.leaksDetected());
+
+            benchmarkBufferPool(pool);
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
         // ============================================================
         // KEY TAKEAWAYS
         // ============================================================
@@ -559,7 +689,8 @@ public class Lesson36_NIO_AsyncIO {
          * ZERO-COPY TRANSFER:
          * transferTo() and transferFrom() use OS-level
          * operations for efficient file copying without
-         * copying data to JVM heap.
+         * copying data to JVM heap. Into a SocketChannel it
+         * becomes sendfile(): files served without entering the JVM.
          *
          * MEMORY-MAPPED FILES:
          * - Very fast for large files
@@ -580,6 +711,199 @@ public class Lesson36_NIO_AsyncIO {
          */
     }
 
+    // One request with "Connection: close"; returns the raw response
+    private static String fetch(int port, String requestHead) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            String request = requestHead + "Host: localhost\r\nConnection: close\r\n\r\n";
+            channel.write(ByteBuffer.wrap(request.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1)));
+            return new String(Channels.newInputStream(channel).readAllBytes(),
+                    java.nio.charset.StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static String firstLineAndBody(String response) {
+        int headEnd = response.indexOf("\r\n\r\n");
+        String range = response.lines().filter(line -> line.startsWith("Content-Range:")).findFirst().orElse("");
+        return response.substring(0, response.indexOf("\r\n")) + (range.isEmpty() ? "" : " [" + range + "]")
+                + " -> " + response.substring(headEnd + 4).trim();
+    }
+
+    // Truncate a file while it is being sent: the server has to close the
+    // connection, not wait (or spin) for bytes that no longer exist
+    private static boolean closedWhenFileShrinks(int port, Path file) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.getOutputStream().write(("GET /" + file.getFileName() + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .getBytes(java.nio.charset.StandardCharsets.ISO_8859_1));
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            in.read(buffer);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(1000);
+            }
+            socket.setSoTimeout(2000);
+            try {
+                while (in.read(buffer) >= 0) {
+                    // drain what was already in flight
+                }
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+        }
+    }
+
+    private static void writeTestFile(Path file, long size) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20);
+        new Random(42).ints(chunk.capacity() / 4).forEach(chunk::putInt);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < size; written += chunk.capacity()) {
+                chunk.clear();
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            }
+        }
+    }
+
+    // Download the file repeatedly over one keep-alive connection:
+    // transferTo (sendfile) vs reading into a heap buffer and writing it
+    private static void benchmarkFileServer(Path dir, String name, long size) throws IOException {
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+        int downloads = 16;
+        System.out.printf("%d downloads of %d MB over one keep-alive connection:%n", downloads, size >> 20);
+        for (int round = 0; round < 2; round++) {
+            for (boolean zeroCopy : new boolean[]{false, true}) {
+                try (StaticFileServer server = new StaticFileServer(dir,
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), zeroCopy, 64L << 20);
+                     SocketChannel channel = SocketChannel.open(
+                             new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port()))) {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                    byte[] request = ("GET /" + name + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                            .getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+                    long cpuBefore = os.getProcessCpuTime();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < downloads; i++) {
+                        channel.write(ByteBuffer.wrap(request));
+                        if (readResponseBody(channel, buffer) != size) {
+                            throw new IOException("Short download");
+                        }
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    long cpu = os.getProcessCpuTime() - cpuBefore;
+                    double gigabytes = downloads * (double) size / (1L << 30);
+                    if (round == 1) {
+                        System.out.printf("  %-26s %,7.0f MB/s, %,5.0f ms CPU per GB (client + server)%n",
+                                zeroCopy ? "transferTo (zero-copy):" : "heap buffer copy:",
+                                downloads * (double) size / (1 << 20) / (elapsed / 1e9), cpu / 1e6 / gigabytes);
+                    }
+                }
+            }
+        }
+    }
+
+    // Skip one response's headers and drain its Content-Length body
+    private static long readResponseBody(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int headEnd = -1;
+        while (headEnd < 0) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+            for (int i = 0; i + 3 < buffer.position(); i++) {
+                if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                        && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                    headEnd = i + 4;
+                    break;
+                }
+            }
+        }
+        byte[] head = new byte[headEnd];
+        buffer.get(0, head);
+        long length = 0;
+        for (String line : new String(head, java.nio.charset.StandardCharsets.ISO_8859_1).split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                length = Long.parseLong(line.substring(15).trim());
+            }
+        }
+        long received = buffer.position() - headEnd;
+        while (received < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - received));
+            int n = channel.read(buffer);
+            if (n < 0) {
+                throw new EOFException("Connection closed mid-body");
+            }
+            received += n;
+        }
+        return received;
+    }
+
+    // Acquire/release of mixed I/O-sized buffers on several threads:
+    // allocateDirect per use vs the pool
+    private static void benchmarkBufferPool(BufferPool pool) throws InterruptedException, ExecutionException {
+        int threads = 4;
+        int perThread = 100_000;
+        int[] sizes = {4096, 16 * 1024, 64 * 1024};
+        java.lang.management.BufferPoolMXBean direct = java.lang.management.ManagementFactory
+                .getPlatformMXBeans(java.lang.management.BufferPoolMXBean.class).stream()
+                .filter(bean -> bean.getName().equals("direct")).findFirst().orElseThrow();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            System.out.printf("%,d buffers of 4-64 KB on %d threads:%n", threads * perThread, threads);
+            for (int round = 0; round < 2; round++) {
+                for (boolean pooled : new boolean[]{false, true}) {
+                    System.gc();                          // free the previous run's direct buffers
+                    Thread.sleep(100);
+                    long gcBefore = gcCount();
+                    // Deltas, not totals: the gc above may not have freed
+                    // everything the allocateDirect run left behind yet
+                    long memoryBefore = direct.getMemoryUsed();
+                    long countBefore = direct.getCount();
+                    List<Callable<Long>> tasks = Collections.nCopies(threads, () -> {
+                        long sum = 0;
+                        for (int i = 0; i < perThread; i++) {
+                            int size = sizes[i % sizes.length];
+                            if (pooled) {
+                                BufferPool.PooledBuffer buffer = pool.acquire(size);
+                                buffer.buffer().putLong(size - 8, i);
+                                sum += buffer.buffer().getLong(size - 8);
+                                buffer.release();
+                            } else {
+                                ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+                                buffer.putLong(size - 8, i);
+                                sum += buffer.getLong(size - 8);
+                            }
+                        }
+                        return sum;
+                    });
+                    long start = System.nanoTime();
+                    for (Future<Long> result : workers.invokeAll(tasks)) {
+                        result.get();
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    if (round == 1) {
+                        System.out.printf("  %-18s %,10.0f buffers/s, %3d GCs, direct memory added: %+,5d MB in %+,7d buffers%n",
+                                pooled ? "BufferPool:" : "allocateDirect:", threads * perThread * 1e9 / elapsed,
+                                gcCount() - gcBefore, (direct.getMemoryUsed() - memoryBefore) >> 20,
+                                direct.getCount() - countBefore);
+                    }
+                }
+            }
+            System.out.printf("  (pool slabs reserved: %d MB)%n", pool.reservedBytes() >> 20);
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
     // Helper method to print buffer state
     private static void printBufferState(ByteBuffer buffer) {
         System.out.println("  position=" + buffer.position() +
@@ -588,3 +912,757 @@ public class Lesson36_NIO_AsyncIO {
                 ", remaining=" + buffer.remaining());
     }
 }
+
+
+// ============================================================
+// ZERO-COPY STATIC FILE SERVER
+// ============================================================
+
+/*
+ * Minimal HTTP/1.1 static file server on one Selector thread.
+ *
+ * Copying a file to a socket the usual way moves every byte four
+ * times: disk -> kernel page cache -> JVM buffer -> kernel socket
+ * buffer -> NIC. FileChannel.transferTo() into a SocketChannel becomes
+ * sendfile() on Linux: the kernel sends straight from the page cache and
+ * the bytes never enter the JVM. Set zeroCopy to false to copy through a
+ * heap buffer instead, for comparison.
+ *
+ * - GET and HEAD for files under root ("/" serves index.html); paths
+ *   that escape root are 404
+ * - keep-alive by default (HTTP/1.1), pipelined requests are answered
+ *   in order; "Connection: close" or HTTP/1.0 closes after the reply
+ * - a single "Range: bytes=a-b", "a-" or "-n" gets 206 Partial Content
+ *   (416 if it starts past the end); multiple ranges get the whole file
+ * - files up to CACHE_MAX_FILE bytes are kept in read-only direct
+ *   buffers (least recently used evicted past cacheCapacity) and sent
+ *   with the headers in one gathering write. A cached copy is dropped
+ *   when the file's size or modification time changes
+ * - a non-blocking socket may take only part of a response; the rest is
+ *   sent when the socket becomes writable again, and the connection is
+ *   not read meanwhile
+ * - request bytes are read into a BufferPool buffer that is only held
+ *   while a request is incomplete: idle keep-alive connections hold none
+ */
+class StaticFileServer implements Closeable {
+    public static final int CACHE_MAX_FILE = 64 * 1024;
+    private static final int MAX_REQUEST_HEAD = 8192;
+
+    private final Path root;
+    private final boolean zeroCopy;
+    private final long cacheCapacity;
+    private final ServerSocketChannel listener;
+    private final Selector selector;
+    private final Thread thread;
+    private final LinkedHashMap<Path, CachedFile> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final BufferPool buffers = new BufferPool();
+    private long cachedBytes;
+    private volatile long requests;
+    private volatile long cacheHits;
+    private volatile long bodyBytesSent;
+    private volatile boolean closed;
+
+    private record CachedFile(ByteBuffer data, long size, long modified) {
+    }
+
+    public StaticFileServer(Path root) throws IOException {
+        this(root, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), true, 64L << 20);
+    }
+
+    public StaticFileServer(Path root, InetSocketAddress address, boolean zeroCopy, long cacheCapacity)
+            throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.zeroCopy = zeroCopy;
+        this.cacheCapacity = cacheCapacity;
+        this.selector = Selector.open();
+        this.listener = ServerSocketChannel.open();
+        try {
+            listener.bind(address, 1024);
+            listener.configureBlocking(false);
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            listener.close();
+            selector.close();
+            throw e;
+        }
+        this.thread = new Thread(this::run, "file-server-" + port());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public int port() {
+        return listener.socket().getLocalPort();
+    }
+
+    public long requests() {
+        return requests;
+    }
+
+    public long cacheHits() {
+        return cacheHits;
+    }
+
+    public long bodyBytesSent() {
+        return bodyBytesSent;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select(key -> {
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        ((Connection) key.attachment()).onReady();
+                    }
+                });
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed) {
+                System.out.println("File server stopped: " + e);
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection connection) {
+                    connection.close();
+                }
+            }
+            try {
+                listener.close();
+                selector.close();
+            } catch (IOException e) {
+                // shutting down anyway
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = listener.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+        } catch (IOException e) {
+            // out of descriptors and the like: the client retries
+        }
+    }
+
+    // ---------------------------------------------------------------
+
+    private final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        BufferPool.PooledBuffer request;       // request bytes, fill mode; null when none
+        ByteBuffer[] out;                      // headers (+ cached body) still to send
+        FileChannel file;                      // streamed body: [filePosition, fileEnd)
+        long filePosition;
+        long fileEnd;
+        ByteBuffer copyBuffer;                 // zeroCopy == false only
+        boolean closeAfterResponse;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void onReady() {
+            try {
+                if (key.isWritable() && !writeResponse()) {
+                    return;
+                }
+                if (key.isReadable()) {
+                    if (request == null) {
+                        request = buffers.acquire(MAX_REQUEST_HEAD);
+                    }
+                    if (channel.read(request.buffer()) < 0) {
+                        close();
+                        return;
+                    }
+                }
+                handleRequests();
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        // Answer every complete request in the buffer, until one can't be sent in full
+        private void handleRequests() throws IOException {
+            while (out == null && file == null) {
+                if (closeAfterResponse) {
+                    close();
+                    return;
+                }
+                ByteBuffer in = request == null ? null : request.buffer();
+                int headEnd = in == null ? -1 : findHeadEnd(in);
+                if (headEnd >= 0) {
+                    byte[] bytes = new byte[headEnd];
+                    in.get(0, bytes);
+                    in.flip().position(headEnd + 4);
+                    in.compact();
+                    if (in.position() == 0) {
+                        request.release();
+                        request = null;
+                    }
+                    requests++;
+                    respond(new String(bytes, java.nio.charset.StandardCharsets.ISO_8859_1));
+                } else if (in == null || in.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                } else {
+                    closeAfterResponse = true;
+                    respondError(431, "Request Header Fields Too Large");
+                }
+                if (!writeResponse()) {
+                    return;
+                }
+            }
+        }
+
+        private int findHeadEnd(ByteBuffer in) {
+            for (int i = 0; i + 3 < in.position(); i++) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void respond(String head) throws IOException {
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                closeAfterResponse = true;
+                respondError(400, "Bad Request");
+                return;
+            }
+            String range = null;
+            String connection = null;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Range")) {
+                    range = value;
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    connection = value;
+                }
+            }
+            closeAfterResponse = requestLine[2].equals("HTTP/1.0")
+                    ? !"keep-alive".equalsIgnoreCase(connection)
+                    : "close".equalsIgnoreCase(connection);
+
+            String method = requestLine[0];
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                respondError(405, "Method Not Allowed");
+                return;
+            }
+            Path path = resolve(requestLine[1]);
+            if (path == null) {
+                respondError(404, "Not Found");
+                return;
+            }
+            java.nio.file.attribute.BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, java.nio.file.attribute.BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                respondError(404, "Not Found");                // deleted just now
+                return;
+            }
+            long size = attributes.size();
+
+            long start = 0;
+            long end = size - 1;                           // inclusive
+            boolean partial = false;
+            long[] requested = range == null ? null : parseRange(range, size);
+            if (requested != null) {
+                if (requested.length == 0) {
+                    send(header(416, "Range Not Satisfiable", "text/plain", 0,
+                            "Content-Range: bytes */" + size + "\r\n"), null);
+                    return;
+                }
+                start = requested[0];
+                end = requested[1];
+                partial = true;
+            }
+            long length = end - start + 1;
+            String extra = "Accept-Ranges: bytes\r\n"
+                    + (partial ? "Content-Range: bytes " + start + "-" + end + "/" + size + "\r\n" : "");
+            ByteBuffer headers = partial
+                    ? header(206, "Partial Content", contentType(path), length, extra)
+                    : header(200, "OK", contentType(path), length, extra);
+            if (method.equals("HEAD") || length == 0) {
+                send(headers, null);
+                return;
+            }
+
+            if (size <= CACHE_MAX_FILE && cacheCapacity > 0) {
+                ByteBuffer data = cached(path, size, attributes.lastModifiedTime().toMillis());
+                send(headers, data.slice((int) start, (int) length));
+                bodyBytesSent += length;
+            } else {
+                send(headers, null);
+                file = FileChannel.open(path, StandardOpenOption.READ);
+                filePosition = start;
+                fileEnd = start + length;
+            }
+        }
+
+        // File under root for the request target, or null
+        private Path resolve(String target) {
+            String rawPath = target.split("\\?", 2)[0];
+            String decoded;
+            try {
+                decoded = URI.create(rawPath).getPath();
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (decoded == null || !decoded.startsWith("/")) {
+                return null;
+            }
+            Path path = root.resolve(decoded.substring(1)).normalize();
+            if (!path.startsWith(root)) {
+                return null;
+            }
+            if (Files.isDirectory(path)) {
+                path = path.resolve("index.html");
+            }
+            return Files.isRegularFile(path) && Files.isReadable(path) ? path : null;
+        }
+
+        // {start, end} inclusive; empty if unsatisfiable; null to ignore the header
+        private long[] parseRange(String header, long size) {
+            if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+                return null;
+            }
+            String spec = header.substring(6).trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {                    // suffix: last n bytes
+                    long n = Long.parseLong(last);
+                    return n <= 0 || size == 0 ? new long[0] : new long[]{Math.max(0, size - n), size - 1};
+                }
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (start < 0 || end < start) {
+                    return null;
+                }
+                return start >= size ? new long[0] : new long[]{start, Math.min(end, size - 1)};
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private void respondError(int status, String reason) {
+            byte[] body = (status + " " + reason + "\n").getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+            String extra = status == 405 ? "Allow: GET, HEAD\r\n" : "";
+            send(header(status, reason, "text/plain", body.length, extra), ByteBuffer.wrap(body));
+        }
+
+        private ByteBuffer header(int status, String reason, String contentType, long length, String extra) {
+            String head = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Length: " + length + "\r\n"
+                    + extra
+                    + (closeAfterResponse ? "Connection: close\r\n" : "")
+                    + "\r\n";
+            return ByteBuffer.wrap(head.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1));
+        }
+
+        private void send(ByteBuffer headers, ByteBuffer body) {
+            out = body == null ? new ByteBuffer[]{headers} : new ByteBuffer[]{headers, body};
+        }
+
+        // True once the whole response is out; otherwise waits for OP_WRITE
+        private boolean writeResponse() throws IOException {
+            if (out != null) {
+                channel.write(out);
+                if (out[out.length - 1].hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return false;
+                }
+                out = null;
+            }
+            if (file != null) {
+                while (filePosition < fileEnd) {
+                    long n = zeroCopy
+                            ? file.transferTo(filePosition, fileEnd - filePosition, channel)
+                            : copyThroughHeap();
+                    if (n <= 0) {
+                        // transferTo also returns 0 past the end of a file
+                        // that shrank; waiting for OP_WRITE would spin
+                        if (zeroCopy && filePosition >= file.size()) {
+                            throw new EOFException("File shrank while being sent");
+                        }
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return false;
+                    }
+                    filePosition += n;
+                    bodyBytesSent += n;
+                }
+                file.close();
+                file = null;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            return true;
+        }
+
+        // Read a chunk into the heap and write it: what transferTo avoids
+        private long copyThroughHeap() throws IOException {
+            if (copyBuffer == null) {
+                copyBuffer = ByteBuffer.allocate(64 * 1024).flip();
+            }
+            if (!copyBuffer.hasRemaining()) {
+                copyBuffer.clear().limit((int) Math.min(copyBuffer.capacity(), fileEnd - filePosition));
+                if (file.read(copyBuffer, filePosition) < 0) {
+                    throw new EOFException("File shrank while being sent");
+                }
+                copyBuffer.flip();
+            }
+            return channel.write(copyBuffer);
+        }
+
+        void close() {
+            key.cancel();
+            if (request != null) {
+                request.release();
+                request = null;
+            }
+            try {
+                channel.close();
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    // Direct-buffer copy of a small file, reloaded if it changed on disk
+    private ByteBuffer cached(Path path, long size, long modified) throws IOException {
+        CachedFile entry = cache.get(path);
+        if (entry != null && entry.size() == size && entry.modified() == modified) {
+            cacheHits++;
+            return entry.data();
+        }
+        if (entry != null) {
+            cache.remove(path);
+            cachedBytes -= entry.size();
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                // keep reading
+            }
+        }
+        data.flip();
+        if (data.limit() != size) {
+            throw new IOException("File changed while being cached: " + path);
+        }
+        ByteBuffer readOnly = data.asReadOnlyBuffer();
+        cache.put(path, new CachedFile(readOnly, size, modified));
+        cachedBytes += size;
+        Iterator<Map.Entry<Path, CachedFile>> eldest = cache.entrySet().iterator();
+        while (cachedBytes > cacheCapacity && eldest.hasNext()) {
+            cachedBytes -= eldest.next().getValue().size();
+            eldest.remove();
+        }
+        return readOnly;
+    }
+
+    private static String contentType(Path path) {
+        String name = path.getFileName().toString().toLowerCase();
+        String extension = name.substring(name.lastIndexOf('.') + 1);
+        return switch (extension) {
+            case "html", "htm" -> "text/html; charset=utf-8";
+            case "txt" -> "text/plain; charset=utf-8";
+            case "css" -> "text/css";
+            case "js" -> "text/javascript";
+            case "json" -> "application/json";
+            case "png" -> "image/png";
+            case "jpg", "jpeg" -> "image/jpeg";
+            default -> "application/octet-stream";
+        };
+    }
+}
+
+
+// ============================================================
+// POOLED DIRECT BUFFERS
+// ============================================================
+
+/*
+ * Size-classed pool of direct ByteBuffers with reference counting.
+ *
+ * allocateDirect() is slow (it zeroes the memory and registers a
+ * Cleaner) and the memory is only freed after a GC notices the buffer is
+ * unreachable. Allocating one per read or write churns native memory
+ * and can stall on -XX:MaxDirectMemorySize waiting for that GC. Here:
+ *
+ * - requests are rounded up to a power of two between minSize and
+ *   maxSize. Each size class is cut from slabs of slabSize bytes
+ *   allocated once and kept, so native memory does not fragment and is
+ *   not freed and re-reserved. Larger requests get a plain unpooled
+ *   buffer
+ * - every thread keeps a small cache per size class (up to 512 KB), so
+ *   most acquire/release pairs touch no shared state. Overflow moves
+ *   to the shared free list in batches. trimThreadCache() hands the
+ *   current thread's cache back, e.g. before a pool thread exits
+ * - acquire() returns a PooledBuffer with one reference. retain() adds
+ *   one for each additional owner; release() (or close()) drops one.
+ *   The memory returns to the pool when the last reference is released.
+ *   A second release, or buffer() after the last one, throws
+ * - debug mode (constructor flag, or -Dbufferpool.debug=true) records
+ *   where each buffer was acquired and reports any PooledBuffer that is
+ *   garbage-collected without being released. Its memory is not reused,
+ *   because a ByteBuffer view of it may still be in use
+ *
+ * Buffers are not zeroed: a new one may hold bytes from its last user.
+ */
+class BufferPool {
+    private static final int THREAD_CACHE_BYTES = 512 * 1024;
+
+    private final int minShift;
+    private final int maxSize;
+    private final int slabSize;
+    private final boolean debug;
+    private final ArrayDeque<ByteBuffer>[] shared;      // guarded by itself
+    private final int[] cacheLimit;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches;
+    private final java.lang.ref.Cleaner cleaner;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong unpooled = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    public BufferPool() {
+        this(512, 1 << 20, 4 << 20, Boolean.getBoolean("bufferpool.debug"));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int minSize, int maxSize, int slabSize, boolean debug) {
+        if (Integer.bitCount(minSize) != 1 || Integer.bitCount(maxSize) != 1 || minSize > maxSize
+                || slabSize < maxSize) {
+            throw new IllegalArgumentException("sizes must be powers of two with minSize <= maxSize <= slabSize");
+        }
+        this.minShift = Integer.numberOfTrailingZeros(minSize);
+        this.maxSize = maxSize;
+        this.slabSize = slabSize;
+        this.debug = debug;
+        int classes = Integer.numberOfTrailingZeros(maxSize) - minShift + 1;
+        this.shared = new ArrayDeque[classes];
+        this.cacheLimit = new int[classes];
+        for (int c = 0; c < classes; c++) {
+            shared[c] = new ArrayDeque<>();
+            cacheLimit[c] = Math.max(1, THREAD_CACHE_BYTES >> (minShift + c));
+        }
+        this.threadCaches = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[classes];
+            for (int c = 0; c < classes; c++) {
+                caches[c] = new ArrayDeque<>();
+            }
+            return caches;
+        });
+        this.cleaner = debug ? java.lang.ref.Cleaner.create() : null;
+    }
+
+    // A cleared buffer with limit == size (capacity may be larger)
+    public PooledBuffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size < 0");
+        }
+        ByteBuffer memory;
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            unpooled.incrementAndGet();
+            memory = ByteBuffer.allocateDirect(size);
+        } else {
+            ArrayDeque<ByteBuffer> cache = threadCaches.get()[sizeClass];
+            memory = cache.pollFirst();
+            if (memory == null) {
+                memory = refill(sizeClass, cache);
+            }
+        }
+        return new PooledBuffer(this, memory, sizeClass, size);
+    }
+
+    // Native memory held in slabs (in use or free)
+    public long reservedBytes() {
+        return reservedBytes.get();
+    }
+
+    public long unpooledAllocations() {
+        return unpooled.get();
+    }
+
+    public long leaksDetected() {
+        return leaks.get();
+    }
+
+    // Move this thread's cached buffers to the shared free lists
+    public void trimThreadCache() {
+        ArrayDeque<ByteBuffer>[] caches = threadCaches.get();
+        for (int c = 0; c < caches.length; c++) {
+            moveToShared(c, caches[c], caches[c].size());
+        }
+        threadCaches.remove();
+    }
+
+    private int sizeClass(int size) {
+        if (size > maxSize) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);  // ceil(log2)
+        return Math.max(shift, minShift) - minShift;
+    }
+
+    // Take up to half a cache's worth from the shared list, carving a new slab if it is empty
+    private ByteBuffer refill(int sizeClass, ArrayDeque<ByteBuffer> cache) {
+        ArrayDeque<ByteBuffer> free = shared[sizeClass];
+        synchronized (free) {
+            if (free.isEmpty()) {
+                int size = 1 << (minShift + sizeClass);
+                ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+                reservedBytes.addAndGet(slabSize);
+                for (int offset = 0; offset + size <= slabSize; offset += size) {
+                    free.addLast(slab.slice(offset, size));
+                }
+            }
+            int batch = Math.max(1, cacheLimit[sizeClass] / 2);
+            for (int i = 1; i < batch && free.size() > 1; i++) {
+                cache.addFirst(free.pollFirst());
+            }
+            return free.pollFirst();
+        }
+    }
+
+    private void recycle(ByteBuffer memory, int sizeClass) {
+        ArrayDeque<ByteBuffer> cache = threadCaches.get()[sizeClass];
+        cache.addFirst(memory);
+        if (cache.size() > cacheLimit[sizeClass]) {
+            moveToShared(sizeClass, cache, cache.size() / 2);
+        }
+    }
+
+    private void moveToShared(int sizeClass, ArrayDeque<ByteBuffer> cache, int count) {
+        ArrayDeque<ByteBuffer> free = shared[sizeClass];
+        synchronized (free) {
+            for (int i = 0; i < count; i++) {
+                free.addFirst(cache.pollLast());           // coldest first
+            }
+        }
+    }
+
+    // Debug mode: what the Cleaner checks once a PooledBuffer is unreachable
+    private static final class LeakCheck implements Runnable {
+        final BufferPool pool;
+        final Throwable acquiredAt;
+        volatile boolean released;
+
+        LeakCheck(BufferPool pool, Throwable acquiredAt) {
+            this.pool = pool;
+            this.acquiredAt = acquiredAt;
+        }
+
+        @Override
+        public void run() {
+            if (!released) {
+                pool.leaks.incrementAndGet();
+                StringWriter trace = new StringWriter();
+                acquiredAt.printStackTrace(new PrintWriter(trace));
+                System.err.print("LEAK: PooledBuffer garbage-collected without release(), " + trace);
+            }
+        }
+    }
+
+    public static final class PooledBuffer implements AutoCloseable {
+        private final BufferPool pool;
+        private final ByteBuffer memory;
+        private final int sizeClass;
+        private final ByteBuffer view;
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final LeakCheck leakCheck;
+        private final java.lang.ref.Cleaner.Cleanable cleanable;
+
+        private PooledBuffer(BufferPool pool, ByteBuffer memory, int sizeClass, int size) {
+            this.pool = pool;
+            this.memory = memory;
+            this.sizeClass = sizeClass;
+            this.view = memory.duplicate().clear().limit(size);   // fresh position/limit/order
+            if (pool.debug) {
+                this.leakCheck = new LeakCheck(pool, new Throwable("acquired (" + size + " bytes) at"));
+                this.cleanable = pool.cleaner.register(this, leakCheck);
+            } else {
+                this.leakCheck = null;
+                this.cleanable = null;
+            }
+        }
+
+        public ByteBuffer buffer() {
+            if (references.get() <= 0) {
+                throw new IllegalStateException("PooledBuffer already released");
+            }
+            return view;
+        }
+
+        public int referenceCount() {
+            return references.get();
+        }
+
+        public PooledBuffer retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0) {
+                    throw new IllegalStateException("PooledBuffer already released");
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return this;
+        }
+
+        // True when this dropped the last reference and the memory went back to the pool
+        public boolean release() {
+            int count = references.decrementAndGet();
+            if (count > 0) {
+                return false;
+            }
+            if (count < 0) {
+                references.incrementAndGet();
+                throw new IllegalStateException("PooledBuffer released too many times");
+            }
+            if (leakCheck != null) {
+                leakCheck.released = true;
+                cleanable.clean();
+            }
+            if (sizeClass >= 0) {
+                pool.recycle(memory, sizeClass);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+}
@@ -69,8 +69,18 @@
  */
 
 import java.io.*;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.zip.*;
 import java.time.*;
+import javax.xml.stream.*;
 
 public class Lesson37_Serialization {
     public static void main(String[] args) {
@@ -428,6 +438,361 @@ public class Lesson37_Serialization {
 
         System.out.println();
 
+        // ============================================================
+        // 11. STREAMING JSON READER
+        // ============================================================
+
+        System.out.println("--- Streaming JSON Reader ---");
+
+        /*
+         * SimpleJson.fromJson compiles a regex per field and builds
+         * substrings. A pull parser walks the bytes once: the caller
+         * asks for the next token and decides what to materialize.
+         */
+        byte[] peopleJson = """
+                [
+                  {"name": "Alice", "age": 30, "email": "alice@example.com"},
+                  {"name": "Bob \\"B\\" \\u00e9", "age": 25, "tags": ["x", {"y": null}]},
+                  {"age": 41, "email": "carol@example.com", "name": "Carol", "score": -1.5e3}
+                ]
+                """.getBytes(StandardCharsets.UTF_8);
+
+        System.out.println("Tokens of first object:");
+        JsonReader tokens = new JsonReader(peopleJson);
+        tokens.next();
+        do {
+            JsonToken token = tokens.next();
+            String text = switch (token) {
+                case NAME, STRING -> token + " " + tokens.stringValue();
+                case NUMBER -> token + " " + tokens.longValue();
+                default -> token.toString();
+            };
+            System.out.println("  " + text);
+        } while (tokens.token() != JsonToken.END_OBJECT);
+
+        List<Person> people = PersonJson.readArray(new JsonReader(peopleJson));
+        System.out.println("Bound people:");
+        people.forEach(p -> System.out.println("  " + p));
+
+        // Direct buffers work too (e.g. straight from a SocketChannel read)
+        ByteBuffer direct = ByteBuffer.allocateDirect(peopleJson.length);
+        direct.put(peopleJson).flip();
+        System.out.println("From direct buffer: " +
+                PersonJson.readArray(new JsonReader(direct)).size() + " people");
+
+        benchmarkJsonReaders();
+
+        System.out.println();
+
+
+        // ============================================================
+        // 12. STREAMING JSON WRITER
+        // ============================================================
+
+        System.out.println("--- Streaming JSON Writer ---");
+
+        /*
+         * SimpleJson.toJson re-parses its format string on every call and
+         * does no escaping, so a quote in a name breaks the document.
+         * JsonWriter escapes properly and encodes into a reusable buffer.
+         */
+        Person tricky = new Person("Dana \"DJ\" O'Neil\n\u00e9", 28, "dana@example.com");
+        System.out.println("SimpleJson: " + SimpleJson.toJson(tricky));
+        byte[] trickyJson = PersonJson.toJson(tricky);
+        System.out.println("JsonWriter: " + new String(trickyJson, StandardCharsets.UTF_8));
+        System.out.println("Round trip equal: " + tricky.equals(PersonJson.fromJson(trickyJson)));
+
+        JsonWriter nested = new JsonWriter();
+        nested.beginObject()
+                .name("team").value("core")
+                .name("members").beginArray();
+        for (Person p : people) {
+            PersonJson.write(nested, p);
+        }
+        nested.endArray()
+                .name("active").value(true)
+                .name("budget").value(1_250_000)
+                .endObject();
+        System.out.println("Nested: " + new String(nested.toByteArray(), StandardCharsets.UTF_8));
+
+        try {
+            benchmarkJsonWriters();
+        } catch (IOException e) {
+            System.out.println("Writer benchmark failed: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
+        // ============================================================
+        // 13. COMPILED BINARY CODECS
+        // ============================================================
+
+        System.out.println("--- Compiled Binary Codecs ---");
+
+        /*
+         * ObjectOutputStream writes a class descriptor with every stream
+         * and discovers fields reflectively each time. BinaryCodec looks
+         * at the class once and keeps exact MethodHandles per field.
+         */
+        BinaryCodec<Person> personCodec = BinaryCodec.of(Person.class);
+        byte[] personBytes = personCodec.toBytes(person);
+        System.out.println("Person fields: " + personCodec.fieldNames());
+        System.out.println("Encoded " + personBytes.length + " bytes -> " + personCodec.fromBytes(personBytes));
+
+        BinaryCodec<User> userCodec = BinaryCodec.of(User.class);
+        System.out.println("User fields: " + userCodec.fieldNames() + " (password is transient)");
+        System.out.println("User round trip: " + userCodec.fromBytes(userCodec.toBytes(new User("alice", "secret123"))));
+        // Like ObjectInputStream, decode does not run PageStats' constructor or initializers
+        BinaryCodec<PageStats> statsCodec = BinaryCodec.of(PageStats.class);
+        PageStats stats = statsCodec.fromBytes(statsCodec.toBytes(new PageStats("/home")));
+        System.out.println("Transient hits after decode: " + stats.hits + " (initializer says 7)");
+
+        // A lone surrogate is written as one '?', like String.getBytes(UTF_8)
+        Person lone = personCodec.fromBytes(personCodec.toBytes(new Person("Ann\uD800", 30, "ann@example.com")));
+        System.out.println("Lone surrogate round trip: " + lone.getName());
+        try {
+            personCodec.fromBytes(Arrays.copyOf(personBytes, 6));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Truncated record: " + e.getMessage());
+        }
+
+        try {
+            BinaryCodec.of(CustomSerializable.class);
+        } catch (IllegalArgumentException e) {
+            System.out.println("CustomSerializable: " + e.getMessage());
+        }
+
+        try {
+            benchmarkCodecs();
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Codec benchmark failed: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
+        // ============================================================
+        // 14. DEEP COPY ENGINE
+        // ============================================================
+
+        System.out.println("--- Deep Copy Engine ---");
+
+        /*
+         * DeepCopy serializes the whole graph and reads it back.
+         * DeepCopier walks the graph once, shares immutables and keeps
+         * cycles through an identity map.
+         */
+        SampleGraph sample = SampleGraph.random(5, new Random(7));
+        SampleGraph sampleCopy = DeepCopier.copy(sample);
+        SampleNode first = sampleCopy.nodes[0];
+        System.out.println("Copied graph is a new object:  " + (sampleCopy != sample));
+        System.out.println("Nodes copied, not shared:      " + (first != sample.nodes[0]));
+        System.out.println("Cycle node -> owner preserved: " + (first.owner == sampleCopy));
+        System.out.println("Immutable label shared:        " + (first.label == sample.nodes[0].label));
+        System.out.println("Person (no Serializable needed): " + DeepCopier.copy(person));
+
+        // Elements of Object[] are copied by their runtime class
+        Object[] mixed = { "text", 42, new int[] {1, 2}, new ArrayList<>(List.of("a")), sample.nodes[1], null };
+        Object[] mixedCopy = DeepCopier.copy(mixed);
+        System.out.println("Object[] strings/boxes shared: " + (mixedCopy[0] == mixed[0] && mixedCopy[1] == mixed[1]));
+        System.out.println("Object[] int[] copied:         " + (mixedCopy[2] != mixed[2]
+                && Arrays.equals((int[]) mixedCopy[2], (int[]) mixed[2])));
+        System.out.println("Object[] list copied:          " + (mixedCopy[3] != mixed[3] && mixedCopy[3].equals(mixed[3])));
+        System.out.println("Object[] node copied:          " + (mixedCopy[4] != mixed[4]
+                && ((SampleNode) mixedCopy[4]).id == sample.nodes[1].id));
+
+        // Records are built only after their components are complete
+        NonEmptyOrder validated = DeepCopier.copy(new NonEmptyOrder("A-1", new ArrayList<>(List.of("pen", "ink"))));
+        FrozenOrder frozen = DeepCopier.copy(new FrozenOrder("A-2", new ArrayList<>(List.of("cup"))));
+        System.out.println("Validating record copied:      " + validated);
+        System.out.println("List.copyOf record keeps items: " + frozen.items());
+
+        // Reached before the record or Set.of that needs it complete
+        OrderHolder orderHolder = new OrderHolder();
+        orderHolder.items = new ArrayList<>(List.of("bolt"));
+        orderHolder.order = new NonEmptyOrder("B", orderHolder.items);
+        OrderHolder orderCopy = DeepCopier.copy(orderHolder);
+        System.out.println("Shared list seen full by record: " + (orderCopy.order.items() == orderCopy.items
+                && orderCopy.items.equals(List.of("bolt"))));
+        TagHolder tagHolder = new TagHolder();
+        tagHolder.key = new TagKey("red");
+        tagHolder.tags = Set.of(tagHolder.key, new TagKey("green"), new TagKey("blue"));
+        TagHolder tagCopy = DeepCopier.copy(tagHolder);
+        System.out.println("Set.of finds its copied key:   " + (tagCopy.tags.contains(tagCopy.key)
+                && tagCopy.key != tagHolder.key));
+
+        // A mutable cycle inside a record's List.of, reached directly first
+        CrewMember ann = new CrewMember("ann");
+        CrewMember bob = new CrewMember("bob");
+        ann.buddy = bob;
+        bob.buddy = ann;
+        CrewHolder crewHolder = new CrewHolder();
+        crewHolder.lead = ann;
+        crewHolder.crew = new Crew("night", List.of(ann, bob));
+        CrewHolder crewCopy = DeepCopier.copy(crewHolder);
+        CrewMember annCopy = crewCopy.crew.members().get(0);
+        System.out.println("Cycle through List.of copied:  " + (annCopy == crewCopy.lead && annCopy != ann
+                && annCopy.buddy == crewCopy.crew.members().get(1) && annCopy.buddy.buddy == annCopy));
+        // Leading back into the record, the cycle cannot be constructed
+        bob.crew = crewHolder.crew;
+        try {
+            DeepCopier.copy(crewHolder);
+            System.out.println("Cycle into record rejected:    false");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Cycle into record rejected:    true");
+        }
+
+        // Copying from a child: its parent's HashSet is filled after the child
+        Family family = new Family();
+        FamilyChild child = new FamilyChild(7, family);
+        family.children.add(child);
+        family.children.add(new FamilyChild(8, family));
+        FamilyChild childCopy = DeepCopier.copy(child);
+        boolean allFound = childCopy.parent.children.contains(childCopy);
+        for (FamilyChild member : childCopy.parent.children) {
+            allFound &= childCopy.parent.children.contains(member);
+        }
+        System.out.println("HashSet in a cycle finds all:  " + allFound);
+
+        // Unmodifiable JDK collections: shared if immutable, else rebuilt
+        List<String> names = List.of("x", "y");
+        List<List<String>> listOfLists = List.of(new ArrayList<>(List.of("m")));
+        Map<String, int[]> arrays = Map.of("k", new int[] {7});
+        List<List<String>> nestedCopy = DeepCopier.copy(listOfLists);
+        Map<String, int[]> arraysCopy = DeepCopier.copy(arrays);
+        System.out.println("List.of(strings) shared:       " + (DeepCopier.copy(names) == names));
+        System.out.println("List.of(mutable) rebuilt:      " + (nestedCopy != listOfLists
+                && nestedCopy.get(0) != listOfLists.get(0) && nestedCopy.equals(listOfLists)));
+        System.out.println("Map.of(int[]) rebuilt:         " + (arraysCopy.get("k") != arrays.get("k")
+                && arraysCopy.get("k")[0] == 7));
+        Set<Integer> ids = Set.of(1, 2);
+        System.out.println("Set.of(Integer) shared:        " + (DeepCopier.copy(ids) == ids));
+
+        try {
+            benchmarkDeepCopy();
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Deep copy benchmark failed: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
+        // ============================================================
+        // 15. TAGGED BINARY FORMAT WITH SCHEMA EVOLUTION
+        // ============================================================
+
+        System.out.println("--- Tagged Binary Format (varint/zigzag) ---");
+
+        ByteBuffer wire = ByteBuffer.allocate(256);
+        PersonWire.write(person, wire);
+        wire.flip();
+        System.out.println("Tagged Person: " + wire.remaining() + " bytes -> " + PersonWire.read(wire));
+
+        // A newer service adds phone (tag 4) and a score (tag 5);
+        // the old reader skips both
+        wire.clear();
+        PersonWire.write(person, wire);
+        TaggedWire.writeString(wire, 4, "+1-555-0100");
+        TaggedWire.writeDouble(wire, 5, 97.5);
+        wire.flip();
+        System.out.println("Old reader, new record: " + PersonWire.read(wire));
+
+        // An older service never wrote email; the new reader defaults it
+        wire.clear();
+        TaggedWire.writeString(wire, PersonWire.NAME, "Legacy");
+        TaggedWire.writeInt(wire, PersonWire.AGE, 60);
+        wire.flip();
+        System.out.println("New reader, old record: " + PersonWire.read(wire));
+
+        // A corrupt length is rejected before any byte past the record is read
+        wire.clear();
+        TaggedWire.putVarint(wire, TaggedWire.key(PersonWire.NAME, TaggedWire.LENGTH));
+        TaggedWire.putVarint(wire, 1_000);
+        wire.put("Cut".getBytes(StandardCharsets.UTF_8));
+        wire.flip();
+        try {
+            PersonWire.read(wire);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Corrupt record: " + e.getMessage());
+        }
+
+        try {
+            benchmarkTaggedFormat();
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Tagged format benchmark failed: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
+        // ============================================================
+        // 16. STREAMING XML EXPORT / IMPORT
+        // ============================================================
+
+        System.out.println("--- Streaming XML Export/Import ---");
+
+        /*
+         * SimpleXml.toXml builds one document per Person and escapes
+         * nothing. XmlWriter streams a whole <people> document; PersonXml
+         * reads it back one <person> at a time with a StAX pull parser.
+         */
+        ByteArrayOutputStream xmlOut = new ByteArrayOutputStream();
+        try {
+            PersonXml.writeAll(List.of(person, tricky), xmlOut);
+            System.out.println(xmlOut.toString(StandardCharsets.UTF_8));
+            List<Person> imported = new ArrayList<>();
+            PersonXml.readAll(new ByteArrayInputStream(xmlOut.toByteArray()), imported::add);
+            System.out.println("Imported back: " + imported.equals(List.of(person, tricky)));
+
+            benchmarkXmlStreaming();
+        } catch (IOException e) {
+            System.out.println("XML streaming failed: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
+        // ============================================================
+        // 17. BLOCK-COMPRESSED RECORD FILE
+        // ============================================================
+
+        System.out.println("--- Block-Compressed Record File ---");
+
+        /*
+         * One ObjectOutputStream per object cannot be indexed. BlockFile
+         * packs records into independently deflated blocks with an index
+         * in the footer, so record #n costs one positional read + inflate.
+         */
+        try {
+            benchmarkBlockFile();
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            System.out.println("Block file demo failed: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
+        // ============================================================
+        // 18. PARALLEL SERIALIZATION PIPELINE
+        // ============================================================
+
+        System.out.println("--- Parallel Serialization Pipeline ---");
+
+        /*
+         * ObjectOutputStream.writeObject(list) runs on one core. The
+         * pipeline encodes chunks on a ForkJoinPool and still writes them
+         * in order; reading reverses the process.
+         */
+        try {
+            benchmarkPipeline();
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Pipeline demo failed: " + e.getMessage());
+        }
+
+        System.out.println();
+
+
 
         // ============================================================
         // KEY TAKEAWAYS
@@ -510,6 +875,461 @@ public class Lesson37_Serialization {
          * - FST
          */
     }
+
+    static volatile long sink;
+
+    // Parse throughput of the regex-based parser vs the pull parser
+    private static void benchmarkJsonReaders() {
+        int count = 200_000;
+        String[] texts = new String[count];
+        byte[][] bytes = new byte[count][];
+        long totalBytes = 0;
+        for (int i = 0; i < count; i++) {
+            texts[i] = SimpleJson.toJson(new Person("Person" + i, 20 + i % 50, "person" + i + "@example.com"));
+            bytes[i] = texts[i].getBytes(StandardCharsets.UTF_8);
+            totalBytes += bytes[i].length;
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (String text : texts) {
+                sink += SimpleJson.fromJson(text).getAge();
+            }
+            long regexTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (byte[] json : bytes) {
+                sink += PersonJson.fromJson(json).getAge();
+            }
+            long pullTime = System.nanoTime() - start;
+
+            if (round == 2) {
+                System.out.printf("Parsing %,d objects (%.1f MB):%n", count, totalBytes / 1e6);
+                System.out.printf("  SimpleJson.fromJson: %6.1f MB/s%n", totalBytes * 1e3 / regexTime);
+                System.out.printf("  JsonReader binding:  %6.1f MB/s%n", totalBytes * 1e3 / pullTime);
+            }
+        }
+    }
+
+    // Time and allocation for writing 1M people to a file
+    private static void benchmarkJsonWriters() throws IOException {
+        int count = 1_000_000;
+        Person[] people = new Person[count];
+        for (int i = 0; i < count; i++) {
+            people[i] = new Person("Person" + i, 20 + i % 50, "person" + i + "@example.com");
+        }
+        Path file = Files.createTempFile("people", ".json");
+        try {
+            for (int round = 0; round < 3; round++) {
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                    for (Person p : people) {
+                        out.write(SimpleJson.toJson(p));
+                        out.write('\n');
+                    }
+                }
+                long formatTime = System.nanoTime() - start;
+                long formatGarbage = allocatedBytes() - allocated;
+
+                allocated = allocatedBytes();
+                start = System.nanoTime();
+                try (FileChannel channel = FileChannel.open(file,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    JsonWriter writer = new JsonWriter(channel);
+                    for (Person p : people) {
+                        PersonJson.write(writer, p);
+                    }
+                    writer.flush();
+                }
+                long writerTime = System.nanoTime() - start;
+                long writerGarbage = allocatedBytes() - allocated;
+
+                if (round == 2) {
+                    System.out.printf("Writing %,d people (%.1f MB file):%n", count, Files.size(file) / 1e6);
+                    System.out.printf("  SimpleJson.toJson: %5d ms, %,13d bytes allocated%n",
+                            formatTime / 1_000_000, formatGarbage);
+                    System.out.printf("  JsonWriter:        %5d ms, %,13d bytes allocated%n",
+                            writerTime / 1_000_000, writerGarbage);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Encode/decode throughput and size: BinaryCodec vs Java serialization
+    private static void benchmarkCodecs() throws IOException, ClassNotFoundException {
+        int count = 100_000;
+        Person[] people = new Person[count];
+        for (int i = 0; i < count; i++) {
+            people[i] = new Person("Person" + i, 20 + i % 50, "person" + i + "@example.com");
+        }
+        BinaryCodec<Person> codec = BinaryCodec.of(Person.class);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        for (int round = 0; round < 3; round++) {
+            byte[][] javaBytes = new byte[count][];
+            long javaSize = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(people[i]);
+                }
+                javaBytes[i] = bytes.toByteArray();
+                javaSize += javaBytes[i].length;
+            }
+            long javaEncode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (byte[] bytes : javaBytes) {
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    sink += ((Person) in.readObject()).getAge();
+                }
+            }
+            long javaDecode = System.nanoTime() - start;
+
+            byte[][] codecBytes = new byte[count][];
+            long codecSize = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                buffer.clear();
+                codec.encode(people[i], buffer);
+                codecBytes[i] = Arrays.copyOf(buffer.array(), buffer.position());
+                codecSize += codecBytes[i].length;
+            }
+            long codecEncode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (byte[] bytes : codecBytes) {
+                sink += codec.fromBytes(bytes).getAge();
+            }
+            long codecDecode = System.nanoTime() - start;
+
+            if (round == 2) {
+                System.out.printf("%,d people, one message each:%n", count);
+                System.out.printf("  %-20s %12s %12s %10s%n", "", "encode/s", "decode/s", "bytes/obj");
+                System.out.printf("  %-20s %,12.0f %,12.0f %10d%n", "ObjectOutputStream",
+                        count * 1e9 / javaEncode, count * 1e9 / javaDecode, javaSize / count);
+                System.out.printf("  %-20s %,12.0f %,12.0f %10d%n", "BinaryCodec",
+                        count * 1e9 / codecEncode, count * 1e9 / codecDecode, codecSize / count);
+            }
+        }
+    }
+
+    // DeepCopy (serialization) vs DeepCopier on growing graphs
+    private static void benchmarkDeepCopy() throws IOException, ClassNotFoundException {
+        // Original, copy, identity map and DeepCopy's byte buffers:
+        // roughly 400 bytes per node at peak
+        long memoryFor10M = 10_000_000L * 400;
+        long gigabytes = (memoryFor10M >> 30) + 1;
+        // Warm up both paths so the 1K row is not measuring the JIT
+        SampleGraph warmUp = SampleGraph.random(1_000, new Random(1));
+        for (int i = 0; i < 1_000; i++) {
+            sink += DeepCopy.copy(warmUp).nodes.length + DeepCopier.copy(warmUp).nodes.length;
+        }
+        for (int size : new int[]{1_000, 100_000, 10_000_000}) {
+            if (size == 10_000_000 && Runtime.getRuntime().maxMemory() < memoryFor10M) {
+                System.out.printf("  %,11d nodes: skipped, needs about -Xmx%dg%n", size, gigabytes);
+                continue;
+            }
+            SampleGraph graph = SampleGraph.random(size, new Random(42));
+            int rounds = size <= 1_000 ? 200 : size <= 100_000 ? 3 : 1;
+            long serialTime = Long.MAX_VALUE;
+            long copierTime = Long.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                sink += DeepCopy.copy(graph).nodes.length;
+                serialTime = Math.min(serialTime, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                sink += DeepCopier.copy(graph, size * 2).nodes.length;
+                copierTime = Math.min(copierTime, System.nanoTime() - start);
+            }
+            System.out.printf("  %,11d nodes: DeepCopy %9.2f ms, DeepCopier %8.2f ms (%.1fx)%n",
+                    size, serialTime / 1e6, copierTime / 1e6, (double) serialTime / copierTime);
+        }
+    }
+
+    // Payload size per format, decode speed, and a channel round trip
+    private static void benchmarkTaggedFormat() throws IOException, ClassNotFoundException {
+        int count = 100_000;
+        Person[] people = new Person[count];
+        for (int i = 0; i < count; i++) {
+            people[i] = new Person("Person" + i, 20 + i % 50, "person" + i + "@example.com");
+        }
+
+        Person sample = people[12_345];
+        ByteArrayOutputStream javaBytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(javaBytes)) {
+            out.writeObject(sample);
+        }
+        System.out.println("Bytes for one Person:");
+        System.out.printf("  %-20s %4d%n", "Java serialization", javaBytes.size());
+        System.out.printf("  %-20s %4d%n", "SimpleXml", SimpleXml.toXml(sample).getBytes(StandardCharsets.UTF_8).length);
+        System.out.printf("  %-20s %4d%n", "SimpleJson", SimpleJson.toJson(sample).getBytes(StandardCharsets.UTF_8).length);
+        System.out.printf("  %-20s %4d%n", "BinaryCodec", BinaryCodec.of(Person.class).toBytes(sample).length);
+        System.out.printf("  %-20s %4d%n", "Tagged (PersonWire)", PersonWire.serializedSize(sample));
+
+        // Everything length-prefixed in one buffer, through a FileChannel
+        ByteBuffer batch = ByteBuffer.allocate(count * 64);
+        for (Person p : people) {
+            PersonWire.writeDelimited(p, batch);
+        }
+        batch.flip();
+        Path file = Files.createTempFile("people", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+        }
+        ByteBuffer loaded = ByteBuffer.allocateDirect((int) Files.size(file));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (loaded.hasRemaining() && channel.read(loaded) >= 0) {
+                // keep reading
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        loaded.flip();
+        System.out.printf("%,d people through a FileChannel: %,d bytes%n", count, loaded.remaining());
+
+        byte[][] javaMessages = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(people[i]);
+            }
+            javaMessages[i] = bytes.toByteArray();
+        }
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (byte[] message : javaMessages) {
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(message))) {
+                    sink += ((Person) in.readObject()).getAge();
+                }
+            }
+            long javaTime = System.nanoTime() - start;
+
+            loaded.rewind();
+            start = System.nanoTime();
+            while (loaded.hasRemaining()) {
+                sink += PersonWire.readDelimited(loaded).getAge();
+            }
+            long taggedTime = System.nanoTime() - start;
+
+            if (round == 2) {
+                System.out.printf("Decode: Java serialization %,.0f/s, tagged %,.0f/s%n",
+                        count * 1e9 / javaTime, count * 1e9 / taggedTime);
+            }
+        }
+    }
+
+    // Export and re-import 1M people through a file, one at a time
+    private static void benchmarkXmlStreaming() throws IOException {
+        int count = 1_000_000;
+        Iterable<Person> people = () -> new Iterator<>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public Person next() {
+                int i = next++;
+                return new Person("Person" + i, 20 + i % 50, "person" + i + "@example.com");
+            }
+        };
+        Path file = Files.createTempFile("people", ".xml");
+        try {
+            long start = System.nanoTime();
+            try (OutputStream out = Files.newOutputStream(file)) {
+                PersonXml.writeAll(people, out);
+            }
+            long writeTime = System.nanoTime() - start;
+            double megabytes = Files.size(file) / 1e6;
+
+            long[] ageSum = new long[1];
+            start = System.nanoTime();
+            long read;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+                read = PersonXml.readAll(in, p -> ageSum[0] += p.getAge());
+            }
+            long readTime = System.nanoTime() - start;
+            sink += ageSum[0];
+
+            System.out.printf("%,d people, %.1f MB of XML, generated and consumed lazily:%n", count, megabytes);
+            System.out.printf("  export: %5d ms (%.0f MB/s)%n", writeTime / 1_000_000, megabytes * 1e9 / writeTime);
+            System.out.printf("  import: %5d ms (%.0f MB/s), %,d people%n",
+                    readTime / 1_000_000, megabytes * 1e9 / readTime, read);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Size, write time and random reads per Deflater level
+    private static void benchmarkBlockFile() throws IOException, InterruptedException, ExecutionException {
+        int count = 1_000_000;
+        int recordsPerBlock = 256;
+        Path file = Files.createTempFile("people", ".blk");
+        try {
+            System.out.printf("%,d people, %d per block:%n", count, recordsPerBlock);
+            for (int level : new int[]{Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, 6, Deflater.BEST_COMPRESSION}) {
+                long start = System.nanoTime();
+                try (BlockFile.Writer<Person> writer =
+                             new BlockFile.Writer<>(file, recordsPerBlock, level, PersonWire::write)) {
+                    for (int i = 0; i < count; i++) {
+                        writer.append(new Person("Person" + i, 20 + i % 50, "person" + i + "@example.com"));
+                    }
+                }
+                long writeTime = System.nanoTime() - start;
+
+                try (BlockFile.Reader<Person> reader = new BlockFile.Reader<>(file, PersonWire::read)) {
+                    Random random = new Random(1);
+                    int lookups = 20_000;
+                    start = System.nanoTime();
+                    for (int i = 0; i < lookups; i++) {
+                        sink += reader.get(random.nextInt(count)).getAge();
+                    }
+                    long readTime = System.nanoTime() - start;
+                    System.out.printf("  level %2d: %6.1f MB, write %5d ms, random get %5.1f us%n",
+                            level, Files.size(file) / 1e6, writeTime / 1_000_000, readTime / 1e3 / lookups);
+                }
+            }
+
+            // Several threads reading the same Reader, no locking
+            try (BlockFile.Reader<Person> reader = new BlockFile.Reader<>(file, PersonWire::read)) {
+                ExecutorService pool = Executors.newFixedThreadPool(4);
+                try {
+                    List<Future<Integer>> results = new ArrayList<>();
+                    for (int t = 0; t < 4; t++) {
+                        int seed = t;
+                        results.add(pool.submit(() -> {
+                            Random random = new Random(seed);
+                            int mismatches = 0;
+                            for (int i = 0; i < 10_000; i++) {
+                                int n = random.nextInt(count);
+                                if (!reader.get(n).getName().equals("Person" + n)) {
+                                    mismatches++;
+                                }
+                            }
+                            return mismatches;
+                        }));
+                    }
+                    int mismatches = 0;
+                    for (Future<Integer> result : results) {
+                        mismatches += result.get();
+                    }
+                    System.out.println("4 concurrent readers, 40,000 gets, mismatches: " + mismatches);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+
+            // A damaged footer is an IOException at open, not an OOM later
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE),
+                        channel.size() - BlockFile.FOOTER_SIZE + 8);
+            }
+            try (BlockFile.Reader<Person> reader = new BlockFile.Reader<>(file, PersonWire::read)) {
+                System.out.println("Damaged footer accepted: " + reader.blockCount() + " blocks");
+            } catch (IOException e) {
+                System.out.println("Damaged footer: " + e.getMessage());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Whole-list ObjectOutputStream vs the pipeline on 1 and N workers
+    private static void benchmarkPipeline() throws IOException, ClassNotFoundException {
+        int count = 1_000_000;
+        List<Person> people = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            people.add(new Person("Person" + i, 20 + i % 50, "person" + i + "@example.com"));
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%,d people, %d available core(s):%n", count, cores);
+        Path file = Files.createTempFile("people", ".chunks");
+        try {
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                try (ObjectOutputStream out = new ObjectOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(file)))) {
+                    out.writeObject(people);
+                }
+                long javaWrite = System.nanoTime() - start;
+                start = System.nanoTime();
+                List<?> javaRead;
+                try (ObjectInputStream in = new ObjectInputStream(
+                        new BufferedInputStream(Files.newInputStream(file)))) {
+                    javaRead = (List<?>) in.readObject();
+                }
+                long javaReadTime = System.nanoTime() - start;
+                if (round == 1) {
+                    System.out.printf("  %-26s write %5d ms, read %5d ms%n", "ObjectOutputStream",
+                            javaWrite / 1_000_000, javaReadTime / 1_000_000);
+                }
+                sink += javaRead.size();
+
+                for (int workers : cores == 1 ? new int[]{1} : new int[]{1, cores}) {
+                    ForkJoinPool pool = new ForkJoinPool(workers);
+                    try {
+                        SerializationPipeline<Person> pipeline =
+                                new SerializationPipeline<>(pool, 4096, PersonWire::write, PersonWire::read);
+                        start = System.nanoTime();
+                        try (FileChannel channel = FileChannel.open(file,
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                            pipeline.write(people, channel);
+                        }
+                        long writeTime = System.nanoTime() - start;
+                        start = System.nanoTime();
+                        List<Person> back;
+                        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                            back = pipeline.read(channel);
+                        }
+                        long readTime = System.nanoTime() - start;
+                        if (round == 1) {
+                            System.out.printf("  %-26s write %5d ms, read %5d ms, same order: %b%n",
+                                    "Pipeline, " + workers + " worker(s)", writeTime / 1_000_000,
+                                    readTime / 1_000_000, back.equals(people));
+                        }
+                    } finally {
+                        pool.shutdown();
+                    }
+                }
+            }
+
+            // Damaged frames fail with an IOException before any big allocation
+            SerializationPipeline<Person> pipeline = new SerializationPipeline<>(
+                    ForkJoinPool.commonPool(), 4096, PersonWire::write, PersonWire::read);
+            ByteBuffer hugeFrame = ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE).putInt(1).flip();
+            ByteBuffer badRecord = ByteBuffer.allocate(11).putInt(3).putInt(1)
+                    .put(new byte[]{(byte) 0xE8, 0x07, 0}).flip();
+            for (ByteBuffer frame : new ByteBuffer[]{hugeFrame, badRecord}) {
+                try {
+                    pipeline.read(Channels.newChannel(new ByteArrayInputStream(frame.array())));
+                    System.out.println("Damaged frame accepted");
+                } catch (IOException e) {
+                    System.out.println("Damaged frame: " + e.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Bytes allocated by this thread so far (HotSpot extension), or 0
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
 }
 
 
@@ -579,6 +1399,22 @@ class User implements Serializable {
 }
 
 
+// Transient field with an initializer: decoding leaves it at 0
+class PageStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    String page;
+    transient int hits = 7;
+
+    PageStats() {
+    }
+
+    PageStats(String page) {
+        this.page = page;
+    }
+}
+
+
 // ============================================================
 // CUSTOM SERIALIZATION
 // ============================================================
@@ -686,3 +1522,3144 @@ class DeepCopy {
         return copy;
     }
 }
+
+
+// ============================================================
+// STREAMING JSON READER (PULL PARSER)
+// ============================================================
+
+enum JsonToken {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY,
+    NAME, STRING, NUMBER, TRUE, FALSE, NULL, END_DOCUMENT
+}
+
+/*
+ * Pull-style JSON tokenizer working directly on UTF-8 bytes (a byte[]
+ * or any ByteBuffer, heap or direct). The caller asks for one token at
+ * a time with next(); nothing is built unless asked for:
+ *
+ * - Strings and names are only decoded by stringValue(); nameEquals()
+ *   compares raw bytes, so matching field names allocates nothing.
+ * - Numbers are parsed straight from the bytes (no substring).
+ * - Handles nesting, arrays, escapes (including \\uXXXX surrogate
+ *   pairs), and several top-level values in a row (e.g. NDJSON).
+ *
+ * Malformed input throws IllegalArgumentException with the byte offset.
+ */
+class JsonReader {
+    private static final byte IN_OBJECT = 1, IN_ARRAY = 2;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final ByteBuffer in;
+    private final int limit;
+    private int pos;
+
+    private byte[] stack = new byte[16];
+    private int depth;
+    private boolean expectName;   // inside an object, at a name position
+    private boolean needComma;    // a value was completed in this container
+
+    private JsonToken token;
+    private int start, end;       // current string (without quotes) or number
+    private boolean escaped;      // current string contains backslashes
+    private boolean integral;     // current number has no fraction/exponent
+    private byte[] scratch = new byte[64];
+
+    public JsonReader(byte[] json) {
+        this(ByteBuffer.wrap(json));
+    }
+
+    // Reads from position() to limit() using absolute gets; the buffer's
+    // own position is left untouched
+    public JsonReader(ByteBuffer json) {
+        this.in = json;
+        this.pos = json.position();
+        this.limit = json.limit();
+    }
+
+    public JsonToken token() {
+        return token;
+    }
+
+    public JsonToken next() {
+        skipWhitespace();
+        if (pos >= limit) {
+            if (depth > 0) {
+                throw error("Unexpected end of input");
+            }
+            return token = JsonToken.END_DOCUMENT;
+        }
+        byte b = in.get(pos);
+
+        if (depth > 0) {
+            if (b == '}' || b == ']') {
+                if (stack[depth - 1] != (b == '}' ? IN_OBJECT : IN_ARRAY)) {
+                    throw error("Mismatched '" + (char) b + "'");
+                }
+                if (!needComma && !(expectName || token == JsonToken.BEGIN_ARRAY)) {
+                    throw error("Missing value");
+                }
+                pos++;
+                depth--;
+                valueCompleted();
+                return token = b == '}' ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+            }
+            if (needComma) {
+                if (b != ',') {
+                    throw error("Expected ',' but found '" + (char) b + "'");
+                }
+                pos++;
+                needComma = false;
+                skipWhitespace();
+                if (pos >= limit) {
+                    throw error("Unexpected end of input");
+                }
+                b = in.get(pos);
+                if (b == '}' || b == ']') {
+                    throw error("Trailing comma");
+                }
+            }
+            if (expectName) {
+                if (b != '"') {
+                    throw error("Expected a field name");
+                }
+                scanString();
+                skipWhitespace();
+                if (pos >= limit || in.get(pos) != ':') {
+                    throw error("Expected ':'");
+                }
+                pos++;
+                expectName = false;
+                return token = JsonToken.NAME;
+            }
+        }
+
+        switch (b) {
+            case '{':
+                pos++;
+                push(IN_OBJECT);
+                expectName = true;
+                return token = JsonToken.BEGIN_OBJECT;
+            case '[':
+                pos++;
+                push(IN_ARRAY);
+                expectName = false;
+                return token = JsonToken.BEGIN_ARRAY;
+            case '"':
+                scanString();
+                valueCompleted();
+                return token = JsonToken.STRING;
+            case 't':
+                literal("true");
+                return token = JsonToken.TRUE;
+            case 'f':
+                literal("false");
+                return token = JsonToken.FALSE;
+            case 'n':
+                literal("null");
+                return token = JsonToken.NULL;
+            default:
+                if (b == '-' || (b >= '0' && b <= '9')) {
+                    scanNumber();
+                    valueCompleted();
+                    return token = JsonToken.NUMBER;
+                }
+                throw error("Unexpected character '" + (char) b + "'");
+        }
+    }
+
+    // If the current token opens an object/array, skip to its end
+    public void skipChildren() {
+        if (token != JsonToken.BEGIN_OBJECT && token != JsonToken.BEGIN_ARRAY) {
+            return;
+        }
+        int target = depth - 1;
+        while (depth > target) {
+            next();
+        }
+    }
+
+    // Compare the current name/string with UTF-8 bytes, without decoding
+    public boolean nameEquals(byte[] utf8) {
+        if (!escaped) {
+            if (end - start != utf8.length) {
+                return false;
+            }
+            for (int i = 0; i < utf8.length; i++) {
+                if (in.get(start + i) != utf8[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        int length = unescape();
+        return Arrays.equals(scratch, 0, length, utf8, 0, utf8.length);
+    }
+
+    public String stringValue() {
+        if (token == JsonToken.NULL) {
+            return null;
+        }
+        if (token != JsonToken.STRING && token != JsonToken.NAME) {
+            throw error("Not a string: " + token);
+        }
+        if (!escaped && in.hasArray()) {
+            return new String(in.array(), in.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+        }
+        int length = escaped ? unescape() : copyRaw();
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public long longValue() {
+        if (token != JsonToken.NUMBER || !integral) {
+            throw error("Not an integer");
+        }
+        int i = start;
+        boolean negative = in.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        // Accumulate negatively so Long.MIN_VALUE parses without overflow
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = in.get(i) - '0';
+            if (result < (Long.MIN_VALUE + digit) / 10) {
+                throw error("Integer overflow");
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative && result == Long.MIN_VALUE) {
+            throw error("Integer overflow");
+        }
+        return negative ? result : -result;
+    }
+
+    public int intValue() {
+        long value = longValue();
+        if (value != (int) value) {
+            throw error("Integer overflow");
+        }
+        return (int) value;
+    }
+
+    public double doubleValue() {
+        if (token != JsonToken.NUMBER) {
+            throw error("Not a number");
+        }
+        // Fast path: up to 15 significant digits and a small power of ten
+        // are exact in a double, so one multiply/divide rounds correctly
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        int i = start;
+        boolean negative = in.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        boolean fraction = false;
+        for (; i < end; i++) {
+            byte b = in.get(i);
+            if (b == '.') {
+                fraction = true;
+            } else if (b == 'e' || b == 'E') {
+                break;
+            } else {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0) digits++;
+                    if (fraction) exponent--;
+                } else if (!fraction) {
+                    exponent++;
+                }
+            }
+        }
+        if (i < end) {
+            i++;
+            boolean negativeExponent = in.get(i) == '-';
+            if (in.get(i) == '-' || in.get(i) == '+') {
+                i++;
+            }
+            int value = 0;
+            for (; i < end && value < 10_000; i++) {
+                value = value * 10 + (in.get(i) - '0');
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        copyRaw();
+        return Double.parseDouble(new String(scratch, 0, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    private void push(byte container) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = container;
+        needComma = false;
+    }
+
+    private void valueCompleted() {
+        if (depth > 0) {
+            needComma = true;
+            expectName = stack[depth - 1] == IN_OBJECT;
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < limit) {
+            byte b = in.get(pos);
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private void literal(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (pos + i >= limit || in.get(pos + i) != word.charAt(i)) {
+                throw error("Expected '" + word + "'");
+            }
+        }
+        pos += word.length();
+        valueCompleted();
+    }
+
+    private void scanString() {
+        int i = pos + 1;
+        escaped = false;
+        while (true) {
+            if (i >= limit) {
+                throw error("Unterminated string");
+            }
+            byte b = in.get(i);
+            if (b == '"') {
+                break;
+            }
+            if (b == '\\') {
+                escaped = true;
+                i++;
+                if (i < limit && "\"\\/bfnrtu".indexOf(in.get(i)) < 0) {
+                    throw error("Invalid escape '\\" + (char) in.get(i) + "'");
+                }
+            } else if (b >= 0 && b < 0x20) {
+                throw error("Control character in string");
+            }
+            i++;
+        }
+        start = pos + 1;
+        end = i;
+        pos = i + 1;
+    }
+
+    // JSON number grammar: -?(0|[1-9]\d*)(\.\d+)?([eE][+-]?\d+)?
+    private void scanNumber() {
+        int i = pos;
+        if (in.get(i) == '-') {
+            i++;
+        }
+        int intStart = i;
+        i = digits(i);
+        if (i == intStart || (in.get(intStart) == '0' && i - intStart > 1)) {
+            throw error("Invalid number");
+        }
+        integral = true;
+        if (i < limit && in.get(i) == '.') {
+            integral = false;
+            int fractionStart = ++i;
+            i = digits(i);
+            if (i == fractionStart) {
+                throw error("Invalid number");
+            }
+        }
+        if (i < limit && (in.get(i) == 'e' || in.get(i) == 'E')) {
+            integral = false;
+            i++;
+            if (i < limit && (in.get(i) == '+' || in.get(i) == '-')) {
+                i++;
+            }
+            int exponentStart = i;
+            i = digits(i);
+            if (i == exponentStart) {
+                throw error("Invalid number");
+            }
+        }
+        start = pos;
+        end = i;
+        pos = i;
+    }
+
+    private int digits(int i) {
+        while (i < limit && in.get(i) >= '0' && in.get(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    private int copyRaw() {
+        ensureScratch(end - start);
+        in.get(start, scratch, 0, end - start);
+        return end - start;
+    }
+
+    // Decode escapes of the current string into scratch as UTF-8
+    private int unescape() {
+        ensureScratch(end - start);
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = in.get(i);
+            if (b != '\\') {
+                scratch[length++] = b;
+                continue;
+            }
+            byte e = in.get(++i);
+            switch (e) {
+                case '"': case '\\': case '/': scratch[length++] = e; break;
+                case 'b': scratch[length++] = '\b'; break;
+                case 'f': scratch[length++] = '\f'; break;
+                case 'n': scratch[length++] = '\n'; break;
+                case 'r': scratch[length++] = '\r'; break;
+                case 't': scratch[length++] = '\t'; break;
+                case 'u': {
+                    int codePoint = hex4(i + 1);
+                    i += 4;
+                    if (Character.isHighSurrogate((char) codePoint) && i + 6 < end
+                            && in.get(i + 1) == '\\' && in.get(i + 2) == 'u') {
+                        int low = hex4(i + 3);
+                        if (Character.isLowSurrogate((char) low)) {
+                            codePoint = Character.toCodePoint((char) codePoint, (char) low);
+                            i += 6;
+                        }
+                    }
+                    length = encodeUtf8(codePoint, length);
+                    break;
+                }
+                default:
+                    throw error("Invalid escape '\\" + (char) e + "'");
+            }
+        }
+        return length;
+    }
+
+    private int hex4(int at) {
+        if (at + 4 > end) {
+            throw error("Truncated \\u escape");
+        }
+        int value = 0;
+        for (int i = at; i < at + 4; i++) {
+            int digit = Character.digit(in.get(i), 16);
+            if (digit < 0) {
+                throw error("Invalid \\u escape");
+            }
+            value = value * 16 + digit;
+        }
+        return value;
+    }
+
+    // An escape is at least as long as its UTF-8 encoding, so scratch
+    // (sized to the raw string) always has room
+    private int encodeUtf8(int codePoint, int at) {
+        if (codePoint < 0x80) {
+            scratch[at++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            scratch[at++] = (byte) (0xC0 | codePoint >> 6);
+            scratch[at++] = (byte) (0x80 | codePoint & 0x3F);
+        } else if (codePoint < 0x10000) {
+            scratch[at++] = (byte) (0xE0 | codePoint >> 12);
+            scratch[at++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            scratch[at++] = (byte) (0x80 | codePoint & 0x3F);
+        } else {
+            scratch[at++] = (byte) (0xF0 | codePoint >> 18);
+            scratch[at++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+            scratch[at++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            scratch[at++] = (byte) (0x80 | codePoint & 0x3F);
+        }
+        return at;
+    }
+
+    private void ensureScratch(int size) {
+        if (scratch.length < size) {
+            scratch = new byte[Math.max(size, scratch.length * 2)];
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at byte " + pos);
+    }
+}
+
+
+// ============================================================
+// UTF-8 ENCODING
+// ============================================================
+
+/*
+ * UTF-8 without String.getBytes, shared by the JSON writer and the
+ * binary formats. A lone surrogate becomes one '?', as
+ * String.getBytes(UTF_8) does, so length() always matches put().
+ */
+final class Utf8 {
+    private Utf8() {
+    }
+
+    static int length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else {
+                int codePoint = s.codePointAt(i);
+                length += length(codePoint);
+                i += Character.charCount(codePoint) - 1;
+            }
+        }
+        return length;
+    }
+
+    static int length(int codePoint) {
+        return codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint >= 0x10000 ? 4
+                : Character.isSurrogate((char) codePoint) ? 1 : 3;
+    }
+
+    static void put(ByteBuffer out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else {
+                int codePoint = s.codePointAt(i);
+                put(out, codePoint);
+                i += Character.charCount(codePoint) - 1;
+            }
+        }
+    }
+
+    static void put(ByteBuffer out, int codePoint) {
+        if (codePoint < 0x80) {
+            out.put((byte) codePoint);
+        } else if (codePoint < 0x800) {
+            out.put((byte) (0xC0 | codePoint >> 6)).put((byte) (0x80 | codePoint & 0x3F));
+        } else if (codePoint < 0x10000 && Character.isSurrogate((char) codePoint)) {
+            out.put((byte) '?');
+        } else if (codePoint < 0x10000) {
+            out.put((byte) (0xE0 | codePoint >> 12)).put((byte) (0x80 | codePoint >> 6 & 0x3F))
+                    .put((byte) (0x80 | codePoint & 0x3F));
+        } else {
+            out.put((byte) (0xF0 | codePoint >> 18)).put((byte) (0x80 | codePoint >> 12 & 0x3F))
+                    .put((byte) (0x80 | codePoint >> 6 & 0x3F)).put((byte) (0x80 | codePoint & 0x3F));
+        }
+    }
+
+    // Writes one code point at dst[pos] (room for length(codePoint) bytes); returns the next pos
+    static int put(byte[] dst, int pos, int codePoint) {
+        if (codePoint < 0x80) {
+            dst[pos++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            dst[pos++] = (byte) (0xC0 | codePoint >> 6);
+            dst[pos++] = (byte) (0x80 | codePoint & 0x3F);
+        } else if (codePoint < 0x10000 && Character.isSurrogate((char) codePoint)) {
+            dst[pos++] = '?';
+        } else if (codePoint < 0x10000) {
+            dst[pos++] = (byte) (0xE0 | codePoint >> 12);
+            dst[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            dst[pos++] = (byte) (0x80 | codePoint & 0x3F);
+        } else {
+            dst[pos++] = (byte) (0xF0 | codePoint >> 18);
+            dst[pos++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+            dst[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            dst[pos++] = (byte) (0x80 | codePoint & 0x3F);
+        }
+        return pos;
+    }
+}
+
+
+// ============================================================
+// STREAMING JSON WRITER
+// ============================================================
+
+/*
+ * JSON generator that encodes straight into a reusable byte buffer.
+ * Commas and colons are inserted automatically; strings are escaped
+ * and UTF-8 encoded char by char; integers are formatted digit by
+ * digit. No intermediate Strings are created, so writing objects whose
+ * fields are already Strings/ints produces essentially no garbage.
+ *
+ * Without a sink the buffer grows and is read with toByteArray() or
+ * writeTo(). With an OutputStream/WritableByteChannel sink the buffer
+ * is drained whenever it fills up; call flush() at the end.
+ */
+class JsonWriter implements Flushable {
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    private byte[] buf;
+    private ByteBuffer channelView;
+    private int count;
+
+    // One bit per nesting level: has the container got a value yet?
+    private long[] hasValue = new long[1];
+    private byte[] containers = new byte[16];
+    private int depth;
+    private boolean nameWritten;
+
+    public JsonWriter() {
+        this(null, null, 256);
+    }
+
+    public JsonWriter(OutputStream out) {
+        this(out, null, 8192);
+    }
+
+    public JsonWriter(WritableByteChannel channel) {
+        this(null, channel, 8192);
+    }
+
+    private JsonWriter(OutputStream out, WritableByteChannel channel, int bufferSize) {
+        this.out = out;
+        this.channel = channel;
+        this.buf = new byte[bufferSize];
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        return open((byte) '{');
+    }
+
+    public JsonWriter endObject() {
+        return close((byte) '{', (byte) '}');
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        return open((byte) '[');
+    }
+
+    public JsonWriter endArray() {
+        return close((byte) '[', (byte) ']');
+    }
+
+    public JsonWriter name(String name) {
+        if (depth == 0 || containers[depth - 1] != '{' || nameWritten) {
+            throw new IllegalStateException("name() is only allowed inside an object, before a value");
+        }
+        comma();
+        string(name);
+        writeByte(':');
+        nameWritten = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        string(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        beforeValue();
+        writeLong(value);
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    // Whole numbers up to 2^53 are written digit by digit; other values
+    // fall back to Double.toString (which allocates)
+    public JsonWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON has no representation for " + value);
+        }
+        beforeValue();
+        if (value == (long) value && Math.abs(value) < 0x1p53 && !(value == 0 && 1 / value < 0)) {
+            writeLong((long) value);
+        } else {
+            writeAscii(Double.toString(value));
+        }
+        return this;
+    }
+
+    public JsonWriter nullValue() {
+        beforeValue();
+        writeAscii("null");
+        return this;
+    }
+
+    // Bytes written since the last reset() (in-memory mode)
+    public int size() {
+        return count;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    public void writeTo(OutputStream target) throws IOException {
+        target.write(buf, 0, count);
+    }
+
+    // Reuse the same buffer for the next document
+    public void reset() {
+        count = 0;
+        depth = 0;
+        nameWritten = false;
+        hasValue[0] &= ~1L;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    private JsonWriter open(byte bracket) {
+        writeByte(bracket);
+        if (depth == containers.length) {
+            containers = Arrays.copyOf(containers, depth * 2);
+        }
+        containers[depth++] = bracket;
+        if (depth >> 6 >= hasValue.length) {
+            hasValue = Arrays.copyOf(hasValue, hasValue.length * 2);
+        }
+        hasValue[depth >> 6] &= ~(1L << depth);
+        return this;
+    }
+
+    private JsonWriter close(byte open, byte bracket) {
+        if (depth == 0 || containers[depth - 1] != open || nameWritten) {
+            throw new IllegalStateException("Unbalanced '" + (char) bracket + "'");
+        }
+        depth--;
+        writeByte(bracket);
+        return this;
+    }
+
+    private void beforeValue() {
+        if (depth > 0 && containers[depth - 1] == '{') {
+            if (!nameWritten) {
+                throw new IllegalStateException("Object values need a name() first");
+            }
+            nameWritten = false;
+        } else {
+            comma();
+        }
+    }
+
+    // Separator before the next element; top-level values get a newline
+    private void comma() {
+        if ((hasValue[depth >> 6] & 1L << depth) != 0) {
+            writeByte(depth == 0 ? '\n' : ',');
+        }
+        hasValue[depth >> 6] |= 1L << depth;
+    }
+
+    private void string(String s) {
+        writeByte('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    if (count == buf.length) ensure(1);
+                    buf[count++] = (byte) c;
+                } else {
+                    escape(c);
+                }
+            } else {
+                int codePoint = s.codePointAt(i);
+                if (codePoint == c && Character.isSurrogate(c)) {
+                    escape(c);  // lone surrogate: keep it as \\uXXXX
+                } else {
+                    ensure(4);
+                    count = Utf8.put(buf, count, codePoint);
+                    i += Character.charCount(codePoint) - 1;
+                }
+            }
+        }
+        writeByte('"');
+    }
+
+    private void escape(char c) {
+        ensure(6);
+        buf[count++] = '\\';
+        switch (c) {
+            case '"': buf[count++] = '"'; return;
+            case '\\': buf[count++] = '\\'; return;
+            case '\n': buf[count++] = 'n'; return;
+            case '\r': buf[count++] = 'r'; return;
+            case '\t': buf[count++] = 't'; return;
+            case '\b': buf[count++] = 'b'; return;
+            case '\f': buf[count++] = 'f'; return;
+            default:
+                buf[count++] = 'u';
+                buf[count++] = HEX[c >> 12 & 0xF];
+                buf[count++] = HEX[c >> 8 & 0xF];
+                buf[count++] = HEX[c >> 4 & 0xF];
+                buf[count++] = HEX[c & 0xF];
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            ensure(MIN_LONG.length);
+            System.arraycopy(MIN_LONG, 0, buf, count, MIN_LONG.length);
+            count += MIN_LONG.length;
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buf[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int at = count + digits;
+        do {
+            buf[--at] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        count += digits;
+    }
+
+    private void writeAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        buf[count++] = (byte) b;
+    }
+
+    private void ensure(int needed) {
+        if (count + needed <= buf.length) {
+            return;
+        }
+        if (out != null || channel != null) {
+            try {
+                drain();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (needed <= buf.length) {
+                return;
+            }
+        }
+        buf = Arrays.copyOf(buf, Math.max(count + needed, buf.length * 2));
+        channelView = null;
+    }
+
+    private void drain() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        if (out != null) {
+            out.write(buf, 0, count);
+        } else if (channel != null) {
+            if (channelView == null) {
+                channelView = ByteBuffer.wrap(buf);
+            }
+            channelView.clear().limit(count);
+            while (channelView.hasRemaining()) {
+                channel.write(channelView);
+            }
+        }
+        count = 0;
+    }
+}
+
+
+// ============================================================
+// PERSON <-> JSON BINDING
+// ============================================================
+
+/*
+ * Binds Person to JSON through JsonReader/JsonWriter. Field names are
+ * matched as raw UTF-8 bytes; unknown fields (including nested
+ * objects/arrays) are skipped, and missing ones stay null / 0.
+ */
+class PersonJson {
+    private static final byte[] NAME = "name".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] AGE = "age".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMAIL = "email".getBytes(StandardCharsets.UTF_8);
+
+    public static byte[] toJson(Person person) {
+        JsonWriter writer = new JsonWriter();
+        write(writer, person);
+        return writer.toByteArray();
+    }
+
+    public static void write(JsonWriter writer, Person person) {
+        writer.beginObject()
+                .name("name").value(person.getName())
+                .name("age").value(person.getAge())
+                .name("email").value(person.getEmail())
+                .endObject();
+    }
+
+    public static Person fromJson(byte[] json) {
+        return read(new JsonReader(json));
+    }
+
+    // Reads the next value, which must be an object
+    public static Person read(JsonReader reader) {
+        if (reader.next() != JsonToken.BEGIN_OBJECT) {
+            throw new IllegalArgumentException("Expected a Person object, found " + reader.token());
+        }
+        return readFields(reader);
+    }
+
+    // Reads a JSON array of Person objects
+    public static List<Person> readArray(JsonReader reader) {
+        if (reader.next() != JsonToken.BEGIN_ARRAY) {
+            throw new IllegalArgumentException("Expected an array, found " + reader.token());
+        }
+        List<Person> people = new ArrayList<>();
+        JsonToken token;
+        while ((token = reader.next()) == JsonToken.BEGIN_OBJECT) {
+            people.add(readFields(reader));
+        }
+        if (token != JsonToken.END_ARRAY) {
+            throw new IllegalArgumentException("Expected a Person object, found " + token);
+        }
+        return people;
+    }
+
+    // Called just after BEGIN_OBJECT
+    private static Person readFields(JsonReader reader) {
+        String name = null;
+        int age = 0;
+        String email = null;
+        while (reader.next() == JsonToken.NAME) {
+            if (reader.nameEquals(NAME)) {
+                reader.next();
+                name = reader.stringValue();
+            } else if (reader.nameEquals(AGE)) {
+                reader.next();
+                age = reader.intValue();
+            } else if (reader.nameEquals(EMAIL)) {
+                reader.next();
+                email = reader.stringValue();
+            } else {
+                reader.next();
+                reader.skipChildren();
+            }
+        }
+        if (reader.token() != JsonToken.END_OBJECT) {
+            throw new IllegalArgumentException("Unexpected " + reader.token() + " in Person");
+        }
+        return new Person(name, age, email);
+    }
+}
+
+
+// ============================================================
+// COMPILED BINARY CODECS
+// ============================================================
+
+/*
+ * Binary encoder/decoder built once per class. The class is inspected a
+ * single time; every non-static, non-transient field (or record
+ * component) becomes a slot holding MethodHandles typed exactly for it,
+ * so encoding is a straight loop of getter calls and ByteBuffer puts -
+ * no class descriptors, no per-call reflection, no intermediate streams.
+ *
+ * Wire format: fields in declaration order (superclass first), fixed
+ * width primitives, strings as int length + UTF-8 (-1 = null), enums by
+ * ordinal, nested objects as a presence byte + their own codec.
+ *
+ * Limits compared with Java serialization: object graphs are written as
+ * trees (no shared references or cycles), nested objects must be of
+ * their declared class, and classes with private writeObject/readObject
+ * are rejected because their custom stream logic cannot be compiled.
+ * Serializable classes are instantiated without running their own
+ * constructors, so transient fields are left at their default value, as
+ * in Java serialization.
+ */
+final class BinaryCodec<T> {
+    private static final ClassValue<BinaryCodec<?>> CODECS = new ClassValue<>() {
+        @Override
+        protected BinaryCodec<?> computeValue(Class<?> type) {
+            return new BinaryCodec<>(type);
+        }
+    };
+
+    private final Class<T> type;
+    private final Slot[] slots;
+    private final Constructor<?> instantiator;   // classes
+    private final MethodHandle recordConstructor; // records: (Object[])Object
+
+    @SuppressWarnings("unchecked")
+    public static <T> BinaryCodec<T> of(Class<T> type) {
+        return (BinaryCodec<T>) CODECS.get(type);
+    }
+
+    private BinaryCodec(Class<T> type) {
+        this.type = type;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            List<Slot> slots = new ArrayList<>();
+            if (type.isRecord()) {
+                RecordComponent[] components = type.getRecordComponents();
+                Class<?>[] types = new Class<?>[components.length];
+                for (int i = 0; i < components.length; i++) {
+                    Method accessor = components[i].getAccessor();
+                    accessor.setAccessible(true);
+                    types[i] = components[i].getType();
+                    slots.add(new Slot(components[i].getName(), types[i], lookup.unreflect(accessor), null));
+                }
+                Constructor<T> canonical = type.getDeclaredConstructor(types);
+                canonical.setAccessible(true);
+                this.recordConstructor = lookup.unreflectConstructor(canonical)
+                        .asSpreader(Object[].class, types.length)
+                        .asType(MethodType.methodType(Object.class, Object[].class));
+                this.instantiator = null;
+            } else {
+                rejectCustomSerialization(type);
+                for (Class<?> c : hierarchy(type)) {
+                    for (Field field : c.getDeclaredFields()) {
+                        int modifiers = field.getModifiers();
+                        if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                            continue;
+                        }
+                        field.setAccessible(true);
+                        slots.add(new Slot(field.getName(), field.getType(),
+                                lookup.unreflectGetter(field), lookup.unreflectSetter(field)));
+                    }
+                }
+                this.instantiator = instantiator(type);
+                this.recordConstructor = null;
+            }
+            this.slots = slots.toArray(new Slot[0]);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot build codec for " + type.getName(), e);
+        }
+    }
+
+    public void encode(T value, ByteBuffer out) {
+        try {
+            for (Slot slot : slots) {
+                slot.write(value, out);
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    public T decode(ByteBuffer in) {
+        try {
+            if (recordConstructor != null) {
+                Object[] args = new Object[slots.length];
+                for (int i = 0; i < slots.length; i++) {
+                    args[i] = slots[i].readValue(in);
+                }
+                return type.cast((Object) recordConstructor.invokeExact(args));
+            }
+            T value = type.cast(instantiator.newInstance());
+            for (Slot slot : slots) {
+                slot.read(value, in);
+            }
+            return value;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    // Encode into a fresh array, growing the scratch buffer as needed
+    public byte[] toBytes(T value) {
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+        while (true) {
+            try {
+                encode(value, buffer);
+                return Arrays.copyOf(buffer.array(), buffer.position());
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+    }
+
+    public T fromBytes(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    public List<String> fieldNames() {
+        List<String> names = new ArrayList<>();
+        for (Slot slot : slots) {
+            names.add(slot.name);
+        }
+        return names;
+    }
+
+    private static List<Class<?>> hierarchy(Class<?> type) {
+        Deque<Class<?>> classes = new ArrayDeque<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            classes.addFirst(c);
+        }
+        return new ArrayList<>(classes);
+    }
+
+    private static void rejectCustomSerialization(Class<?> type) {
+        for (Class<?> c : hierarchy(type)) {
+            for (Method method : c.getDeclaredMethods()) {
+                if ((method.getName().equals("writeObject") || method.getName().equals("readObject"))
+                        && Modifier.isPrivate(method.getModifiers())) {
+                    throw new IllegalArgumentException(type.getName()
+                            + " has custom writeObject/readObject; use Java serialization for it");
+                }
+            }
+        }
+    }
+
+    /*
+     * Serializable classes are created like ObjectInputStream does: only
+     * the no-arg constructor of the first non-serializable superclass
+     * runs, so field initializers of the class itself (transient ones
+     * included) do not. That constructor comes from
+     * sun.reflect.ReflectionFactory (module jdk.unsupported), looked up
+     * reflectively to keep javac quiet. Other classes need a no-arg
+     * constructor.
+     */
+    private static Constructor<?> instantiator(Class<?> type) throws ReflectiveOperationException {
+        if (!Serializable.class.isAssignableFrom(type)) {
+            Constructor<?> noArg = type.getDeclaredConstructor();
+            noArg.setAccessible(true);
+            return noArg;
+        }
+        Class<?> factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+        Object factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+        Constructor<?> constructor = (Constructor<?>) factoryClass
+                .getMethod("newConstructorForSerialization", Class.class)
+                .invoke(factory, type);
+        constructor.setAccessible(true);
+        return constructor;
+    }
+
+    static void putString(ByteBuffer out, String s) {
+        if (s == null) {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(Utf8.length(s));
+        Utf8.put(out, s);
+    }
+
+    static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        checkLength(in, length);
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    // -1 marks null; any other length must fit in what is left of the buffer
+    private static void checkLength(ByteBuffer in, int length) {
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Length " + length + " exceeds the "
+                    + in.remaining() + " bytes left");
+        }
+    }
+
+    /*
+     * One field. The getter/setter handles are adapted to exact
+     * (Object)int, (Object,int)void, ... shapes so invokeExact links
+     * without boxing; the kind switch picks the matching call.
+     */
+    private static final class Slot {
+        private static final int BOOLEAN = 0, BYTE = 1, SHORT = 2, CHAR = 3, INT = 4, LONG = 5,
+                FLOAT = 6, DOUBLE = 7, STRING = 8, ENUM = 9, BYTES = 10, OBJECT = 11;
+
+        final String name;
+        final Class<?> type;
+        final int kind;
+        final MethodHandle getter;
+        final MethodHandle setter;
+        final Object[] constants;
+
+        Slot(String name, Class<?> type, MethodHandle getter, MethodHandle setter) {
+            this.name = name;
+            this.type = type;
+            this.kind = kindOf(type);
+            Class<?> exposed = type.isPrimitive() ? type : Object.class;
+            this.getter = getter.asType(MethodType.methodType(exposed, Object.class));
+            this.setter = setter == null ? null
+                    : setter.asType(MethodType.methodType(void.class, Object.class, exposed));
+            this.constants = kind == ENUM ? type.getEnumConstants() : null;
+        }
+
+        private static int kindOf(Class<?> type) {
+            if (type == boolean.class) return BOOLEAN;
+            if (type == byte.class) return BYTE;
+            if (type == short.class) return SHORT;
+            if (type == char.class) return CHAR;
+            if (type == int.class) return INT;
+            if (type == long.class) return LONG;
+            if (type == float.class) return FLOAT;
+            if (type == double.class) return DOUBLE;
+            if (type == String.class) return STRING;
+            if (type.isEnum()) return ENUM;
+            if (type == byte[].class) return BYTES;
+            if (type.isArray() || type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+                throw new IllegalArgumentException("Unsupported field type " + type.getName());
+            }
+            return OBJECT;
+        }
+
+        void write(Object target, ByteBuffer out) throws Throwable {
+            switch (kind) {
+                case BOOLEAN: out.put((byte) ((boolean) getter.invokeExact(target) ? 1 : 0)); break;
+                case BYTE: out.put((byte) getter.invokeExact(target)); break;
+                case SHORT: out.putShort((short) getter.invokeExact(target)); break;
+                case CHAR: out.putChar((char) getter.invokeExact(target)); break;
+                case INT: out.putInt((int) getter.invokeExact(target)); break;
+                case LONG: out.putLong((long) getter.invokeExact(target)); break;
+                case FLOAT: out.putFloat((float) getter.invokeExact(target)); break;
+                case DOUBLE: out.putDouble((double) getter.invokeExact(target)); break;
+                default: writeObject((Object) getter.invokeExact(target), out);
+            }
+        }
+
+        void read(Object target, ByteBuffer in) throws Throwable {
+            switch (kind) {
+                case BOOLEAN: setter.invokeExact(target, in.get() != 0); break;
+                case BYTE: setter.invokeExact(target, in.get()); break;
+                case SHORT: setter.invokeExact(target, in.getShort()); break;
+                case CHAR: setter.invokeExact(target, in.getChar()); break;
+                case INT: setter.invokeExact(target, in.getInt()); break;
+                case LONG: setter.invokeExact(target, in.getLong()); break;
+                case FLOAT: setter.invokeExact(target, in.getFloat()); break;
+                case DOUBLE: setter.invokeExact(target, in.getDouble()); break;
+                default: setter.invokeExact(target, readObject(in));
+            }
+        }
+
+        // Boxed read, used to collect record constructor arguments
+        Object readValue(ByteBuffer in) {
+            switch (kind) {
+                case BOOLEAN: return in.get() != 0;
+                case BYTE: return in.get();
+                case SHORT: return in.getShort();
+                case CHAR: return in.getChar();
+                case INT: return in.getInt();
+                case LONG: return in.getLong();
+                case FLOAT: return in.getFloat();
+                case DOUBLE: return in.getDouble();
+                default: return readObject(in);
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private void writeObject(Object value, ByteBuffer out) {
+            switch (kind) {
+                case STRING:
+                    putString(out, (String) value);
+                    break;
+                case ENUM:
+                    out.putInt(value == null ? -1 : ((Enum<?>) value).ordinal());
+                    break;
+                case BYTES:
+                    byte[] bytes = (byte[]) value;
+                    out.putInt(bytes == null ? -1 : bytes.length);
+                    if (bytes != null) {
+                        out.put(bytes);
+                    }
+                    break;
+                default:
+                    if (value == null) {
+                        out.put((byte) 0);
+                    } else if (value.getClass() != type) {
+                        throw new IllegalArgumentException("Field " + name + " holds a "
+                                + value.getClass().getName() + ", expected exactly " + type.getName());
+                    } else {
+                        out.put((byte) 1);
+                        ((BinaryCodec) BinaryCodec.of(type)).encode(value, out);
+                    }
+            }
+        }
+
+        private Object readObject(ByteBuffer in) {
+            switch (kind) {
+                case STRING:
+                    return getString(in);
+                case ENUM: {
+                    int ordinal = in.getInt();
+                    if (ordinal == -1) {
+                        return null;
+                    }
+                    if (ordinal < 0 || ordinal >= constants.length) {
+                        throw new IllegalArgumentException("Ordinal " + ordinal + " out of range for "
+                                + type.getName() + " (" + constants.length + " constants)");
+                    }
+                    return constants[ordinal];
+                }
+                case BYTES: {
+                    int length = in.getInt();
+                    if (length == -1) {
+                        return null;
+                    }
+                    checkLength(in, length);
+                    byte[] bytes = new byte[length];
+                    in.get(bytes);
+                    return bytes;
+                }
+                default:
+                    return in.get() == 0 ? null : BinaryCodec.of(type).decode(in);
+            }
+        }
+    }
+}
+
+
+// ============================================================
+// DEEP COPY ENGINE
+// ============================================================
+
+/*
+ * Deep copy by walking the object graph directly instead of through
+ * serialization. Each class gets a copy plan on first use (cached in a
+ * ClassValue):
+ *
+ * - SHARE: immutables (String, boxed primitives, enums, java.time,
+ *   BigInteger/BigDecimal, UUID, records whose components are all
+ *   immutable) are returned as-is
+ * - primitive arrays: one System.arraycopy
+ * - object arrays: element-wise by each element's runtime class, or
+ *   arraycopy when the element type is final and immutable
+ * - common java.util collections and maps: rebuilt through their
+ *   public API (their fields are not accessible)
+ * - unmodifiable collections (List.of, Set.of, Map.of...): shared if
+ *   every element is immutable, else rebuilt with List/Set/Map.copyOf
+ * - records: canonical constructor with copied components
+ * - other classes: allocated through their no-arg constructor if they
+ *   have one (its side effects run), else without running any
+ *   constructor, then copied field by field through MethodHandles
+ *
+ * Two phases, both iterative so long chains cannot overflow the stack:
+ *
+ * 1. walk: an explicit-stack depth-first pass allocates a copy of every
+ *    mutable object and array, and fills it as soon as the walk leaves
+ *    it (the copies it points to exist by then). Records and
+ *    unmodifiable collections can only be created with their contents,
+ *    and hashed/sorted collections need filled elements, so those, and
+ *    mutable objects pointing to a record, wait. Tarjan's strongly
+ *    connected components put the waiting ones in completion order:
+ *    each after everything it refers to, except members of its own
+ *    cycle. A cycle through a record or unmodifiable collection is
+ *    rejected here, before anything is built.
+ * 2. complete: in that order, fill the waiting copies and build the
+ *    records and unmodifiable collections, whose components are
+ *    complete by then. Within a cycle, hashed/sorted collections come
+ *    after its other members, so they hash and compare filled copies.
+ *
+ * An identity map preserves sharing and cycles. Nothing needs to be
+ * Serializable.
+ */
+final class DeepCopier {
+    private static final ClassValue<CopyPlan> PLANS = new ClassValue<>() {
+        @Override
+        protected CopyPlan computeValue(Class<?> type) {
+            return CopyPlan.create(type);
+        }
+    };
+
+    private static final Object[] NO_LINKS = new Object[0];
+
+    private final IdentityHashMap<Object, Node> nodes;
+    // Waiting nodes in completion order, filled or built in this order
+    private final List<Node> order = new ArrayList<>();
+    // Tarjan stack: walked nodes whose component is still open
+    private final ArrayDeque<Node> component = new ArrayDeque<>();
+    private int discovered;
+
+    private DeepCopier(int expectedObjects) {
+        this.nodes = new IdentityHashMap<>(expectedObjects);
+    }
+
+    public static <T> T copy(T root) {
+        return copy(root, 64);
+    }
+
+    // expectedObjects presizes the identity map for large graphs
+    @SuppressWarnings("unchecked")
+    public static <T> T copy(T root, int expectedObjects) {
+        DeepCopier copier = new DeepCopier(expectedObjects);
+        Object link = copier.walk(root);
+        copier.complete();
+        return (T) copyOf(link);
+    }
+
+    // A link is either a shared value (or null) or the Node of a copied source
+    static Object copyOf(Object link) {
+        return link instanceof Node node ? node.copy : link;
+    }
+
+    /*
+     * Phase 1: allocate and fill mutable copies, and find the completion
+     * order of the rest. Each node's links start as its references and
+     * are replaced by the referenced Nodes as the walk reaches them.
+     */
+    private Object walk(Object root) {
+        if (root == null || PLANS.get(root.getClass()).kind == CopyPlan.SHARE) {
+            return root;
+        }
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        Node rootNode = enter(root, PLANS.get(root.getClass()), stack);
+        while (!stack.isEmpty()) {
+            Node node = stack.peek();
+            Object[] links = node.links;
+            if (node.next < links.length) {
+                int i = node.next++;
+                Object child = links[i];
+                if (child == null) {
+                    continue;
+                }
+                CopyPlan plan = PLANS.get(child.getClass());
+                if (plan.kind == CopyPlan.SHARE) {
+                    continue;
+                }
+                Node target = nodes.get(child);
+                if (target == null) {
+                    target = enter(child, plan, stack);
+                } else if (target.open) {
+                    if (target == node && plan.buildsWhole()) {
+                        throw cycleThrough(child);
+                    }
+                    node.low = Math.min(node.low, target.index);
+                }
+                node.waits |= plan.buildsWhole();
+                links[i] = target;
+                continue;
+            }
+            stack.pop();
+            if (!node.waits) {
+                // Every link is a shared value or an allocated mutable copy
+                node.plan.fill(node.source, node.copy, node.links);
+                node.links = null;
+            }
+            if (node.low == node.index) {
+                closeComponent(node);
+            } else {
+                stack.peek().low = Math.min(stack.peek().low, node.low);
+            }
+        }
+        return rootNode;
+    }
+
+    private Node enter(Object source, CopyPlan plan, ArrayDeque<Node> stack) {
+        Node node = new Node(source, plan);
+        nodes.put(source, node);
+        if (plan.kind == CopyPlan.PRIMITIVE_ARRAY) {
+            node.copy = plan.allocate(source);  // copied whole, nothing to walk
+            node.links = NO_LINKS;
+            return node;
+        }
+        if (!plan.buildsWhole()) {
+            node.copy = plan.allocate(source);
+        }
+        node.links = plan.references(source);
+        node.waits = plan.buildsWhole() || plan.kind == CopyPlan.HASHED || plan.kind == CopyPlan.MAP;
+        node.index = node.low = discovered++;
+        node.open = true;
+        component.push(node);
+        stack.push(node);
+        return node;
+    }
+
+    // Move one strongly connected component's waiting nodes to the completion order
+    private void closeComponent(Node root) {
+        int first = order.size();
+        int members = 0;
+        Node member;
+        do {
+            member = component.pop();
+            member.open = false;
+            members++;
+            if (member.waits) {
+                order.add(member);
+            }
+        } while (member != root);
+        if (members > 1) {
+            // A hashed or sorted collection in the cycle is filled after the
+            // other members, so it hashes/compares their filled copies
+            List<Node> collections = new ArrayList<>();
+            int kept = first;
+            for (int i = first; i < order.size(); i++) {
+                Node node = order.get(i);
+                if (node.plan.buildsWhole()) {
+                    throw cycleThrough(node.source);
+                }
+                if (node.plan.kind == CopyPlan.HASHED || node.plan.kind == CopyPlan.MAP) {
+                    collections.add(node);
+                } else {
+                    order.set(kept++, node);
+                }
+            }
+            for (Node collection : collections) {
+                order.set(kept++, collection);
+            }
+        }
+    }
+
+    private static IllegalArgumentException cycleThrough(Object source) {
+        return new IllegalArgumentException("Cannot deep-copy a cycle through "
+                + source.getClass().getName() + " (it must be constructed with its contents)");
+    }
+
+    // Phase 2: everything a waiting node links to outside its cycle is complete
+    private void complete() {
+        for (Node node : order) {
+            if (node.plan.buildsWhole()) {
+                node.copy = node.plan.build(node.source, node.links);
+            } else {
+                node.plan.fill(node.source, node.copy, node.links);
+            }
+        }
+    }
+
+    // Every value of this static type can be shared (final, so no mutable subclass)
+    static boolean isImmutable(Class<?> type) {
+        return type.isPrimitive() || (Modifier.isFinal(type.getModifiers()) && CopyPlan.isShareable(type));
+    }
+
+    // One non-shared source: its copy, its links and its Tarjan index/low-link
+    private static final class Node {
+        final Object source;
+        final CopyPlan plan;
+        Object copy;      // null until built for records and unmodifiable collections
+        Object[] links;   // null once filled
+        boolean waits;    // filled or built in phase 2, not when the walk leaves it
+        int index;
+        int low;
+        int next;         // next link to walk
+        boolean open;     // on the Tarjan stack
+
+        Node(Object source, CopyPlan plan) {
+            this.source = source;
+            this.plan = plan;
+        }
+    }
+
+    private static final class CopyPlan {
+        static final int SHARE = 0, PRIMITIVE_ARRAY = 1, OBJECT_ARRAY = 2, RECORD = 3,
+                LIST = 4, HASHED = 5, MAP = 6, OBJECT = 7, UNMODIFIABLE = 8;
+
+        private static final Set<Class<?>> IMMUTABLE = Set.of(
+                String.class, Boolean.class, Byte.class, Short.class, Character.class,
+                Integer.class, Long.class, Float.class, Double.class, Class.class,
+                java.math.BigInteger.class, java.math.BigDecimal.class, UUID.class);
+
+        // Public factories for the JDK collections we know how to rebuild
+        private static final Map<Class<?>, Function<Object, Object>> FACTORIES = Map.of(
+                ArrayList.class, s -> new ArrayList<>(((Collection<?>) s).size()),
+                LinkedList.class, s -> new LinkedList<>(),
+                ArrayDeque.class, s -> new ArrayDeque<>(((Collection<?>) s).size()),
+                HashSet.class, s -> new HashSet<>(),
+                LinkedHashSet.class, s -> new LinkedHashSet<>(),
+                TreeSet.class, s -> new TreeSet<>(((TreeSet<?>) s).comparator()),
+                HashMap.class, s -> new HashMap<>(),
+                LinkedHashMap.class, s -> new LinkedHashMap<>(),
+                TreeMap.class, s -> new TreeMap<>(((TreeMap<?, ?>) s).comparator()));
+
+        final int kind;
+        final Class<?> type;
+        private MethodHandle allocator;            // ()Object
+        private MethodHandle[] primitiveCopiers;   // (Object dst, Object src)void
+        private MethodHandle[] referenceGetters;   // (Object)Object
+        private MethodHandle[] referenceSetters;   // (Object, Object)void
+        private MethodHandle[] componentGetters;   // records
+        private MethodHandle recordConstructor;    // (Object[])Object
+        private boolean immutableElements;         // object arrays
+
+        private CopyPlan(int kind, Class<?> type) {
+            this.kind = kind;
+            this.type = type;
+        }
+
+        static CopyPlan create(Class<?> type) {
+            try {
+                if (isShareable(type)) {
+                    return new CopyPlan(SHARE, type);
+                }
+                if (type.isArray()) {
+                    Class<?> component = type.getComponentType();
+                    CopyPlan plan = new CopyPlan(component.isPrimitive() ? PRIMITIVE_ARRAY : OBJECT_ARRAY, type);
+                    plan.immutableElements = !component.isPrimitive() && isImmutable(component);
+                    return plan;
+                }
+                if (FACTORIES.containsKey(type)) {
+                    int kind = Map.class.isAssignableFrom(type) ? MAP
+                            : Set.class.isAssignableFrom(type) ? HASHED : LIST;
+                    return new CopyPlan(kind, type);
+                }
+                if (type.isRecord()) {
+                    return recordPlan(type);
+                }
+                if (type.getName().startsWith("java.util.ImmutableCollections$")) {
+                    return new CopyPlan(UNMODIFIABLE, type);
+                }
+                if (type.getName().startsWith("java.")) {
+                    throw new IllegalArgumentException("Don't know how to deep-copy " + type.getName());
+                }
+                return objectPlan(type);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Cannot build copy plan for " + type.getName(), e);
+            }
+        }
+
+        // Evaluated from computeValue, so a record that (indirectly)
+        // refers to its own type simply is not treated as shareable
+        private static final ThreadLocal<Set<Class<?>>> IN_PROGRESS =
+                ThreadLocal.withInitial(HashSet::new);
+
+        private static boolean isShareable(Class<?> type) {
+            if (IMMUTABLE.contains(type) || type.isEnum()
+                    || (type.getSuperclass() != null && type.getSuperclass().isEnum())) {
+                return true;
+            }
+            if (type.getPackageName().equals("java.time") && Modifier.isFinal(type.getModifiers())) {
+                return true;
+            }
+            if (!type.isRecord() || !IN_PROGRESS.get().add(type)) {
+                return false;
+            }
+            try {
+                for (RecordComponent component : type.getRecordComponents()) {
+                    Class<?> c = component.getType();
+                    // A non-final declared type may hold a mutable subclass
+                    if (!isImmutable(c)) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                IN_PROGRESS.get().remove(type);
+            }
+        }
+
+        private static CopyPlan recordPlan(Class<?> type) throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            RecordComponent[] components = type.getRecordComponents();
+            CopyPlan plan = new CopyPlan(RECORD, type);
+            plan.componentGetters = new MethodHandle[components.length];
+            Class<?>[] types = new Class<?>[components.length];
+            for (int i = 0; i < components.length; i++) {
+                Method accessor = components[i].getAccessor();
+                accessor.setAccessible(true);
+                types[i] = components[i].getType();
+                plan.componentGetters[i] = lookup.unreflect(accessor)
+                        .asType(MethodType.methodType(Object.class, Object.class));
+            }
+            Constructor<?> canonical = type.getDeclaredConstructor(types);
+            canonical.setAccessible(true);
+            plan.recordConstructor = lookup.unreflectConstructor(canonical)
+                    .asSpreader(Object[].class, types.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+            return plan;
+        }
+
+        private static CopyPlan objectPlan(Class<?> type) throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            List<MethodHandle> primitives = new ArrayList<>();
+            List<MethodHandle> getters = new ArrayList<>();
+            List<MethodHandle> setters = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    MethodHandle getter = lookup.unreflectGetter(field);
+                    MethodHandle setter = lookup.unreflectSetter(field);
+                    if (field.getType().isPrimitive()) {
+                        // setter(dst, getter(src)) as one (Object, Object)void handle
+                        MethodHandle copier = MethodHandles.filterArguments(setter, 1, getter);
+                        primitives.add(copier.asType(MethodType.methodType(void.class, Object.class, Object.class)));
+                    } else {
+                        getters.add(getter.asType(MethodType.methodType(Object.class, Object.class)));
+                        setters.add(setter.asType(MethodType.methodType(void.class, Object.class, Object.class)));
+                    }
+                }
+            }
+            CopyPlan plan = new CopyPlan(OBJECT, type);
+            plan.primitiveCopiers = primitives.toArray(new MethodHandle[0]);
+            plan.referenceGetters = getters.toArray(new MethodHandle[0]);
+            plan.referenceSetters = setters.toArray(new MethodHandle[0]);
+            plan.allocator = allocator(type);
+            return plan;
+        }
+
+        /*
+         * ()Object handle creating a blank instance: the no-arg constructor
+         * if there is one (fields are overwritten anyway), otherwise, like
+         * Object.clone(), an instance created without running any of its
+         * constructors via sun.reflect.ReflectionFactory (module
+         * jdk.unsupported), looked up reflectively to keep javac quiet.
+         */
+        private static MethodHandle allocator(Class<?> type) throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType blank = MethodType.methodType(Object.class);
+            try {
+                Constructor<?> noArg = type.getDeclaredConstructor();
+                noArg.setAccessible(true);
+                return lookup.unreflectConstructor(noArg).asType(blank);
+            } catch (NoSuchMethodException e) {
+                // fall through
+            }
+            Class<?> factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+            Object factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+            Constructor<?> constructor = (Constructor<?>) factoryClass
+                    .getMethod("newConstructorForSerialization", Class.class, Constructor.class)
+                    .invoke(factory, type, Object.class.getDeclaredConstructor());
+            constructor.setAccessible(true);
+            MethodHandle newInstance = lookup.findVirtual(Constructor.class, "newInstance",
+                    MethodType.methodType(Object.class, Object[].class));
+            return MethodHandles.insertArguments(newInstance, 0, constructor, new Object[0]).asType(blank);
+        }
+
+        boolean buildsWhole() {
+            return kind == RECORD || kind == UNMODIFIABLE;
+        }
+
+        // Blank copy of a mutable source (primitive arrays are copied whole)
+        Object allocate(Object source) {
+            try {
+                switch (kind) {
+                    case PRIMITIVE_ARRAY: {
+                        int length = Array.getLength(source);
+                        Object copy = Array.newInstance(type.getComponentType(), length);
+                        System.arraycopy(source, 0, copy, 0, length);
+                        return copy;
+                    }
+                    case OBJECT_ARRAY:
+                        return Array.newInstance(type.getComponentType(),
+                                ((Object[]) source).length);
+                    case OBJECT:
+                        return (Object) allocator.invokeExact();
+                    default:
+                        return FACTORIES.get(type).apply(source);
+                }
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException("Cannot copy " + type.getName(), t);
+            }
+        }
+
+        // Every reference the copy will hold a copy of (maps: key, value, key...),
+        // in a fresh Object[] the walk can overwrite with links
+        Object[] references(Object source) {
+            try {
+                switch (kind) {
+                    case OBJECT: {
+                        Object[] values = new Object[referenceGetters.length];
+                        for (int i = 0; i < values.length; i++) {
+                            values[i] = (Object) referenceGetters[i].invokeExact(source);
+                        }
+                        return values;
+                    }
+                    case OBJECT_ARRAY:
+                        return immutableElements ? NO_LINKS
+                                : Arrays.copyOf((Object[]) source, ((Object[]) source).length, Object[].class);
+                    case RECORD: {
+                        Object[] values = new Object[componentGetters.length];
+                        for (int i = 0; i < values.length; i++) {
+                            values[i] = (Object) componentGetters[i].invokeExact(source);
+                        }
+                        return values;
+                    }
+                    default:
+                        if (source instanceof Map<?, ?> map) {
+                            Object[] values = new Object[map.size() * 2];
+                            int i = 0;
+                            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                                values[i++] = entry.getKey();
+                                values[i++] = entry.getValue();
+                            }
+                            return values;
+                        }
+                        return ((Collection<?>) source).toArray();
+                }
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException("Cannot copy " + type.getName(), t);
+            }
+        }
+
+        // Records and unmodifiable collections, once their components are complete
+        Object build(Object source, Object[] links) {
+            try {
+                if (kind == UNMODIFIABLE) {
+                    return copyUnmodifiable(source, links);
+                }
+                Object[] args = new Object[links.length];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = copyOf(links[i]);
+                }
+                return (Object) recordConstructor.invokeExact(args);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException("Cannot copy " + type.getName(), t);
+            }
+        }
+
+        // Shared when every element is immutable (no Node links), else rebuilt from complete copies
+        private static Object copyUnmodifiable(Object source, Object[] links) {
+            boolean shared = true;
+            for (Object link : links) {
+                if (link instanceof Node) {
+                    shared = false;
+                    break;
+                }
+            }
+            if (shared) {
+                return source;
+            }
+            if (source instanceof Map) {
+                Map<Object, Object> copy = new LinkedHashMap<>();
+                for (int i = 0; i < links.length; i += 2) {
+                    copy.put(copyOf(links[i]), copyOf(links[i + 1]));
+                }
+                return Map.copyOf(copy);
+            }
+            List<Object> elements = new ArrayList<>(links.length);
+            for (Object link : links) {
+                elements.add(copyOf(link));
+            }
+            if (source instanceof Set) {
+                return Set.copyOf(elements);
+            }
+            // Stream.toList() is the one unmodifiable list allowed to hold nulls
+            return elements.contains(null) ? Collections.unmodifiableList(elements) : List.copyOf(elements);
+        }
+
+        @SuppressWarnings("unchecked")
+        void fill(Object source, Object copy, Object[] links) {
+            try {
+                switch (kind) {
+                    case OBJECT:
+                        for (MethodHandle copyField : primitiveCopiers) {
+                            copyField.invokeExact(copy, source);
+                        }
+                        for (int i = 0; i < links.length; i++) {
+                            referenceSetters[i].invokeExact(copy, copyOf(links[i]));
+                        }
+                        break;
+                    case OBJECT_ARRAY: {
+                        Object[] to = (Object[]) copy;
+                        if (immutableElements) {
+                            System.arraycopy(source, 0, to, 0, to.length);
+                        } else {
+                            for (int i = 0; i < to.length; i++) {
+                                to[i] = copyOf(links[i]);
+                            }
+                        }
+                        break;
+                    }
+                    case LIST:
+                    case HASHED:
+                        for (Object link : links) {
+                            ((Collection<Object>) copy).add(copyOf(link));
+                        }
+                        break;
+                    case MAP:
+                        for (int i = 0; i < links.length; i += 2) {
+                            ((Map<Object, Object>) copy).put(copyOf(links[i]), copyOf(links[i + 1]));
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException("Nothing to fill for " + type.getName());
+                }
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException("Cannot copy " + type.getName(), t);
+            }
+        }
+    }
+}
+
+
+// ============================================================
+// SAMPLE GRAPH FOR COPY BENCHMARKS
+// ============================================================
+
+/*
+ * Nodes only point to earlier nodes and back to their graph, so Java
+ * serialization stays shallow (it recurses per reference) while the
+ * graph still has cycles.
+ */
+class SampleGraph implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    SampleNode[] nodes;
+
+    static SampleGraph random(int size, Random random) {
+        SampleGraph graph = new SampleGraph();
+        graph.nodes = new SampleNode[size];
+        for (int i = 0; i < size; i++) {
+            SampleNode node = new SampleNode();
+            node.id = i;
+            node.weight = random.nextDouble();
+            node.label = "node";
+            node.owner = graph;
+            node.edges = i == 0 ? new SampleNode[0]
+                    : new SampleNode[]{graph.nodes[random.nextInt(i)], graph.nodes[random.nextInt(i)]};
+            graph.nodes[i] = node;
+        }
+        return graph;
+    }
+}
+
+class SampleNode implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    int id;
+    double weight;
+    String label;
+    SampleGraph owner;
+    SampleNode[] edges;
+}
+
+// Compact constructors that only see their components once they are complete
+record NonEmptyOrder(String id, List<String> items) {
+    NonEmptyOrder {
+        if (items.isEmpty()) {
+            throw new IllegalArgumentException("order " + id + " has no items");
+        }
+    }
+}
+
+record FrozenOrder(String id, List<String> items) {
+    FrozenOrder {
+        items = List.copyOf(items);
+    }
+}
+
+// Reaches the same list directly first, then through the record
+class OrderHolder {
+    List<String> items;
+    NonEmptyOrder order;
+}
+
+// Hashes on a field, so a set must only see it once it is filled
+class TagKey {
+    String name;
+
+    TagKey(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TagKey other && Objects.equals(name, other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(name);
+    }
+}
+
+class TagHolder {
+    TagKey key;
+    Set<TagKey> tags;
+}
+
+// Every member must already have a buddy when the crew is constructed
+record Crew(String name, List<CrewMember> members) {
+    Crew {
+        for (CrewMember member : members) {
+            if (member.buddy == null) {
+                throw new IllegalArgumentException(member.name + " has no buddy");
+            }
+        }
+    }
+}
+
+class CrewMember {
+    String name;
+    CrewMember buddy;
+    Crew crew;
+
+    CrewMember(String name) {
+        this.name = name;
+    }
+}
+
+class CrewHolder {
+    CrewMember lead;
+    Crew crew;
+}
+
+// Children hash on a field, and each one leads back to the set
+class Family {
+    Set<FamilyChild> children = new HashSet<>();
+}
+
+class FamilyChild {
+    int id;
+    Family parent;
+
+    FamilyChild(int id, Family parent) {
+        this.id = id;
+        this.parent = parent;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FamilyChild other && id == other.id;
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+}
+
+
+// ============================================================
+// TAGGED BINARY FORMAT (VARINT / ZIGZAG)
+// ============================================================
+
+/*
+ * Protocol-Buffers-style wire format over ByteBuffer. A record is a
+ * sequence of fields, each prefixed by a key = (tag << 3) | wire type:
+ *
+ *   VARINT (0)    7 bits per byte, high bit = "more"; signed values are
+ *                 zigzag-mapped first so small negatives stay short
+ *                 (0 -> 0, -1 -> 1, 1 -> 2, -2 -> 3, ...)
+ *   FIXED64 (1)   8 bytes little-endian (doubles)
+ *   LENGTH (2)    varint length + bytes (UTF-8 strings, nested data)
+ *   FIXED32 (5)   4 bytes little-endian (floats)
+ *
+ * Because every field carries its wire type, a reader can skip fields
+ * it does not know, and fields it expects but does not find keep their
+ * defaults - that is what makes the schema evolvable.
+ */
+final class TaggedWire {
+    static final int VARINT = 0, FIXED64 = 1, LENGTH = 2, FIXED32 = 5;
+
+    private TaggedWire() {
+    }
+
+    static int key(int tag, int wireType) {
+        return tag << 3 | wireType;
+    }
+
+    static int tag(int key) {
+        return key >>> 3;
+    }
+
+    static int wireType(int key) {
+        return key & 7;
+    }
+
+    // ---- writing ----
+
+    static void writeInt(ByteBuffer out, int tag, int value) {
+        putVarint(out, key(tag, VARINT));
+        putVarint(out, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    static void writeLong(ByteBuffer out, int tag, long value) {
+        putVarint(out, key(tag, VARINT));
+        putVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    static void writeBoolean(ByteBuffer out, int tag, boolean value) {
+        putVarint(out, key(tag, VARINT));
+        out.put((byte) (value ? 1 : 0));
+    }
+
+    static void writeDouble(ByteBuffer out, int tag, double value) {
+        putVarint(out, key(tag, FIXED64));
+        putFixed64(out, Double.doubleToRawLongBits(value));
+    }
+
+    // null strings are simply not written (the reader's default applies)
+    static void writeString(ByteBuffer out, int tag, String value) {
+        if (value == null) {
+            return;
+        }
+        putVarint(out, key(tag, LENGTH));
+        putVarint(out, Utf8.length(value));
+        Utf8.put(out, value);
+    }
+
+    static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static void putFixed64(ByteBuffer out, long bits) {
+        for (int i = 0; i < 8; i++) {
+            out.put((byte) (bits >>> (i * 8)));
+        }
+    }
+
+    // ---- reading ----
+
+    // Next field key, or 0 at the end of the buffer
+    static int readKey(ByteBuffer in) {
+        return in.hasRemaining() ? (int) readVarint(in) : 0;
+    }
+
+    static int readInt(ByteBuffer in) {
+        int raw = (int) readVarint(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    static long readLong(ByteBuffer in) {
+        long raw = readVarint(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    static boolean readBoolean(ByteBuffer in) {
+        return readVarint(in) != 0;
+    }
+
+    static double readDouble(ByteBuffer in) {
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits |= (in.get() & 0xFFL) << (i * 8);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = readLength(in);
+        if (in.hasArray()) {
+            String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return s;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Length prefix of a LENGTH field, checked before any of its bytes are read
+    static int readLength(ByteBuffer in) {
+        long length = readVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Length " + length + " exceeds the "
+                    + in.remaining() + " bytes left");
+        }
+        return (int) length;
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    // Skip the value of a field we do not know
+    static void skip(ByteBuffer in, int key) {
+        switch (wireType(key)) {
+            case VARINT: readVarint(in); break;
+            case FIXED64: in.position(in.position() + 8); break;
+            case LENGTH: {
+                int length = readLength(in);
+                in.position(in.position() + length);
+                break;
+            }
+            case FIXED32: in.position(in.position() + 4); break;
+            default: throw new IllegalArgumentException("Unknown wire type " + wireType(key));
+        }
+    }
+
+    // ---- sizes, for length-prefixed framing ----
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int intFieldSize(int tag, int value) {
+        return varintSize(key(tag, VARINT)) + varintSize(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    static int stringFieldSize(int tag, String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = Utf8.length(value);
+        return varintSize(key(tag, LENGTH)) + varintSize(length) + length;
+    }
+
+}
+
+
+// ============================================================
+// PERSON IN THE TAGGED FORMAT
+// ============================================================
+
+/*
+ * Schema (tags are forever - never reuse one for a different field):
+ *   1: name   string
+ *   2: age    sint32
+ *   3: email  string
+ *
+ * Records can be written back to back with a varint length prefix
+ * (writeDelimited/readDelimited), e.g. into a buffer that is then
+ * written to a FileChannel or SocketChannel.
+ */
+class PersonWire {
+    static final int NAME = 1, AGE = 2, EMAIL = 3;
+
+    public static void write(Person person, ByteBuffer out) {
+        TaggedWire.writeString(out, NAME, person.getName());
+        if (person.getAge() != 0) {
+            TaggedWire.writeInt(out, AGE, person.getAge());
+        }
+        TaggedWire.writeString(out, EMAIL, person.getEmail());
+    }
+
+    public static int serializedSize(Person person) {
+        return TaggedWire.stringFieldSize(NAME, person.getName())
+                + (person.getAge() != 0 ? TaggedWire.intFieldSize(AGE, person.getAge()) : 0)
+                + TaggedWire.stringFieldSize(EMAIL, person.getEmail());
+    }
+
+    // Reads fields until the buffer's limit; unknown tags are skipped,
+    // missing ones keep their defaults (null / 0)
+    public static Person read(ByteBuffer in) {
+        String name = null;
+        int age = 0;
+        String email = null;
+        int key;
+        while ((key = TaggedWire.readKey(in)) != 0) {
+            int tag = TaggedWire.tag(key);
+            int wireType = TaggedWire.wireType(key);
+            if (tag == NAME && wireType == TaggedWire.LENGTH) {
+                name = TaggedWire.readString(in);
+            } else if (tag == AGE && wireType == TaggedWire.VARINT) {
+                age = TaggedWire.readInt(in);
+            } else if (tag == EMAIL && wireType == TaggedWire.LENGTH) {
+                email = TaggedWire.readString(in);
+            } else {
+                TaggedWire.skip(in, key);
+            }
+        }
+        return new Person(name, age, email);
+    }
+
+    public static void writeDelimited(Person person, ByteBuffer out) {
+        TaggedWire.putVarint(out, serializedSize(person));
+        write(person, out);
+    }
+
+    // Reads one length-prefixed record by narrowing the limit around it
+    public static Person readDelimited(ByteBuffer in) {
+        int length = TaggedWire.readLength(in);
+        int limit = in.limit();
+        int end = in.position() + length;
+        in.limit(end);
+        try {
+            return read(in);
+        } finally {
+            in.limit(limit).position(end);
+        }
+    }
+}
+
+
+// ============================================================
+// STREAMING XML WRITER
+// ============================================================
+
+/*
+ * Writes XML element by element into a reusable byte buffer that is
+ * drained to an OutputStream whenever it fills, so a document of any
+ * size needs only the buffer and the stack of open element names.
+ *
+ * Text and attribute values are escaped (&amp; &lt; &gt; &quot;) and
+ * UTF-8 encoded char by char. Control characters other than tab, CR
+ * and LF cannot appear in XML 1.0 at all, so they are rejected.
+ * With indent on, each nested element starts on its own line.
+ */
+class XmlWriter implements Closeable, Flushable {
+    private final OutputStream out;
+    private final boolean indent;
+    private final byte[] buf = new byte[8192];
+    private int count;
+    private boolean empty = true;     // nothing written yet
+
+    private final Deque<String> open = new ArrayDeque<>();
+    private boolean startTagOpen;     // "<name" written, '>' not yet
+    private boolean hasChildElements; // current element contains elements
+
+    public XmlWriter(OutputStream out, boolean indent) {
+        this.out = out;
+        this.indent = indent;
+    }
+
+    public XmlWriter startDocument() {
+        writeAscii("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        return this;
+    }
+
+    public XmlWriter startElement(String name) {
+        closeStartTag();
+        newLine(open.size());
+        writeByte('<');
+        writeAscii(name);
+        open.push(name);
+        startTagOpen = true;
+        hasChildElements = false;
+        return this;
+    }
+
+    public XmlWriter attribute(String name, String value) {
+        if (!startTagOpen) {
+            throw new IllegalStateException("Attributes must follow startElement()");
+        }
+        writeByte(' ');
+        writeAscii(name);
+        writeAscii("=\"");
+        escaped(value, true);
+        writeByte('"');
+        return this;
+    }
+
+    public XmlWriter text(String value) {
+        closeStartTag();
+        escaped(value, false);
+        return this;
+    }
+
+    // <name>text</name>, or nothing at all when text is null
+    public XmlWriter element(String name, String text) {
+        if (text != null) {
+            startElement(name).text(text).endElement();
+        }
+        return this;
+    }
+
+    public XmlWriter element(String name, long value) {
+        startElement(name);
+        closeStartTag();
+        writeLong(value);
+        return endElement();
+    }
+
+    public XmlWriter endElement() {
+        if (open.isEmpty()) {
+            throw new IllegalStateException("No open element");
+        }
+        String name = open.pop();
+        if (startTagOpen) {
+            writeAscii("/>");
+            startTagOpen = false;
+        } else {
+            if (hasChildElements) {
+                newLine(open.size());
+            }
+            writeAscii("</");
+            writeAscii(name);
+            writeByte('>');
+        }
+        // The parent now has at least one child element
+        hasChildElements = true;
+        return this;
+    }
+
+    // Close every open element and flush
+    public void endDocument() throws IOException {
+        while (!open.isEmpty()) {
+            endElement();
+        }
+        if (indent) {
+            writeByte('\n');
+        }
+        flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    private void closeStartTag() {
+        if (startTagOpen) {
+            writeByte('>');
+            startTagOpen = false;
+        }
+    }
+
+    private void newLine(int depth) {
+        if (indent && !empty) {
+            writeByte('\n');
+            for (int i = 0; i < depth; i++) {
+                writeAscii("    ");
+            }
+        }
+    }
+
+    private void escaped(String s, boolean attribute) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '&': writeAscii("&amp;"); break;
+                    case '<': writeAscii("&lt;"); break;
+                    case '>': writeAscii("&gt;"); break;
+                    case '"': if (attribute) writeAscii("&quot;"); else writeByte(c); break;
+                    case '\t': case '\n': case '\r':
+                        // Attribute values would normalize these to spaces
+                        if (attribute) writeAscii("&#" + (int) c + ";"); else writeByte(c);
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            throw new IllegalArgumentException("Character 0x" + Integer.toHexString(c)
+                                    + " is not allowed in XML");
+                        }
+                        writeByte(c);
+                }
+            } else if (c < 0x800) {
+                ensure(2);
+                buf[count++] = (byte) (0xC0 | c >> 6);
+                buf[count++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                ensure(4);
+                buf[count++] = (byte) (0xF0 | codePoint >> 18);
+                buf[count++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buf[count++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buf[count++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c) || c >= 0xFFFE) {
+                throw new IllegalArgumentException("Character 0x" + Integer.toHexString(c)
+                        + " is not allowed in XML");
+            } else {
+                ensure(3);
+                buf[count++] = (byte) (0xE0 | c >> 12);
+                buf[count++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buf[count++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buf[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int at = count + digits;
+        do {
+            buf[--at] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        count += digits;
+    }
+
+    // Element/attribute names and markup; names are expected to be ASCII
+    private void writeAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        buf[count++] = (byte) b;
+    }
+
+    private void ensure(int needed) {
+        empty = false;
+        if (count + needed > buf.length) {
+            try {
+                drain();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        out.write(buf, 0, count);
+        count = 0;
+    }
+}
+
+
+// ============================================================
+// PERSON <-> XML (STREAMING)
+// ============================================================
+
+/*
+ * Export/import of <people><person>...</person></people> documents.
+ *
+ * Writing goes through XmlWriter. Reading uses the JDK's StAX pull
+ * parser (javax.xml.stream): like JsonReader it hands out one event at
+ * a time, so only the current <person> is ever in memory. DTDs and
+ * external entities are disabled, since XML input is untrusted data
+ * too (XXE attacks). Unknown child elements are skipped; missing ones
+ * keep their defaults.
+ */
+class PersonXml {
+    private static final XMLInputFactory INPUT_FACTORY = newInputFactory();
+
+    public static void write(XmlWriter writer, Person person) {
+        writer.startElement("person")
+                .element("name", person.getName())
+                .element("age", person.getAge())
+                .element("email", person.getEmail())
+                .endElement();
+    }
+
+    public static void writeAll(Iterable<Person> people, OutputStream out) throws IOException {
+        XmlWriter writer = new XmlWriter(out, true);
+        writer.startDocument().startElement("people");
+        for (Person person : people) {
+            write(writer, person);
+        }
+        writer.endDocument();
+    }
+
+    // Streams every <person> element to the consumer; returns the count
+    public static long readAll(InputStream in, Consumer<Person> consumer) throws IOException {
+        try {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in, "UTF-8");
+            try {
+                long count = 0;
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT
+                            && reader.getLocalName().equals("person")) {
+                        consumer.accept(readPerson(reader));
+                        count++;
+                    }
+                }
+                return count;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed XML: " + e.getMessage(), e);
+        }
+    }
+
+    // Called on <person>; returns after the matching </person>
+    private static Person readPerson(XMLStreamReader reader)
+            throws XMLStreamException {
+        String name = null;
+        int age = 0;
+        String email = null;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "name": name = reader.getElementText(); break;
+                case "age": age = Integer.parseInt(reader.getElementText().trim()); break;
+                case "email": email = reader.getElementText(); break;
+                default: skipElement(reader);
+            }
+        }
+        return new Person(name, age, email);
+    }
+
+    // Skip the current element and everything inside it
+    private static void skipElement(XMLStreamReader reader)
+            throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
+
+
+// ============================================================
+// BLOCK-COMPRESSED RECORD FILE
+// ============================================================
+
+/*
+ * Millions of records in one file, readable by record number.
+ *
+ *   [block 0][block 1]...[block n-1][index][footer]
+ *
+ * - A block holds recordsPerBlock records, each as varint length +
+ *   bytes, compressed on its own with Deflater (level 0-9), so one
+ *   record costs one block read + inflate, never the whole file.
+ * - index: per block, its file offset, compressed and raw length.
+ * - footer (fixed 32 bytes): magic, recordsPerBlock, block count,
+ *   record count, index offset.
+ *
+ * Readers use FileChannel positional reads (read(buffer, position)):
+ * there is no shared stream position, so any number of threads can
+ * read the same Reader concurrently. Each thread keeps its own
+ * Inflater and its last inflated block.
+ *
+ * A Reader trusts nothing it reads: the footer and index are checked
+ * against the file size at open, and every record length against its
+ * block, so a damaged file fails with an IOException.
+ */
+final class BlockFile {
+    static final int MAGIC = 0x424C4B31; // "BLK1"
+    static final int FOOTER_SIZE = 32;
+
+    private BlockFile() {
+    }
+
+    static final class Writer<T> implements Closeable {
+        private final FileChannel channel;
+        private final int recordsPerBlock;
+        private final BiConsumer<T, ByteBuffer> encoder;
+        private final Deflater deflater;
+
+        private ByteBuffer record = ByteBuffer.allocate(256);
+        private ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+        private byte[] compressed = new byte[64 * 1024];
+        private int recordsInBlock;
+        private long recordCount;
+        private long position;
+
+        private long[] offsets = new long[64];
+        private int[] compressedLengths = new int[64];
+        private int[] rawLengths = new int[64];
+        private int blockCount;
+
+        public Writer(Path path, int recordsPerBlock, int level, BiConsumer<T, ByteBuffer> encoder)
+                throws IOException {
+            if (recordsPerBlock <= 0) {
+                throw new IllegalArgumentException("recordsPerBlock must be positive");
+            }
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.recordsPerBlock = recordsPerBlock;
+            this.encoder = encoder;
+            this.deflater = new Deflater(level);
+        }
+
+        public void append(T value) throws IOException {
+            // Encode into the record buffer, growing it until the value fits
+            while (true) {
+                record.clear();
+                try {
+                    encoder.accept(value, record);
+                    break;
+                } catch (BufferOverflowException e) {
+                    record = ByteBuffer.allocate(record.capacity() * 2);
+                }
+            }
+            record.flip();
+            if (block.remaining() < record.remaining() + 5) {
+                block = grow(block, record.remaining() + 5);
+            }
+            TaggedWire.putVarint(block, record.remaining());
+            block.put(record);
+            recordCount++;
+            if (++recordsInBlock == recordsPerBlock) {
+                flushBlock();
+            }
+        }
+
+        public long size() {
+            return recordCount;
+        }
+
+        private void flushBlock() throws IOException {
+            if (recordsInBlock == 0) {
+                return;
+            }
+            deflater.reset();
+            deflater.setInput(block.array(), 0, block.position());
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            writeFully(ByteBuffer.wrap(compressed, 0, length));
+
+            if (blockCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, blockCount * 2);
+                compressedLengths = Arrays.copyOf(compressedLengths, blockCount * 2);
+                rawLengths = Arrays.copyOf(rawLengths, blockCount * 2);
+            }
+            offsets[blockCount] = position;
+            compressedLengths[blockCount] = length;
+            rawLengths[blockCount] = block.position();
+            blockCount++;
+            position += length;
+            block.clear();
+            recordsInBlock = 0;
+        }
+
+        // Writes the last partial block, the index and the footer
+        @Override
+        public void close() throws IOException {
+            try {
+                flushBlock();
+                long indexOffset = position;
+                ByteBuffer index = ByteBuffer.allocate(blockCount * 16);
+                for (int i = 0; i < blockCount; i++) {
+                    index.putLong(offsets[i]).putInt(compressedLengths[i]).putInt(rawLengths[i]);
+                }
+                index.flip();
+                writeFully(index);
+
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+                footer.putInt(MAGIC).putInt(recordsPerBlock).putInt(blockCount).putInt(0)
+                        .putLong(recordCount).putLong(indexOffset).flip();
+                writeFully(footer);
+                channel.force(false);
+            } finally {
+                deflater.end();
+                channel.close();
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        private static ByteBuffer grow(ByteBuffer buffer, int extra) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+            buffer.flip();
+            return bigger.put(buffer);
+        }
+    }
+
+    static final class Reader<T> implements Closeable {
+        private final FileChannel channel;
+        private final Function<ByteBuffer, T> decoder;
+        private final int recordsPerBlock;
+        private final long recordCount;
+        private final long[] offsets;
+        private final int[] compressedLengths;
+        private final int[] rawLengths;
+        private final ThreadLocal<Cursor> cursors = ThreadLocal.withInitial(Cursor::new);
+
+        public Reader(Path path, Function<ByteBuffer, T> decoder) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.decoder = decoder;
+            try {
+                long size = channel.size();
+                if (size < FOOTER_SIZE) {
+                    throw new IOException("Not a block file: too short");
+                }
+                ByteBuffer footer = readFully(ByteBuffer.allocate(FOOTER_SIZE), size - FOOTER_SIZE);
+                if (footer.getInt() != MAGIC) {
+                    throw new IOException("Not a block file: bad magic");
+                }
+                this.recordsPerBlock = footer.getInt();
+                int blockCount = footer.getInt();
+                footer.getInt();
+                this.recordCount = footer.getLong();
+                long indexOffset = footer.getLong();
+
+                // The footer decides every allocation below, so check it
+                // against the file before trusting it: the index sits right
+                // before the footer, and the blocks fill the file up to it.
+                if (recordsPerBlock <= 0) {
+                    throw new IOException("Corrupt block file footer: " + recordsPerBlock + " records per block");
+                }
+                if (blockCount < 0 || indexOffset < 0 || indexOffset + blockCount * 16L != size - FOOTER_SIZE) {
+                    throw new IOException("Corrupt block file footer: " + blockCount + " blocks, index at "
+                            + indexOffset + " in " + size + " bytes");
+                }
+                long capacity = (long) blockCount * recordsPerBlock;
+                if (recordCount > capacity || recordCount <= capacity - recordsPerBlock) {
+                    throw new IOException("Corrupt block file footer: " + recordCount + " records in "
+                            + blockCount + " blocks of " + recordsPerBlock);
+                }
+
+                ByteBuffer index = readFully(ByteBuffer.allocate(blockCount * 16), indexOffset);
+                this.offsets = new long[blockCount];
+                this.compressedLengths = new int[blockCount];
+                this.rawLengths = new int[blockCount];
+                long expectedOffset = 0;
+                for (int i = 0; i < blockCount; i++) {
+                    offsets[i] = index.getLong();
+                    compressedLengths[i] = index.getInt();
+                    rawLengths[i] = index.getInt();
+                    // Deflate never shrinks data more than ~1032:1
+                    if (offsets[i] != expectedOffset || compressedLengths[i] <= 0
+                            || rawLengths[i] < 0 || rawLengths[i] > compressedLengths[i] * 1032L) {
+                        throw new IOException("Corrupt block file index: block " + i + " at " + offsets[i]
+                                + ", " + compressedLengths[i] + " -> " + rawLengths[i] + " bytes");
+                    }
+                    expectedOffset += compressedLengths[i];
+                }
+                if (expectedOffset != indexOffset) {
+                    throw new IOException("Corrupt block file index: blocks end at " + expectedOffset
+                            + ", index starts at " + indexOffset);
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public long size() {
+            return recordCount;
+        }
+
+        public int blockCount() {
+            return offsets.length;
+        }
+
+        // Random access by record number; safe to call from many threads
+        public T get(long recordNumber) throws IOException {
+            if (recordNumber < 0 || recordNumber >= recordCount) {
+                throw new IndexOutOfBoundsException("Record " + recordNumber + " of " + recordCount);
+            }
+            Cursor cursor = cursors.get();
+            ByteBuffer block = cursor.load((int) (recordNumber / recordsPerBlock));
+            block.position(0);
+            for (long skip = recordNumber % recordsPerBlock; skip > 0; skip--) {
+                int length = recordLength(block);
+                block.position(block.position() + length);
+            }
+            return decodeNext(block);
+        }
+
+        // Sequential scan, one block at a time
+        public void forEach(Consumer<? super T> action) throws IOException {
+            Cursor cursor = cursors.get();
+            for (int b = 0; b < offsets.length; b++) {
+                ByteBuffer block = cursor.load(b);
+                block.position(0);
+                while (block.hasRemaining()) {
+                    action.accept(decodeNext(block));
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private T decodeNext(ByteBuffer block) throws IOException {
+            int length = recordLength(block);
+            int limit = block.limit();
+            int end = block.position() + length;
+            block.limit(end);
+            try {
+                return decoder.apply(block);
+            } finally {
+                block.limit(limit).position(end);
+            }
+        }
+
+        // A record's varint length prefix, checked against what is left of the block
+        private static int recordLength(ByteBuffer block) throws IOException {
+            try {
+                return TaggedWire.readLength(block);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Corrupt block: it ends before its records do", e);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt block: " + e.getMessage(), e);
+            }
+        }
+
+        private ByteBuffer readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position + buffer.position());
+                if (n < 0) {
+                    throw new EOFException("Block file truncated");
+                }
+            }
+            return buffer.flip();
+        }
+
+        // Per-thread state: compressed/raw buffers and the cached block
+        private final class Cursor {
+            private final Inflater inflater = new Inflater();
+            private ByteBuffer compressed = ByteBuffer.allocate(0);
+            private byte[] raw = new byte[0];
+            private ByteBuffer rawView = ByteBuffer.wrap(raw);
+            private int loadedBlock = -1;
+
+            ByteBuffer load(int block) throws IOException {
+                if (block == loadedBlock) {
+                    return rawView;
+                }
+                int compressedLength = compressedLengths[block];
+                if (compressed.capacity() < compressedLength) {
+                    compressed = ByteBuffer.allocate(compressedLength);
+                }
+                compressed.clear().limit(compressedLength);
+                readFully(compressed, offsets[block]);
+
+                int rawLength = rawLengths[block];
+                if (raw.length < rawLength) {
+                    raw = new byte[rawLength];
+                }
+                inflater.reset();
+                inflater.setInput(compressed.array(), 0, compressedLength);
+                try {
+                    int n = 0;
+                    while (n < rawLength) {
+                        int inflated = inflater.inflate(raw, n, rawLength - n);
+                        if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                            throw new IOException("Block " + block + " is truncated");
+                        }
+                        n += inflated;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Block " + block + " is corrupt", e);
+                }
+                rawView = ByteBuffer.wrap(raw, 0, rawLength).slice();
+                loadedBlock = block;
+                return rawView;
+            }
+        }
+    }
+}
+
+
+// ============================================================
+// PARALLEL SERIALIZATION PIPELINE
+// ============================================================
+
+/*
+ * Encodes a large list on all cores while keeping the output ordered:
+ *
+ *   list -> chunks -> [encode on ForkJoinPool] -> write in chunk order
+ *
+ * Chunks are submitted in order and the writer always joins the oldest
+ * one, so output order equals input order no matter which worker
+ * finishes first. At most 2 x parallelism chunks are in flight, which
+ * bounds memory for huge lists. Decoding is the mirror image: one
+ * thread reads framed chunks from the channel (I/O is sequential
+ * anyway), workers decode them, results are collected in order.
+ *
+ * Frame: int payload length, int record count, then the records, each
+ * as varint length + encoded bytes. The reader allocates a payload from
+ * the header, so headers and record lengths are checked before use and
+ * frames are capped at MAX_FRAME_BYTES; bad input is an IOException.
+ */
+final class SerializationPipeline<T> {
+    static final int MAX_FRAME_BYTES = 64 << 20;
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    private final BiConsumer<T, ByteBuffer> encoder;
+    private final Function<ByteBuffer, T> decoder;
+
+    public SerializationPipeline(ForkJoinPool pool, int chunkSize,
+                                 BiConsumer<T, ByteBuffer> encoder, Function<ByteBuffer, T> decoder) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        this.encoder = encoder;
+        this.decoder = decoder;
+    }
+
+    public void write(List<T> items, WritableByteChannel out) throws IOException {
+        int window = pool.getParallelism() * 2;
+        ArrayDeque<ForkJoinTask<ByteBuffer>> inFlight = new ArrayDeque<>();
+        for (int from = 0; from < items.size(); from += chunkSize) {
+            List<T> chunk = items.subList(from, Math.min(from + chunkSize, items.size()));
+            inFlight.add(pool.submit(() -> encodeChunk(chunk)));
+            if (inFlight.size() >= window) {
+                writeFrame(out, inFlight.poll().join());
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            writeFrame(out, inFlight.poll().join());
+        }
+    }
+
+    public List<T> read(ReadableByteChannel in) throws IOException {
+        int window = pool.getParallelism() * 2;
+        List<T> result = new ArrayList<>();
+        ArrayDeque<ForkJoinTask<List<T>>> inFlight = new ArrayDeque<>();
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (readFrameHeader(in, header)) {
+            int length = header.getInt(0);
+            int count = header.getInt(4);
+            // Every record takes at least its one-byte length prefix
+            if (length < 0 || length > MAX_FRAME_BYTES || count < 0 || count > length) {
+                throw new IOException("Corrupt chunk header: " + count + " records in " + length + " bytes");
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            while (payload.hasRemaining()) {
+                if (in.read(payload) < 0) {
+                    throw new EOFException("Truncated chunk");
+                }
+            }
+            payload.flip();
+            inFlight.add(pool.submit(() -> decodeChunk(payload, count)));
+            if (inFlight.size() >= window) {
+                result.addAll(decoded(inFlight.poll()));
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            result.addAll(decoded(inFlight.poll()));
+        }
+        return result;
+    }
+
+    private ByteBuffer encodeChunk(List<T> chunk) {
+        ByteBuffer record = ByteBuffer.allocate(256);
+        ByteBuffer frame = ByteBuffer.allocate(8 + chunk.size() * 64);
+        frame.position(8);
+        for (T item : chunk) {
+            while (true) {
+                record.clear();
+                try {
+                    encoder.accept(item, record);
+                    break;
+                } catch (BufferOverflowException e) {
+                    record = ByteBuffer.allocate(record.capacity() * 2);
+                }
+            }
+            record.flip();
+            if (frame.remaining() < record.remaining() + 5) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(frame.capacity() * 2,
+                        frame.position() + record.remaining() + 5));
+                frame.flip();
+                frame = bigger.put(frame);
+            }
+            TaggedWire.putVarint(frame, record.remaining());
+            frame.put(record);
+        }
+        frame.putInt(0, frame.position() - 8).putInt(4, chunk.size());
+        return frame.flip();
+    }
+
+    private List<T> decodeChunk(ByteBuffer payload, int count) {
+        List<T> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = TaggedWire.readLength(payload);
+            int end = payload.position() + length;
+            payload.limit(end);
+            items.add(decoder.apply(payload));
+            payload.limit(payload.capacity()).position(end);
+        }
+        if (payload.hasRemaining()) {
+            throw new IllegalArgumentException(payload.remaining() + " bytes after the last of "
+                    + count + " records");
+        }
+        return items;
+    }
+
+    // Joins a decode task, turning a corrupt chunk into an IOException
+    private static <T> List<T> decoded(ForkJoinTask<List<T>> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IllegalArgumentException || cause instanceof BufferUnderflowException) {
+                throw new IOException("Corrupt chunk: " + cause.getMessage(), cause);
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        }
+    }
+
+    // false on a clean end of stream before a new frame
+    private static boolean readFrameHeader(ReadableByteChannel in, ByteBuffer header) throws IOException {
+        header.clear();
+        while (header.hasRemaining()) {
+            if (in.read(header) < 0) {
+                if (header.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Truncated chunk header");
+            }
+        }
+        return true;
+    }
+
+    // Refuses a frame the reader would reject, so every file written can be read back
+    private static void writeFrame(WritableByteChannel out, ByteBuffer frame) throws IOException {
+        if (frame.remaining() - 8 > MAX_FRAME_BYTES) {
+            throw new IOException("Chunk of " + (frame.remaining() - 8) + " bytes exceeds "
+                    + MAX_FRAME_BYTES + "; use a smaller chunkSize");
+        }
+        while (frame.hasRemaining()) {
+            out.write(frame);
+        }
+    }
+}